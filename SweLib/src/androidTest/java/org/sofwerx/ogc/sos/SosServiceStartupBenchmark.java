@@ -0,0 +1,187 @@
+package org.sofwerx.ogc.sos;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the time from constructing an SosService to its first observation arriving at an
+ * SOS server (a local socket standing in for one). The sensor is already registered, as it
+ * would be after a restart with saved registrations, so only startup and the first InsertResult
+ * are measured. The first run in the process includes class loading and XML factory lookups;
+ * the later runs show the cost once those are warm. Results are written to the log.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SosServiceStartupBenchmark {
+    private final static String TAG = "SosStartupBenchmark";
+    private final static int RUNS = 5;
+    private final static long WAIT = 10000l;
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static String RESPONSE = "<sos:InsertResultResponse xmlns:sos=\"http://www.opengis.net/sos/2.0\"/>";
+
+    /**
+     * A minimal SOS server that notes when the first InsertResult arrives and answers every
+     * request with an empty InsertResultResponse
+     */
+    private static class FakeServer extends Thread {
+        private final ServerSocket socket;
+        private final AtomicLong firstObservation = new AtomicLong(-1l);
+        private final CountDownLatch received = new CountDownLatch(1);
+
+        private FakeServer() throws IOException {
+            super("FakeSosServer");
+            socket = new ServerSocket(0,50,InetAddress.getByName("127.0.0.1"));
+        }
+
+        private String getUrl() { return "http://127.0.0.1:"+socket.getLocalPort()+"/sos"; }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try (Socket connection = socket.accept()) {
+                    String body = readRequest(connection.getInputStream());
+                    if ((body != null) && body.contains("resultValues") && firstObservation.compareAndSet(-1l,System.nanoTime()))
+                        received.countDown();
+                    byte[] response = RESPONSE.getBytes(UTF8);
+                    OutputStream out = connection.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/xml\r\nContent-Length: "+response.length+"\r\nConnection: close\r\n\r\n").getBytes(UTF8));
+                    out.write(response);
+                    out.flush();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Reads one HTTP request
+     * @param in
+     * @return the body (or null if the connection closed first)
+     * @throws IOException
+     */
+    private static String readRequest(InputStream in) throws IOException {
+        String headers = readLine(in);
+        if (headers == null)
+            return null;
+        int length = -1;
+        boolean chunked = false;
+        String line;
+        while (((line = readLine(in)) != null) && !line.isEmpty()) {
+            String lower = line.toLowerCase();
+            if (lower.startsWith("content-length:"))
+                length = Integer.parseInt(line.substring(15).trim());
+            else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked"))
+                chunked = true;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (chunked) {
+            while ((line = readLine(in)) != null) {
+                int size = Integer.parseInt(line.split(";")[0].trim(),16);
+                if (size == 0)
+                    break;
+                copy(in,body,size);
+                readLine(in);
+            }
+        } else if (length > 0)
+            copy(in,body,length);
+        return new String(body.toByteArray(),UTF8);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n')
+                return line.toString();
+            if (c != '\r')
+                line.append((char)c);
+        }
+        return (line.length() == 0)?null:line.toString();
+    }
+
+    private static void copy(InputStream in, ByteArrayOutputStream out, int length) throws IOException {
+        byte[] buffer = new byte[Math.min(length,8192)];
+        while (length > 0) {
+            int read = in.read(buffer,0,Math.min(length,buffer.length));
+            if (read < 0)
+                throw new IOException("request ended early");
+            out.write(buffer,0,read);
+            length -= read;
+        }
+    }
+
+    private static SosSensor newRegisteredSensor() {
+        SosSensor sensor = new SosSensor("benchmark","urn:sofwerx:benchmark","Benchmark","Startup benchmark sensor");
+        SensorMeasurementTime time = new SensorMeasurementTime();
+        SensorMeasurement agc = new SensorMeasurement(new SensorResultTemplateField("agc","http://sensorml.com/ont/swe/property/AGC","dB"));
+        sensor.addMeasurement(time);
+        sensor.addMeasurement(agc);
+        time.setValue(System.currentTimeMillis());
+        agc.setValue(-61.2d);
+        sensor.setAssignedProcedure("urn:sofwerx:benchmark");
+        sensor.setAssignedOffering("urn:sofwerx:benchmark-offering");
+        sensor.setAssignedTemplate("urn:sofwerx:benchmark#template");
+        return sensor;
+    }
+
+    /**
+     * Starts a service and sends one observation right away
+     * @return time from construction until the server had the observation (in ns)
+     */
+    private static long run(Context context) throws Exception {
+        FakeServer server = new FakeServer();
+        server.start();
+        SosService service = null;
+        try {
+            long start = System.nanoTime();
+            service = new SosService(context,newRegisteredSensor(),server.getUrl(),true,false);
+            service.broadcastSensorReadings(); //queued until the service thread is ready
+            assertTrue("no observation reached the server",server.received.await(WAIT,TimeUnit.MILLISECONDS));
+            long elapsed = server.firstObservation.get() - start;
+            Log.i(TAG,"service thread ready in "+service.getReadyLatency()+"ms; first observation on the wire after "+(elapsed/1000000l)+"ms");
+            return elapsed;
+        } finally {
+            if (service != null)
+                service.shutdown();
+            server.close();
+        }
+    }
+
+    @Test
+    public void constructionToFirstObservation() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        long[] times = new long[RUNS];
+        for (int i=0;i<RUNS;i++)
+            times[i] = run(context);
+        long first = times[0];
+        Arrays.sort(times,1,RUNS);
+        Log.i(TAG,"construction to first observation: first run "+(first/1000000l)+"ms, median of later runs "+(times[1+(RUNS-1)/2]/1000000l)+"ms");
+    }
+}
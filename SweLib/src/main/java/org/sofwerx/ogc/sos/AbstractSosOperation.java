@@ -1,6 +1,6 @@
 package org.sofwerx.ogc.sos;
 
-import android.util.Log;
+import android.os.SystemClock;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -12,21 +12,38 @@ import org.xml.sax.SAXException;
 import java.io.IOException;
 import java.io.StringReader;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
 
 public abstract class AbstractSosOperation {
-    private static SosSensor defaultSensor;
+    private volatile long deadline = 0l; //when this operation is no longer worth sending, on the SystemClock.elapsedRealtime() clock (0 == never)
 
     public static AbstractSosOperation newFromXmlString(String text) {
+        return newFromXmlString(text,null);
+    }
+
+    /**
+     * Parses an operation, decoding any InsertResult into the sensor the registry holds for its template
+     * @param text the XML
+     * @param registry the templates seen so far and the default sensor (or null)
+     * @return the operation (or null if the text could not be parsed)
+     */
+    public static AbstractSosOperation newFromXmlString(String text, SosTemplateRegistry registry) {
+        Document doc = parseDocument(text);
+        if (doc != null)
+            return newFromXML(doc,registry);
+        return null;
+    }
+
+    /**
+     * Parses XML text into a document
+     * @param text the XML
+     * @return the document (or null if the text could not be parsed)
+     */
+    static Document parseDocument(String text) {
         if (text != null) {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
             try {
-                DocumentBuilder builder = null;
-                builder = factory.newDocumentBuilder();
-                Document doc = builder.parse(new InputSource(new StringReader(text)));
-                return newFromXML(doc);
+                return SosCodecContext.get().parse(new InputSource(new StringReader(text)));
             } catch (ParserConfigurationException | IOException | SAXException e) {
                 e.printStackTrace();
             }
@@ -34,7 +51,7 @@ public abstract class AbstractSosOperation {
         return null;
     }
 
-    private static Element removeSoap(Document doc) {
+    static Element removeSoap(Document doc) {
         if (doc == null)
             return null;
         Element element = doc.getDocumentElement();
@@ -65,6 +82,32 @@ public abstract class AbstractSosOperation {
     }
 
     public static AbstractSosOperation newFromXML(Document doc) {
+        return newFromXML(doc,null);
+    }
+
+    /**
+     * Builds the operation held in this document
+     * @param doc the XML document
+     * @param registry the templates seen so far; InsertResults are decoded into the sensor
+     *                 registered for their template rather than the registry's default sensor
+     *                 (or null for SosTemplateRegistry.getShared())
+     * @return the operation (or null if this is not a supported operation)
+     */
+    public static AbstractSosOperation newFromXML(Document doc, SosTemplateRegistry registry) {
+        return newFromXML(doc,registry,true);
+    }
+
+    /**
+     * Builds the operation held in this document
+     * @param doc
+     * @param registry
+     * @param applyResults false == leave a received InsertResult out of its sensor for now (the
+     *                     caller applies it once it is known to be the latest)
+     * @return
+     */
+    static AbstractSosOperation newFromXML(Document doc, SosTemplateRegistry registry, boolean applyResults) {
+        if (registry == null)
+            registry = SosTemplateRegistry.getShared();
         Node node = removeSoap(doc);
         AbstractSosOperation operation = null;
         if (doc != null) {
@@ -81,8 +124,12 @@ public abstract class AbstractSosOperation {
                         operation = new OperationInsertResultTemplate();
                     else if (tagName.contains(OperationInsertResultResponse.NAMESPACE))
                         operation = new OperationInsertResultResponse();
-                    else if (tagName.contains(OperationInsertResult.NAMESPACE))
-                        operation = new OperationInsertResult(defaultSensor);
+                    else if (tagName.contains(OperationInsertResult.NAMESPACE)) {
+                        OperationInsertResult insertResult = new OperationInsertResult(registry.getDefaultSensor());
+                        insertResult.setTemplateRegistry(registry);
+                        insertResult.setApplyOnParse(applyResults);
+                        operation = insertResult;
+                    }
                     else if (tagName.contains(OperationGetCapabilitiesResponse.NAMESPACE)) {
                         //TODO differentiate between GetCapabilities and the response to GetCapabilities
                         operation = new OperationGetCapabilitiesResponse();
@@ -98,19 +145,20 @@ public abstract class AbstractSosOperation {
     /**
      * Used so that templates requiring some context can have that context available
      * @return
+     * @deprecated use SosService.getTemplateRegistry().getDefaultSensor(); this only reads
+     * SosTemplateRegistry.getShared()
      */
-    public static SosSensor getDefaultSensor() {
-        return defaultSensor;
-    }
+    @Deprecated
+    public static SosSensor getDefaultSensor() { return SosTemplateRegistry.getShared().getDefaultSensor(); }
 
     /**
      * Used so that templates requiring some context can have that context available
      * @param defaultSensor
+     * @deprecated SosService sets the default sensor of its own registry; this only changes
+     * SosTemplateRegistry.getShared() (used when an operation is parsed without a registry)
      */
-    public static void setDefaultSensor(SosSensor defaultSensor) {
-        AbstractSosOperation.defaultSensor = defaultSensor;
-        Log.d(SosIpcTransceiver.TAG,"Default sensor is now: "+((defaultSensor==null)?"null":defaultSensor.getUniqueId()));
-    }
+    @Deprecated
+    public static void setDefaultSensor(SosSensor defaultSensor) { SosTemplateRegistry.getShared().setDefaultSensor(defaultSensor); }
 
     /**
      * Does this operation contain all the information it needs
@@ -118,10 +166,65 @@ public abstract class AbstractSosOperation {
      */
     public abstract boolean isValid();
 
+    /**
+     * Gets when this operation is no longer worth sending. Deadlines use
+     * SystemClock.elapsedRealtime() rather than the wall clock, so a time sync (NTP or GPS)
+     * neither expires every queued operation at once nor keeps them from ever expiring.
+     * @return time (in ms of SystemClock.elapsedRealtime()) or 0 if it never goes stale
+     */
+    public long getDeadline() { return deadline; }
+
+    /**
+     * Sets when this operation is no longer worth sending; once passed, the operation is
+     * dropped rather than sent and any request in progress is abandoned
+     * @param deadline time (in ms of SystemClock.elapsedRealtime()) or 0 for never
+     */
+    public void setDeadline(long deadline) { this.deadline = Math.max(0l,deadline); }
+
+    /**
+     * Sets how long from now this operation is worth sending
+     * @param timeToLive time (in ms)
+     */
+    public void setTimeToLive(long timeToLive) {
+        if (timeToLive > 0l)
+            deadline = SystemClock.elapsedRealtime() + timeToLive;
+    }
+
+    public boolean hasDeadline() { return deadline > 0l; }
+
+    /**
+     * Gets how long until this operation goes stale
+     * @return time (in ms; 0 once expired) or Long.MAX_VALUE if it never goes stale
+     */
+    public long getTimeRemaining() {
+        long current = deadline;
+        if (current <= 0l)
+            return Long.MAX_VALUE;
+        return Math.max(0l,current - SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Has this operation passed its deadline
+     * @return
+     */
+    public boolean isExpired() {
+        long current = deadline;
+        return (current > 0l) && (SystemClock.elapsedRealtime() >= current);
+    }
+
     protected abstract void parse(Element element);
     public Document toXML() throws ParserConfigurationException {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder parser = factory.newDocumentBuilder();
-        return parser.newDocument();
+        return SosCodecContext.get().newDocument();
+    }
+
+    /**
+     * Serializes this operation; operations whose XML rarely changes override this to hand back
+     * the bytes they already built
+     * @return the payload (or null if the operation could not be turned into XML)
+     * @throws ParserConfigurationException
+     * @throws TransformerException
+     */
+    public SosPayload toPayload() throws ParserConfigurationException, TransformerException {
+        return SosPayload.newFromDocument(toXML());
     }
 }
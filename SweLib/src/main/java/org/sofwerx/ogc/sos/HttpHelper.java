@@ -4,45 +4,236 @@ import android.util.Base64;
 import android.util.Log;
 import android.util.Pair;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 
 public class HttpHelper {
+    public final static int DEFAULT_TIMEOUT = 15000;
+    private final static String ACCEPT_ENCODING = "gzip, deflate";
+
+    /**
+     * How a request body is compressed; not every SOS server accepts compressed requests, so
+     * this is set per server
+     */
+    public enum Compression {
+        NONE(null),GZIP("gzip"),DEFLATE("deflate");
+
+        private final String contentEncoding;
+
+        Compression(String contentEncoding) { this.contentEncoding = contentEncoding; }
+
+        public String getContentEncoding() { return contentEncoding; }
+    }
+
+    /**
+     * Writes a request body straight into the connection's stream
+     */
+    public interface BodyWriter {
+        /**
+         * Gets the number of bytes writeTo() will write
+         * @param soapWrapped true == the body is going inside a SOAP envelope
+         * @return length (or -1 if it is not known until written)
+         */
+        long getLength(boolean soapWrapped);
+
+        /**
+         * Writes the body
+         * @param out the connection's stream
+         * @param soapWrapped true == the body is going inside a SOAP envelope, so no XML
+         *                    declaration should be written
+         * @throws IOException
+         */
+        void writeTo(OutputStream out, boolean soapWrapped) throws IOException;
+    }
+
+    /**
+     * Builds a writer for an already encoded UTF-8 body; when wrapped in SOAP its XML
+     * declaration is skipped rather than copied out
+     * @param body
+     * @return
+     */
+    public static BodyWriter newBodyWriter(final byte[] body) {
+        return new BodyWriter() {
+            private int getStart(boolean soapWrapped) {
+                int start = 0;
+                if (soapWrapped && startsWith(body,XML_DECLARATION)) {
+                    while ((start < body.length) && (body[start] != '>'))
+                        start++;
+                    start++; //remove the xml header
+                }
+                return Math.min(start,body.length);
+            }
+
+            @Override
+            public long getLength(boolean soapWrapped) { return body.length - getStart(soapWrapped); }
+
+            @Override
+            public void writeTo(OutputStream out, boolean soapWrapped) throws IOException {
+                int start = getStart(soapWrapped);
+                out.write(body,start,body.length-start);
+            }
+        };
+    }
+
+    /**
+     * A request that can be abandoned from another thread; cancelling disconnects the socket
+     * so the thread making the request is released right away
+     */
+    public static class Call {
+        private volatile HttpURLConnection connection;
+        private volatile boolean cancelled = false;
+        private volatile boolean connected = false;
+
+        public void cancel() {
+            cancelled = true;
+            HttpURLConnection current = connection;
+            if (current != null)
+                current.disconnect();
+        }
+
+        public boolean isCancelled() { return cancelled; }
+
+        /**
+         * Did the connection to the server open; once it has, the server may have received the
+         * request even if the call then fails, so a write is not safe to send again
+         * @return
+         */
+        public boolean isConnected() { return connected; }
+
+        /**
+         * The connection is open (also used by fake servers in tests)
+         */
+        void onConnected() { connected = true; }
+
+        private void setConnection(HttpURLConnection connection) throws IOException {
+            this.connection = connection;
+            if (cancelled) {
+                connection.disconnect();
+                throw new IOException("Request was cancelled");
+            }
+        }
+    }
+
     public static String post(String serverURL, String username, String password, String body) throws IOException {
         return post(serverURL, username, password, body,false);
     }
 
     public static String post(String serverURL, String username, String password, String body, boolean soapWrapper) throws IOException {
+        if (body == null)
+            throw new IOException("Cannot send an empty body");
+        return post(serverURL, username, password, body.getBytes("UTF-8"), soapWrapper);
+    }
+
+    /**
+     * Posts an already encoded body (i.e. SosPayload.getBytes()) without converting it back to text
+     * @param serverURL
+     * @param username
+     * @param password
+     * @param body UTF-8 body
+     * @param soapWrapper true == wrap the body in a SOAP envelope
+     * @return the response (or null if the server sent back an empty body or answered with anything but 200 OK)
+     * @throws IOException
+     */
+    public static String post(String serverURL, String username, String password, byte[] body, boolean soapWrapper) throws IOException {
+        try {
+            return post(serverURL, username, password, body, soapWrapper, 0l, null);
+        } catch (SosHttpException e) {
+            Log.e(SosIpcTransceiver.TAG,"Http connection attempt failed: "+e.getStatusCode());
+            return null;
+        }
+    }
+
+    /**
+     * Posts an already encoded body within a time limit
+     * @param serverURL
+     * @param username
+     * @param password
+     * @param body UTF-8 body
+     * @param soapWrapper true == wrap the body in a SOAP envelope
+     * @param timeout time left for this request (in ms) or 0 for the default timeouts
+     * @param call used to cancel this request from another thread (or null)
+     * @return the response (or null if the server sent back an empty body)
+     * @throws SosHttpException if the server answers with anything but 200 OK
+     * @throws IOException
+     */
+    public static String post(String serverURL, String username, String password, byte[] body, boolean soapWrapper, long timeout, Call call) throws IOException {
+        return post(serverURL, username, password, body, soapWrapper, Compression.NONE, timeout, call);
+    }
+
+    /**
+     * Posts an already encoded body within a time limit, compressing it on the way out
+     * @param serverURL
+     * @param username
+     * @param password
+     * @param body UTF-8 body
+     * @param soapWrapper true == wrap the body in a SOAP envelope
+     * @param compression how to compress the body (the server must accept this Content-Encoding)
+     * @param timeout time left for this request (in ms) or 0 for the default timeouts
+     * @param call used to cancel this request from another thread (or null)
+     * @return the response (or null if the server sent back an empty body)
+     * @throws SosHttpException if the server answers with anything but 200 OK
+     * @throws IOException
+     */
+    public static String post(String serverURL, String username, String password, byte[] body, boolean soapWrapper, Compression compression, long timeout, Call call) throws IOException {
+        if (body == null)
+            throw new IOException("Cannot send an empty body");
+        boolean wrap = soapWrapper && startsWith(body,XML_DECLARATION); //bodies without a declaration were never wrapped
+        return post(serverURL, username, password, newBodyWriter(body), wrap, compression, timeout, call);
+    }
+
+    /**
+     * Posts a body that is written straight into the connection's stream (along with the SOAP
+     * envelope if needed) so it is never copied into an intermediate String or array. Bodies
+     * of unknown length are sent with chunked transfer.
+     * @param serverURL
+     * @param username
+     * @param password
+     * @param body writes the UTF-8 body
+     * @param soapWrapper true == wrap the body in a SOAP envelope
+     * @param compression how to compress the body (the server must accept this Content-Encoding)
+     * @param timeout time left for this request (in ms) or 0 for the default timeouts
+     * @param call used to cancel this request from another thread (or null)
+     * @return the response (or null if the server sent back an empty body)
+     * @throws SosHttpException if the server answers with anything but 200 OK
+     * @throws IOException
+     */
+    public static String post(String serverURL, String username, String password, BodyWriter body, boolean soapWrapper, Compression compression, long timeout, Call call) throws IOException {
         if (serverURL == null)
             throw new IOException("Cannot connect to a null server URL");
         if (body == null)
             throw new IOException("Cannot send an empty body");
 
-        StringWriter payload = new StringWriter();
-        //payload.append(SOAP_HEADER);
-        payload.append(body);
-        //payload.append(SOAP_FOOTER);
-
         URL url;
         String response = "";
         url = new URL(serverURL);
 
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setReadTimeout(15000);
-        conn.setConnectTimeout(15000);
+        setTimeouts(conn,timeout);
+        if (call != null)
+            call.setConnection(conn);
         conn.setRequestMethod("POST");
         conn.setRequestProperty("Content-Type","application/soap+xml");
+        conn.setRequestProperty("Accept-Encoding",ACCEPT_ENCODING);
+        boolean compressed = (compression != null) && (compression.getContentEncoding() != null);
+        if (compressed)
+            conn.setRequestProperty("Content-Encoding",compression.getContentEncoding());
         conn.setDoInput(true);
         if ((username != null) && (password != null)) {
             try {
@@ -52,45 +243,74 @@ public class HttpHelper {
             } catch (UnsupportedEncodingException ignore) {
             }
         }
-        //conn.setDoOutput(true);
+        conn.setDoOutput(true);
         conn.setInstanceFollowRedirects(false);
+        long length = body.getLength(soapWrapper);
+        if (!compressed && (length >= 0l)) {
+            if (soapWrapper)
+                length += SOAP_HEADER_BYTES.length + SOAP_FOOTER_BYTES.length;
+            conn.setFixedLengthStreamingMode(length);
+        } else
+            conn.setChunkedStreamingMode(0);
+        conn.connect();
+        if (call != null)
+            call.onConnected();
 
-        OutputStream os = conn.getOutputStream();
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
-        String payloadText = payload.toString();
-        if (soapWrapper) {
-            if (payloadText.startsWith("<?xml version")) {
-                payloadText = payloadText.substring(payloadText.indexOf('>')+1); //remove the xml header
-                payloadText = SOAP_HEADER+payloadText+SOAP_FOOTER;
-            }
-        }
-        writer.write(payloadText);
+        OutputStream os = new BufferedOutputStream(conn.getOutputStream());
+        if (compression == Compression.GZIP)
+            os = new GZIPOutputStream(os,COMPRESSION_BUFFER_SIZE);
+        else if (compression == Compression.DEFLATE)
+            os = new DeflaterOutputStream(os,new Deflater(),COMPRESSION_BUFFER_SIZE);
+        if (soapWrapper)
+            os.write(SOAP_HEADER_BYTES);
+        body.writeTo(os,soapWrapper);
+        if (soapWrapper)
+            os.write(SOAP_FOOTER_BYTES);
 
-        writer.flush();
-        writer.close();
+        os.flush();
         os.close();
         int responseCode=conn.getResponseCode();
 
-        if (responseCode == HttpsURLConnection.HTTP_OK) {
-            String line;
-            BufferedReader br=new BufferedReader(new InputStreamReader(conn.getInputStream()));
-            while ((line=br.readLine()) != null) {
-                response+=line;
-            }
-        } else {
+        if (responseCode == HttpsURLConnection.HTTP_OK)
+            response = readResponse(conn); //reading to the end and closing (rather than disconnecting) keeps the connection for the next request
+        else {
             Log.e(SosIpcTransceiver.TAG,"Http connection attempt failed: "+responseCode);
-            response = null;
+            discard(conn.getErrorStream());
+            throw new SosHttpException(responseCode,serverURL);
         }
 
-        conn.disconnect();
-        Log.d(SosIpcTransceiver.TAG,"HttpURLConnection disconnected");
-
         if ((response != null) && (response.length() < 1))
             response = null;
         return response;
     }
 
+    /**
+     * Gets a KVP request
+     * @param serverURL
+     * @param keyValues
+     * @return the response (or null if the server sent back an empty body or answered with anything but 200 OK)
+     * @throws IOException
+     */
     public static String get(String serverURL, ArrayList<Pair<String,String>> keyValues) throws IOException {
+        try {
+            return get(serverURL, keyValues, 0l, null);
+        } catch (SosHttpException e) {
+            Log.e(SosIpcTransceiver.TAG,"Http connection attempt failed: "+e.getStatusCode());
+            return null;
+        }
+    }
+
+    /**
+     * Gets a KVP request within a time limit
+     * @param serverURL
+     * @param keyValues
+     * @param timeout time left for this request (in ms) or 0 for the default timeouts
+     * @param call used to cancel this request from another thread (or null)
+     * @return the response (or null if the server sent back an empty body)
+     * @throws SosHttpException if the server answers with anything but 200 OK
+     * @throws IOException
+     */
+    public static String get(String serverURL, ArrayList<Pair<String,String>> keyValues, long timeout, Call call) throws IOException {
         if ((serverURL == null) || (keyValues == null) || keyValues.isEmpty()) {
             Log.w(SosIpcTransceiver.TAG,"Unable to post with null data or server URL");
             return null;
@@ -115,34 +335,120 @@ public class HttpHelper {
         url = new URL(urlString);
 
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setReadTimeout(15000);
-        conn.setConnectTimeout(15000);
+        setTimeouts(conn,timeout);
+        if (call != null)
+            call.setConnection(conn);
         conn.setRequestMethod("GET");
+        conn.setRequestProperty("Accept-Encoding",ACCEPT_ENCODING);
         conn.setInstanceFollowRedirects(false);
         //conn.setDoOutput(true);
+        conn.connect();
+        if (call != null)
+            call.onConnected();
 
         int responseCode=conn.getResponseCode();
 
-        if (responseCode == HttpsURLConnection.HTTP_OK) {
-            String line;
-            BufferedReader br=new BufferedReader(new InputStreamReader(conn.getInputStream()));
-            while ((line=br.readLine()) != null) {
-                response+=line;
-            }
-        } else {
+        if (responseCode == HttpsURLConnection.HTTP_OK)
+            response = readResponse(conn); //reading to the end and closing (rather than disconnecting) keeps the connection for the next request
+        else {
             Log.e(SosIpcTransceiver.TAG,"Http connection attempt failed: "+responseCode);
-            response = null;
+            discard(conn.getErrorStream());
+            throw new SosHttpException(responseCode,serverURL);
         }
 
-        conn.disconnect();
-        Log.d(SosIpcTransceiver.TAG,"HttpURLConnection disconnected");
-
         if ((response != null) && (response.length() < 1))
             response = null;
         return response;
     }
 
+    /**
+     * Reads the response body, inflating it as it streams in if the server compressed it.
+     * Setting Accept-Encoding by hand turns off HttpURLConnection's own gzip handling, so
+     * the Content-Encoding is checked here.
+     * @param conn
+     * @return the body as text
+     * @throws IOException
+     */
+    private static String readResponse(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getInputStream();
+        String encoding = conn.getContentEncoding();
+        if (encoding != null) {
+            encoding = encoding.trim();
+            if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding))
+                in = new GZIPInputStream(in,COMPRESSION_BUFFER_SIZE);
+            else if ("deflate".equalsIgnoreCase(encoding))
+                in = new InflaterInputStream(in);
+        }
+        StringBuilder out = new StringBuilder();
+        Reader reader = new InputStreamReader(in,UTF8);
+        try {
+            char[] buffer = new char[COMPRESSION_BUFFER_SIZE];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                for (int i=0;i<read;i++) {
+                    if ((buffer[i] != '\n') && (buffer[i] != '\r')) //line breaks were never kept in responses
+                        out.append(buffer[i]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return out.toString();
+    }
+
+    /**
+     * Reads and closes an error body so the connection can go back to the pool
+     * @param in the error stream (may be null)
+     */
+    private static void discard(InputStream in) {
+        if (in == null)
+            return;
+        try {
+            byte[] buffer = new byte[COMPRESSION_BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+            }
+        } catch (IOException ignore) {
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Derives the socket timeouts from the time left for a request; connecting never waits
+     * longer than the default so there is time left to fail over
+     * @param conn
+     * @param timeout time left (in ms) or 0 for the defaults
+     */
+    private static void setTimeouts(HttpURLConnection conn, long timeout) {
+        if (timeout <= 0l) {
+            conn.setReadTimeout(DEFAULT_TIMEOUT);
+            conn.setConnectTimeout(DEFAULT_TIMEOUT);
+            return;
+        }
+        int limit = (int)Math.min(timeout,Integer.MAX_VALUE);
+        conn.setReadTimeout(limit);
+        conn.setConnectTimeout(Math.min(limit,DEFAULT_TIMEOUT));
+    }
+
+    private static boolean startsWith(byte[] body, byte[] prefix) {
+        if (body.length < prefix.length)
+            return false;
+        for (int i=0;i<prefix.length;i++) {
+            if (body[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
     //Not pretty, but efficient
     private final static String SOAP_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><env:Envelope xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"http://www.w3.org/2003/05/soap-envelope http://www.w3.org/2003/05/soap-envelope/soap-envelope.xsd\"> <env:Body>\r\n";
     private final static String SOAP_FOOTER = "\r\n</env:Body></env:Envelope>";
+    private final static int COMPRESSION_BUFFER_SIZE = 8192;
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static byte[] SOAP_HEADER_BYTES = SOAP_HEADER.getBytes(Charset.forName("UTF-8"));
+    private final static byte[] SOAP_FOOTER_BYTES = SOAP_FOOTER.getBytes(Charset.forName("UTF-8"));
+    private final static byte[] XML_DECLARATION = "<?xml version".getBytes(Charset.forName("UTF-8"));
 }
@@ -11,11 +11,30 @@ import javax.xml.parsers.ParserConfigurationException;
 
 public class OperationGetCapabilities extends AbstractSosOperation {
     public final static String NAMESPACE = "sos:GetCapabilities";
+    public final static String SECTION_OPERATIONS_METADATA = "OperationsMetadata";
+    public final static String SECTION_SERVICE_IDENTIFICATION = "ServiceIdentification";
+    public final static String SECTION_SERVICE_PROVIDER = "ServiceProvider";
+    public final static String SECTION_FILTER_CAPABILITIES = "FilterCapabilities";
+    public final static String SECTION_CONTENTS = "Contents";
+    private String[] sections = {SECTION_OPERATIONS_METADATA,SECTION_SERVICE_IDENTIFICATION,
+            SECTION_SERVICE_PROVIDER,SECTION_FILTER_CAPABILITIES,SECTION_CONTENTS};
 
     public OperationGetCapabilities() {
         super();
     }
 
+    /**
+     * Sets which parts of the capabilities the server should send back (i.e. only
+     * SECTION_CONTENTS when looking for offerings); all sections are requested by default
+     * @param sections
+     */
+    public void setSections(String... sections) {
+        if ((sections != null) && (sections.length > 0))
+            this.sections = sections;
+    }
+
+    public String[] getSections() { return sections; }
+
     @Override
     public boolean isValid() {
         return true;
@@ -53,21 +72,11 @@ public class OperationGetCapabilities extends AbstractSosOperation {
         elementAcceptVersions.appendChild(elementVersion);
         getCap.appendChild(elementAcceptVersions);
         Element elementSections = doc.createElement(TAG_SECTIONS);
-        Element elementSectionOM = doc.createElement(TAG_SECTION);
-        elementSectionOM.setTextContent("OperationsMetadata");
-        elementSections.appendChild(elementSectionOM);
-        Element elementSectionSI = doc.createElement(TAG_SECTION);
-        elementSectionSI.setTextContent("ServiceIdentification");
-        elementSections.appendChild(elementSectionSI);
-        Element elementSectionSP = doc.createElement(TAG_SECTION);
-        elementSectionSP.setTextContent("ServiceProvider");
-        elementSections.appendChild(elementSectionSP);
-        Element elementSectionFC = doc.createElement(TAG_SECTION);
-        elementSectionFC.setTextContent("FilterCapabilities");
-        elementSections.appendChild(elementSectionFC);
-        Element elementSectionCon = doc.createElement(TAG_SECTION);
-        elementSectionCon.setTextContent("Contents");
-        elementSections.appendChild(elementSectionCon);
+        for (String section:sections) {
+            Element elementSection = doc.createElement(TAG_SECTION);
+            elementSection.setTextContent(section);
+            elementSections.appendChild(elementSection);
+        }
 
         getCap.appendChild(elementSections);
         return doc;
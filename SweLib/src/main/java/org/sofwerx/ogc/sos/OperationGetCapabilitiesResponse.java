@@ -27,6 +27,22 @@ public class OperationGetCapabilitiesResponse extends AbstractSosOperation {
 
     public ArrayList<SosSensor> getSensors() { return sensors; }
 
+    /**
+     * Finds the offerings the server already holds for a sensor
+     * @param uniqueId the sensor's unique ID (which the server uses as its procedure)
+     * @return the matching offerings, each as a sensor with its procedure and offering assigned (empty if none)
+     */
+    public ArrayList<SosSensor> getSensors(String uniqueId) {
+        ArrayList<SosSensor> matches = new ArrayList<>();
+        if ((uniqueId == null) || (sensors == null))
+            return matches;
+        for (SosSensor sensor:sensors) {
+            if (uniqueId.equalsIgnoreCase(sensor.getAssignedProcedure()) && (sensor.getAssignedOffering() != null))
+                matches.add(sensor);
+        }
+        return matches;
+    }
+
     @Override
     public void parse(Element getCapabilities) {
         if ((getCapabilities == null) || (getCapabilities.getChildNodes() == null))
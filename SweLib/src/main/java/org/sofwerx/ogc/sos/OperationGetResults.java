@@ -1,5 +1,6 @@
 package org.sofwerx.ogc.sos;
 
+import android.util.Log;
 import android.util.Pair;
 
 import org.json.JSONException;
@@ -13,7 +14,10 @@ import java.util.ArrayList;
 import javax.xml.parsers.ParserConfigurationException;
 
 public class OperationGetResults extends AbstractSosOperation {
+    private final static String TAG_RESULT_VALUES = "sos:resultValues";
     private SosSensor sensor;
+    private SosTemplateRegistry templateRegistry;
+    private SosResultValues resultValues;
 
     public OperationGetResults() {
         super();
@@ -32,6 +36,18 @@ public class OperationGetResults extends AbstractSosOperation {
     public SosSensor getSensor() { return sensor; }
     public void setSensor(SosSensor sensor) { this.sensor = sensor; }
 
+    /**
+     * Sets the registry used to find the separators declared in the template for this sensor's offering
+     * @param templateRegistry
+     */
+    public void setTemplateRegistry(SosTemplateRegistry templateRegistry) { this.templateRegistry = templateRegistry; }
+
+    /**
+     * Gets the result values from an XML GetResultResponse
+     * @return the values (or null if the response was JSON or has not been received)
+     */
+    public SosResultValues getResultValues() { return resultValues; }
+
     public ArrayList<Pair<String,String>> getPairs() {
         ArrayList<Pair<String,String>> pairs = new ArrayList<>();
         pairs.add(new Pair("service","SOS"));
@@ -65,9 +81,48 @@ public class OperationGetResults extends AbstractSosOperation {
             sensor.parseSensors(obj);
     }
 
+    /**
+     * Intakes an XML GetResultResponse (for servers that do not honor the JSON responseFormat)
+     * @param xml
+     * @return true == the response was decoded into the sensor
+     */
+    public boolean parse(String xml) {
+        Element element = removeSoap(parseDocument(xml));
+        if (element == null)
+            return false;
+        parse(element);
+        return (resultValues != null);
+    }
+
+    /**
+     * Decodes the most recent block in a GetResultResponse into the sensor
+     * @param getResultResponse
+     */
     @Override
-    public void parse(Element getCapabilities) {
-        //ignore, GetResults is handled as JSON only for now
+    public void parse(Element getResultResponse) {
+        resultValues = null;
+        if ((getResultResponse == null) || (sensor == null))
+            return;
+        try {
+            Element resultValuesElement = (Element)getResultResponse.getElementsByTagName(TAG_RESULT_VALUES).item(0);
+            if (resultValuesElement == null)
+                return;
+            String tokenSeparator = null;
+            String blockSeparator = null;
+            if (templateRegistry != null) {
+                SosTemplateRegistry.Entry entry = templateRegistry.getEntryByOffering(sensor.getAssignedOffering());
+                if (entry != null) {
+                    tokenSeparator = entry.getTokenSeparator();
+                    blockSeparator = entry.getBlockSeparator();
+                }
+            }
+            SosResultValues values = new SosResultValues(resultValuesElement.getTextContent(),tokenSeparator,blockSeparator);
+            int block = values.getBlockCount() - 1;
+            if ((block >= 0) && values.decodeInto(sensor,block))
+                resultValues = values;
+        } catch (Exception e) {
+            Log.e(SosIpcTransceiver.TAG,"OperationGetResults parsing error: "+e.getMessage());
+        }
     }
 
     @Override
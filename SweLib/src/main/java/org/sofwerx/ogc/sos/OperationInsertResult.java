@@ -5,8 +5,8 @@ import android.util.Log;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
-import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -14,11 +14,54 @@ public class OperationInsertResult extends AbstractSosOperation {
     public final static String NAMESPACE = "InsertResult";
     private SosSensor sosSensor;
     private String assignedTemplate;
+    private SosTemplateRegistry templateRegistry;
+    private SosResultValues resultValues;
+    private boolean applied = false;
+    private boolean applyOnParse = true;
+    private ArrayList<SosObservation> observations;
+    private String encodedValues; //the local result values, encoded once no matter how many templates they are sent under
 
     public OperationInsertResult(SosSensor sosSensor) { this.sosSensor = sosSensor; }
 
+    /**
+     * Builds an InsertResult that sends several observations at once, one block per observation
+     * @param sosSensor the registered sensor the observations came from
+     * @param observations the observations (i.e. from SosObservation.newFromSensor()) in the order they were taken
+     */
+    public OperationInsertResult(SosSensor sosSensor, List<SosObservation> observations) {
+        this.sosSensor = sosSensor;
+        if ((observations != null) && !observations.isEmpty())
+            this.observations = new ArrayList<>(observations);
+    }
+
+    /**
+     * Sets the registry used to find the sensor for the template in a received InsertResult
+     * @param templateRegistry
+     */
+    public void setTemplateRegistry(SosTemplateRegistry templateRegistry) { this.templateRegistry = templateRegistry; }
+
+    /**
+     * Sets if parse() copies the values into the sensor; the decode pipeline turns this off so
+     * it can apply results in the order they arrived rather than the order they were parsed
+     * @param applyOnParse
+     */
+    void setApplyOnParse(boolean applyOnParse) { this.applyOnParse = applyOnParse; }
+
+    /**
+     * Gets the sensor for this result. For a received InsertResult this is the sensor registered
+     * for its template; its values are not changed until applyToSensor() is called, so looking
+     * at the sensor (i.e. to route the operation) never overwrites newer readings.
+     * @return
+     */
     public SosSensor getSosSensor() { return sosSensor; }
 
+    /**
+     * Gets the result values exactly as received (without decoding them). Apps that only forward
+     * or filter results should use this and getAssignedTemplate() rather than getObservations().
+     * @return the received result values (or null if this InsertResult was built locally)
+     */
+    public SosResultValues getResultValues() { return resultValues; }
+
     @Override
     public void parse(Element insertResult) {
         if (insertResult == null) {
@@ -30,66 +73,170 @@ public class OperationInsertResult extends AbstractSosOperation {
             //since we're only parsing one particular set of formats, we're ignoring server, version, etc attributes
             Element template = (Element)insertResult.getElementsByTagName(TAG_TEMPLATE).item(0);
             assignedTemplate = template.getTextContent();
-            if (sosSensor == null) {
-                Log.e(SosIpcTransceiver.TAG,"OperationInsertResult cannot be parsed without a sosSensor assigned");
-                return;
+            String tokenSeparator = null;
+            String blockSeparator = null;
+            if (templateRegistry != null) {
+                SosTemplateRegistry.Entry entry = templateRegistry.getEntry(assignedTemplate);
+                if ((entry != null) && entry.hasLayout()) {
+                    sosSensor = entry.getSensor();
+                    tokenSeparator = entry.getTokenSeparator();
+                    blockSeparator = entry.getBlockSeparator();
+                }
             }
-            sosSensor.setAssignedTemplate(assignedTemplate);
-            Element resultValues = (Element)insertResult.getElementsByTagName(TAG_RESULT_VALUES).item(0);
-            String values = resultValues.getTextContent();
-            String value[] = values.split(OperationInsertResultTemplate.FIELD_SEPERATOR);
-            ArrayList<SensorMeasurement> sensorMeasurements = sosSensor.getSensorMeasurements();
-            int valueIndex = 0;
-            for (int i=0;i< sensorMeasurements.size();i++) {
-                if (sensorMeasurements.get(i) instanceof SensorMeasurementLocation) {
-                    double lat = Double.parseDouble(value[valueIndex]);
-                    double lng = Double.parseDouble(value[valueIndex+1]);
-                    double alt = Double.parseDouble(value[valueIndex+2]);
-                    valueIndex += 3;
-                    ((SensorMeasurementLocation)sensorMeasurements.get(i)).setLocation(lat,lng,alt);
-                } else if (sensorMeasurements.get(i) instanceof SensorMeasurementTime) {
-                    sensorMeasurements.get(i).parseLong(value[valueIndex]);
-                    valueIndex++;
-                } else {
-                    sensorMeasurements.get(i).setValue(value[valueIndex]);
-                    valueIndex++;
+            Element resultValuesElement = (Element)insertResult.getElementsByTagName(TAG_RESULT_VALUES).item(0);
+            resultValues = new SosResultValues(resultValuesElement.getTextContent(),tokenSeparator,blockSeparator);
+            synchronized (this) {
+                applied = false;
+                observations = null;
+            }
+        } catch (Exception e) {
+            Log.e(SosIpcTransceiver.TAG,"OperationInsertResult parsing error: "+e.getMessage());
+            return;
+        }
+        if (applyOnParse && ((templateRegistry == null) || !templateRegistry.isLazyDecoding()))
+            applyToSensor();
+    }
+
+    /**
+     * Copies the received result values into the sensor's measurements; this is only done once.
+     * parse() already does this unless the template registry is set to lazy decoding (see
+     * SosTemplateRegistry.setLazyDecoding()), so only apps that turned that on need to call it.
+     * When the InsertResult holds several blocks, the sensor gets the last (most recent) one.
+     * Results should be applied in the order they were received since the sensor only holds
+     * the latest values.
+     * @return false == nothing was applied (this InsertResult was built locally, was already
+     * applied, or the layout for its template is unknown)
+     */
+    public synchronized boolean applyToSensor() {
+        if (applied || (resultValues == null))
+            return false;
+        applied = true;
+        if (sosSensor == null) {
+            Log.e(SosIpcTransceiver.TAG,"OperationInsertResult cannot be parsed without a sosSensor assigned");
+            return false;
+        }
+        try {
+            synchronized (sosSensor) {
+                sosSensor.setAssignedTemplate(assignedTemplate);
+                int block = resultValues.getBlockCount() - 1;
+                if ((block >= 0) && !resultValues.decodeInto(sosSensor,block)) {
+                    Log.e(SosIpcTransceiver.TAG,"OperationInsertResult cannot be parsed as the layout for template "+assignedTemplate+" is unknown");
+                    return false;
                 }
             }
+            return true;
         } catch (Exception e) {
             Log.e(SosIpcTransceiver.TAG,"OperationInsertResult parsing error: "+e.getMessage());
+            return false;
         }
     }
 
+    /**
+     * Decodes every block in a received InsertResult into observations held by this operation
+     * (the sensor is not changed). The result is cached, so later calls are free.
+     * @return one observation per block (or null if the layout for this template is unknown
+     * or this InsertResult was not received)
+     */
+    public synchronized ArrayList<SosObservation> getObservations() {
+        if (observations != null)
+            return observations;
+        if ((resultValues == null) || (sosSensor == null))
+            return null;
+        ArrayList<SensorMeasurement> measurements;
+        synchronized (sosSensor) {
+            if (sosSensor.getSensorMeasurements() == null) {
+                Log.e(SosIpcTransceiver.TAG,"Observations cannot be decoded as the layout for template "+assignedTemplate+" is unknown");
+                return null;
+            }
+            measurements = new ArrayList<>(sosSensor.getSensorMeasurements());
+        }
+        SensorResultTemplateField[] fields = new SensorResultTemplateField[measurements.size()];
+        for (int i=0;i<fields.length;i++)
+            fields[i] = measurements.get(i).getFormat();
+        int blocks = resultValues.getBlockCount();
+        ArrayList<SosObservation> decodedObservations = new ArrayList<>(blocks);
+        for (int block=0;block<blocks;block++) {
+            try {
+                Object[] values = new Object[fields.length];
+                int valueIndex = 0;
+                for (int i=0;i<fields.length;i++) {
+                    values[i] = resultValues.decode(fields[i],block,valueIndex);
+                    valueIndex += fields[i].getTokenCount();
+                }
+                decodedObservations.add(SosObservation.newFromOwnedArrays(assignedTemplate,fields,values));
+            } catch (Exception e) {
+                Log.e(SosIpcTransceiver.TAG,"Block "+block+" in InsertResult for "+assignedTemplate+" could not be decoded: "+e.getMessage());
+            }
+        }
+        observations = decodedObservations;
+        return observations;
+    }
+
     private final static String TAG_TEMPLATE = "sos:template";
     private final static String TAG_RESULT_VALUES = "sos:resultValues";
 
     @Override
     public Document toXML() throws ParserConfigurationException {
+        if ((resultValues != null) && (assignedTemplate != null))
+            return toXML(assignedTemplate,resultValues.getText()); //forward the values as they were received
         if (sosSensor == null) {
             Log.e(SosIpcTransceiver.TAG,"SosSensor cannot be null for InsertResult operation");
             return null;
         }
-        if (sosSensor.getAssignedTemplate() == null) {
+        return toXML(sosSensor.getAssignedTemplate());
+    }
+
+    /**
+     * Builds this InsertResult for a particular template (i.e. the template a second SOS server
+     * assigned to the same sensor). The result values are only encoded the first time.
+     * @param template
+     * @return the document (or null if the values could not be encoded)
+     * @throws ParserConfigurationException
+     */
+    public Document toXML(String template) throws ParserConfigurationException {
+        if (template == null) {
             Log.e(SosIpcTransceiver.TAG,"assigned template cannot be null for InsertResult operation");
             return null;
         }
+        String values = getEncodedValues();
+        if (values == null)
+            return null;
+        return toXML(template,values);
+    }
+
+    /**
+     * Encodes the sensor's values (or the observations) as resultValues text
+     * @return the text (or null if the sensor has nothing to send)
+     */
+    private synchronized String getEncodedValues() {
+        if (encodedValues != null)
+            return encodedValues;
+        if (sosSensor == null) {
+            Log.e(SosIpcTransceiver.TAG,"SosSensor cannot be null for InsertResult operation");
+            return null;
+        }
+        StringBuilder out = new StringBuilder();
+        if (observations != null) {
+            boolean firstBlock = true;
+            for (SosObservation observation:observations) {
+                if (firstBlock)
+                    firstBlock = false;
+                else
+                    out.append(OperationInsertResultTemplate.BLOCK_SEPERATOR);
+                for (int i=0;i<observation.getFieldCount();i++) {
+                    if (i > 0)
+                        out.append(OperationInsertResultTemplate.FIELD_SEPERATOR);
+                    observation.getField(i).encode(observation.getValueForEncoding(i),out);
+                }
+            }
+            encodedValues = out.toString();
+            return encodedValues;
+        }
         ArrayList<SensorMeasurement> measurments = sosSensor.getSensorMeasurements();
         if ((measurments == null) || measurments.isEmpty()) {
             Log.e(SosIpcTransceiver.TAG,"SosSensor must have SensorMeasurements for InsertResult operation");
             return null;
         }
-        Document doc = super.toXML();
-        Element insertResult = doc.createElement(NAMESPACE);
-        doc.appendChild(insertResult);
-        insertResult.setAttribute("xmlns:sos","http://www.opengis.net/sos/2.0");
-        insertResult.setAttribute("service","SOS");
-        insertResult.setAttribute("version","2.0.0");
-        Element template = doc.createElement(TAG_TEMPLATE);
-        insertResult.appendChild(template);
-        template.setTextContent(sosSensor.getAssignedTemplate());
-        Element resultValues = doc.createElement(TAG_RESULT_VALUES);
-        insertResult.appendChild(resultValues);
-        StringWriter out = new StringWriter();
 
         boolean first = true;
         for (SensorMeasurement measurement:measurments) {
@@ -97,35 +244,30 @@ public class OperationInsertResult extends AbstractSosOperation {
                 first = false;
             else
                 out.append(OperationInsertResultTemplate.FIELD_SEPERATOR);
-            String value;
-            if (measurement instanceof SensorMeasurementLocation) {
-                double[] values = ((SensorMeasurementLocation)measurement).getValues();
-                if ((values == null) || (values.length != 3)) {
-                    Log.e(SosIpcTransceiver.TAG,"SensorMeasurementLocation.getValues not correct size (this should never happen)");
-                    return null;
-                }
-                //favor providing 0,0,0 over NaN data to SOS
-                double lat = values[SensorMeasurementLocation.FIELD_LATITUDE];
-                if (Double.isNaN(lat))
-                    lat = 0d;
-                double lng = values[SensorMeasurementLocation.FIELD_LONGITUDE];
-                if (Double.isNaN(lng))
-                    lng = 0d;
-                double alt = values[SensorMeasurementLocation.FIELD_ALTITUDE];
-                if (Double.isNaN(alt))
-                    alt = 0d;
-                out.append(Double.toString(lat));
-                out.append(OperationInsertResultTemplate.FIELD_SEPERATOR);
-                out.append(Double.toString(lng));
-                out.append(OperationInsertResultTemplate.FIELD_SEPERATOR);
-                out.append(Double.toString(alt));
-            } else {
-                value = measurement.toString();
-                out.append(value);
-            }
+            if (measurement instanceof SensorMeasurementLocation)
+                measurement.getFormat().encode(((SensorMeasurementLocation)measurement).getValues(),out);
+            else if (measurement.getFormat() != null)
+                measurement.getFormat().encode(measurement.getValue(),out);
+            else if (measurement.getValue() != null)
+                out.append(measurement.toString());
         }
+        encodedValues = out.toString();
+        return encodedValues;
+    }
 
-        resultValues.setTextContent(out.toString());
+    private Document toXML(String template, String values) throws ParserConfigurationException {
+        Document doc = super.toXML();
+        Element insertResult = doc.createElement(NAMESPACE);
+        doc.appendChild(insertResult);
+        insertResult.setAttribute("xmlns:sos","http://www.opengis.net/sos/2.0");
+        insertResult.setAttribute("service","SOS");
+        insertResult.setAttribute("version","2.0.0");
+        Element elementTemplate = doc.createElement(TAG_TEMPLATE);
+        insertResult.appendChild(elementTemplate);
+        elementTemplate.setTextContent(template);
+        Element elementResultValues = doc.createElement(TAG_RESULT_VALUES);
+        insertResult.appendChild(elementResultValues);
+        elementResultValues.setTextContent(values);
         return doc;
     }
 
@@ -134,8 +276,12 @@ public class OperationInsertResult extends AbstractSosOperation {
      * @return false == one or more measurement is missing a value
      */
     public boolean isValid() {
+        if (resultValues != null)
+            return (assignedTemplate != null);
         if (sosSensor == null)
             return false;
+        if (observations != null)
+            return true;
         ArrayList<SensorMeasurement> measurements = sosSensor.getSensorMeasurements();
         if ((measurements == null) || measurements.isEmpty())
             return false;
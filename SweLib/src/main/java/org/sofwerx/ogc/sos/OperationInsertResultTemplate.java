@@ -8,12 +8,16 @@ import org.w3c.dom.Element;
 import java.util.ArrayList;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
 
 public class OperationInsertResultTemplate extends AbstractSosOperation {
     public final static String NAMESPACE = "InsertResultTemplate";
     public final static String FIELD_SEPERATOR = ",";
     public final static String BLOCK_SEPERATOR = "@@";
     private SosSensor sosSensor;
+    private String offering;
+    private String tokenSeparator = FIELD_SEPERATOR;
+    private String blockSeparator = BLOCK_SEPERATOR;
 
     public OperationInsertResultTemplate() { super(); }
 
@@ -49,6 +53,16 @@ public class OperationInsertResultTemplate extends AbstractSosOperation {
                     sosSensor.addMeasurement(sensorMeasurement);
                 }
             }
+            Element resultEncoding = (Element)resultTemplate.getElementsByTagName(TAG_RESULT_ENCODING).item(0);
+            if (resultEncoding != null) {
+                Element textEncoding = (Element)resultEncoding.getElementsByTagName(TAG_TEXT_ENCODING).item(0);
+                if (textEncoding != null) {
+                    if (textEncoding.hasAttribute(NAME_TOKEN_SEPARATOR))
+                        tokenSeparator = textEncoding.getAttribute(NAME_TOKEN_SEPARATOR);
+                    if (textEncoding.hasAttribute(NAME_BLOCK_SEPARATOR))
+                        blockSeparator = textEncoding.getAttribute(NAME_BLOCK_SEPARATOR);
+                }
+            }
         } catch (Exception e) {
             Log.e(SosIpcTransceiver.TAG,"OperationInsertResultTemplate parsing error: "+e.getMessage());
         }
@@ -74,13 +88,28 @@ public class OperationInsertResultTemplate extends AbstractSosOperation {
     private final static String NAME_TOKEN_SEPARATOR = "tokenSeparator";
     private final static String NAME_BLOCK_SEPARATOR = "blockSeparator";
 
+    /**
+     * Gets the InsertResultTemplate XML, reusing the copy built last time for this offering
+     * while the sensor's measurement templates have not changed
+     * @return
+     * @throws ParserConfigurationException
+     * @throws TransformerException
+     */
+    @Override
+    public SosPayload toPayload() throws ParserConfigurationException, TransformerException {
+        if (sosSensor == null)
+            return super.toPayload();
+        return sosSensor.getInsertResultTemplatePayload(this);
+    }
+
     @Override
     public Document toXML() throws ParserConfigurationException {
         if (sosSensor == null) {
             Log.e(SosIpcTransceiver.TAG,"SosSensor cannot be null in InsertResultTemplate operation");
             return null;
         }
-        if (sosSensor.getAssignedOffering() == null) {
+        String assignedOffering = getOffering();
+        if (assignedOffering == null) {
             Log.e(SosIpcTransceiver.TAG,"SosSensor assigned offering cannot be null in InsertResultTemplate operation");
             return null;
         }
@@ -109,7 +138,7 @@ public class OperationInsertResultTemplate extends AbstractSosOperation {
         proposedTemplate.appendChild(resultTemplate);
         Element offering = doc.createElement(TAG_OFFERING);
         resultTemplate.appendChild(offering);
-        offering.setTextContent(sosSensor.getAssignedOffering());
+        offering.setTextContent(assignedOffering);
         Element resultStructure = doc.createElement(TAG_RESULT_STRUCTURE);
         resultTemplate.appendChild(resultStructure);
         Element dataRecord = doc.createElement(TAG_DATA_RECORD);
@@ -130,4 +159,33 @@ public class OperationInsertResultTemplate extends AbstractSosOperation {
     }
 
     public SosSensor getSosSensor() { return sosSensor; }
+
+    /**
+     * Gets the offering this template is for
+     * @return the offering set for this operation, otherwise the sensor's assigned offering
+     */
+    public String getOffering() {
+        if (offering != null)
+            return offering;
+        return (sosSensor == null)?null:sosSensor.getAssignedOffering();
+    }
+
+    /**
+     * Sets the offering this template is for when it differs from the sensor's (i.e. the
+     * offering a second SOS server assigned to the same sensor)
+     * @param offering
+     */
+    public void setOffering(String offering) { this.offering = offering; }
+
+    /**
+     * Gets the separator between fields declared in this template
+     * @return
+     */
+    public String getTokenSeparator() { return tokenSeparator; }
+
+    /**
+     * Gets the separator between blocks declared in this template
+     * @return
+     */
+    public String getBlockSeparator() { return blockSeparator; }
 }
\ No newline at end of file
@@ -7,6 +7,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
 
 public class OperationInsertSensor extends AbstractSosOperation {
     public final static String NAMESPACE = "swes:InsertSensor";
@@ -97,6 +98,20 @@ public class OperationInsertSensor extends AbstractSosOperation {
         }
     }
 
+    /**
+     * Gets the InsertSensor XML, reusing the copy built last time while the sensor description
+     * has not changed (i.e. when re-registering with another server)
+     * @return
+     * @throws ParserConfigurationException
+     * @throws TransformerException
+     */
+    @Override
+    public SosPayload toPayload() throws ParserConfigurationException, TransformerException {
+        if (sosSensor == null)
+            return null;
+        return sosSensor.getInsertSensorPayload(this);
+    }
+
     @Override
     public Document toXML() throws ParserConfigurationException {
         if (sosSensor == null)
@@ -0,0 +1,71 @@
+package org.sofwerx.ogc.sos;
+
+import android.util.Log;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * This is used for templates that report a flag (swe:Boolean)
+ */
+public class SensorBooleanResultTemplateField extends SensorResultTemplateField {
+    protected SensorBooleanResultTemplateField() {}
+
+    /**
+     * Constructor for a boolean field
+     * @param name name of the field (i.e. "jammed")
+     * @param definition definition for this flag (i.e. "http://www.sofwerx.org/torgi.owl#Jammed")
+     */
+    public SensorBooleanResultTemplateField(String name, String definition) {
+        setName(name);
+        setQuantityDefinition(definition);
+    }
+
+    @Override
+    public void addToElement(Document doc, Element element) {
+        if ((doc == null) || (element == null)) {
+            Log.e(SosIpcTransceiver.TAG,"Neither doc nor element can be null in SensorResultTemplateField.addToElement()");
+            return;
+        }
+        Element field = doc.createElement(TAG_NAME_FIELD);
+        field.setAttribute(NAME_NAME,getName());
+        element.appendChild(field);
+        Element flag = doc.createElement(TAG_NAME_BOOLEAN);
+        flag.setAttribute(NAME_DEFINITION,getQuantityDefinition());
+        field.appendChild(flag);
+    }
+
+    @Override
+    public void parse(Element field) {
+        if (field == null)
+            return;
+        setName(field.getAttribute(NAME_NAME));
+        Element flag = getTypeElement(field,TAG_NAME_BOOLEAN);
+        if (flag != null)
+            setQuantityDefinition(flag.getAttribute(NAME_DEFINITION));
+    }
+
+    /**
+     * Decodes the flag
+     * @return the value as a Boolean
+     */
+    @Override
+    public Object decode(SosResultValues values, int block, int token) throws NumberFormatException {
+        return values.getBoolean(block,token);
+    }
+
+    @Override
+    public void encode(Object value, StringBuilder out) {
+        if (value instanceof Boolean)
+            out.append((boolean)(Boolean)value);
+        else if (value instanceof Number)
+            out.append(((Number)value).longValue() != 0l);
+        else if (value != null)
+            out.append(value.toString());
+    }
+
+    @Override
+    public boolean isValid() {
+        return (getName() != null) && (getQuantityDefinition() != null);
+    }
+}
@@ -0,0 +1,90 @@
+package org.sofwerx.ogc.sos;
+
+import android.util.Log;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * This is used for templates that report one of a set of categories (swe:Category)
+ */
+public class SensorCategoryResultTemplateField extends SensorResultTemplateField {
+    private String codeSpace;
+
+    protected SensorCategoryResultTemplateField() {}
+
+    /**
+     * Constructor for a category field
+     * @param name name of the field (i.e. "constellation")
+     * @param definition definition for this category (i.e. "http://www.sofwerx.org/torgi.owl#Constellation")
+     * @param codeSpace optional link to the list of allowed categories (or null)
+     */
+    public SensorCategoryResultTemplateField(String name, String definition, String codeSpace) {
+        setName(name);
+        setQuantityDefinition(definition);
+        this.codeSpace = codeSpace;
+    }
+
+    public SensorCategoryResultTemplateField(String name, String definition) { this(name,definition,null); }
+
+    /**
+     * Gets the link to the list of allowed categories
+     * @return
+     */
+    public String getCodeSpace() { return codeSpace; }
+
+    /**
+     * Sets the link to the list of allowed categories
+     * @param codeSpace
+     */
+    public void setCodeSpace(String codeSpace) { this.codeSpace = codeSpace; }
+
+    @Override
+    protected void describe(StringBuilder out) {
+        super.describe(out);
+        out.append('\u0000').append(codeSpace);
+    }
+
+    @Override
+    public void addToElement(Document doc, Element element) {
+        if ((doc == null) || (element == null)) {
+            Log.e(SosIpcTransceiver.TAG,"Neither doc nor element can be null in SensorResultTemplateField.addToElement()");
+            return;
+        }
+        Element field = doc.createElement(TAG_NAME_FIELD);
+        field.setAttribute(NAME_NAME,getName());
+        element.appendChild(field);
+        Element category = doc.createElement(TAG_NAME_CATEGORY);
+        category.setAttribute(NAME_DEFINITION,getQuantityDefinition());
+        field.appendChild(category);
+        if (codeSpace != null) {
+            Element elementCodeSpace = doc.createElement(TAG_NAME_CODESPACE);
+            elementCodeSpace.setAttribute(NAME_XLINK_HREF,codeSpace);
+            category.appendChild(elementCodeSpace);
+        }
+    }
+
+    @Override
+    public void parse(Element field) {
+        if (field == null)
+            return;
+        setName(field.getAttribute(NAME_NAME));
+        Element category = getTypeElement(field,TAG_NAME_CATEGORY);
+        if (category != null) {
+            setQuantityDefinition(category.getAttribute(NAME_DEFINITION));
+            Element elementCodeSpace = getTypeElement(category,TAG_NAME_CODESPACE);
+            if (elementCodeSpace != null)
+                codeSpace = elementCodeSpace.getAttribute(NAME_XLINK_HREF);
+        }
+    }
+
+    @Override
+    public Object decode(SosResultValues values, int block, int token) {
+        return values.getString(block,token);
+    }
+
+    @Override
+    public boolean isValid() {
+        return (getName() != null) && (getQuantityDefinition() != null);
+    }
+}
@@ -0,0 +1,81 @@
+package org.sofwerx.ogc.sos;
+
+import android.util.Log;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * This is used for templates that report whole numbers (swe:Count) such as counters, so the
+ * values are sent and parsed as longs rather than doubles
+ */
+public class SensorCountResultTemplateField extends SensorResultTemplateField {
+    protected SensorCountResultTemplateField() {}
+
+    /**
+     * Constructor for a count field
+     * @param name name of the field (i.e. "satellites")
+     * @param definition definition for this count (i.e. "http://www.sofwerx.org/torgi.owl#SatelliteCount")
+     * @param unitOfMeasure optional unit of measure (or null if the count has no units)
+     */
+    public SensorCountResultTemplateField(String name, String definition, String unitOfMeasure) {
+        super(name,definition,unitOfMeasure);
+    }
+
+    public SensorCountResultTemplateField(String name, String definition) { this(name,definition,null); }
+
+    @Override
+    public void addToElement(Document doc, Element element) {
+        if ((doc == null) || (element == null)) {
+            Log.e(SosIpcTransceiver.TAG,"Neither doc nor element can be null in SensorResultTemplateField.addToElement()");
+            return;
+        }
+        Element field = doc.createElement(TAG_NAME_FIELD);
+        field.setAttribute(NAME_NAME,getName());
+        element.appendChild(field);
+        Element count = doc.createElement(TAG_NAME_COUNT);
+        count.setAttribute(NAME_DEFINITION,getQuantityDefinition());
+        field.appendChild(count);
+        if (getUnitOfMeasure() != null) {
+            Element uom = doc.createElement(TAG_NAME_UOM);
+            uom.setAttribute(NAME_CODE,getUnitOfMeasure());
+            count.appendChild(uom);
+        }
+    }
+
+    @Override
+    public void parse(Element field) {
+        if (field == null)
+            return;
+        setName(field.getAttribute(NAME_NAME));
+        Element count = getTypeElement(field,TAG_NAME_COUNT);
+        if (count != null) {
+            setQuantityDefinition(count.getAttribute(NAME_DEFINITION));
+            setUnitOfMeasure(getUomCode(count));
+        }
+    }
+
+    /**
+     * Decodes the count
+     * @return the value as a Long
+     */
+    @Override
+    public Object decode(SosResultValues values, int block, int token) throws NumberFormatException {
+        return values.getLong(block,token);
+    }
+
+    @Override
+    public void encode(Object value, StringBuilder out) {
+        if ((value instanceof Double) || (value instanceof Float))
+            out.append(Math.round(((Number)value).doubleValue()));
+        else if (value instanceof Number)
+            out.append(((Number)value).longValue());
+        else if (value != null)
+            out.append(value.toString());
+    }
+
+    @Override
+    public boolean isValid() {
+        return (getName() != null) && (getQuantityDefinition() != null);
+    }
+}
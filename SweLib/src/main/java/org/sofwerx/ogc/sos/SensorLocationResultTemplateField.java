@@ -7,9 +7,24 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 public class SensorLocationResultTemplateField extends SensorResultTemplateField {
+    private int altitudeDecimalPlaces = -1;
+
     public SensorLocationResultTemplateField() {}
     public SensorLocationResultTemplateField(String name, String quantityDefinition, String unitOfMeasure) { super(null,null,null); }
 
+    /**
+     * Gets the decimal places altitude is reported with
+     * @return the decimal places (or -1 if altitude uses the same precision as latitude and longitude)
+     */
+    public int getAltitudeDecimalPlaces() { return altitudeDecimalPlaces; }
+
+    /**
+     * Reports altitude rounded to a number of decimal places (i.e. 1 for 0.1 m); latitude and
+     * longitude use setDecimalPlaces() (i.e. 7 for about 1 cm)
+     * @param altitudeDecimalPlaces the decimal places (or -1 to use the same precision as latitude and longitude)
+     */
+    public void setAltitudeDecimalPlaces(int altitudeDecimalPlaces) { this.altitudeDecimalPlaces = Math.min(altitudeDecimalPlaces,SosNumberFormat.MAX_DECIMAL_PLACES); }
+
     @Override
     public void parse(Element field) {
         if (field == null)
@@ -102,6 +117,45 @@ public class SensorLocationResultTemplateField extends SensorResultTemplateField
         uomAlt.setAttribute(NAME_CODE,LOC_VALUE_CODE_ALT);
     }
 
+    /**
+     * Location takes latitude, longitude and altitude
+     * @return
+     */
+    @Override
+    public int getTokenCount() { return 3; }
+
+    /**
+     * Decodes the location
+     * @return double[] with latitude, longitude and altitude
+     */
+    @Override
+    public Object decode(SosResultValues values, int block, int token) throws NumberFormatException {
+        double[] location = new double[3];
+        location[SensorMeasurementLocation.FIELD_LATITUDE] = values.getDouble(block,token);
+        location[SensorMeasurementLocation.FIELD_LONGITUDE] = values.getDouble(block,token+1);
+        location[SensorMeasurementLocation.FIELD_ALTITUDE] = values.getDouble(block,token+2);
+        return location;
+    }
+
+    /**
+     * Writes a location given as double[] with latitude, longitude and altitude
+     */
+    @Override
+    public void encode(Object value, StringBuilder out) {
+        double[] location = (value instanceof double[])?(double[])value:null;
+        for (int i=0;i<3;i++) {
+            if (i > 0)
+                out.append(OperationInsertResultTemplate.FIELD_SEPERATOR);
+            double coordinate = ((location == null) || (location.length <= i))?Double.NaN:location[i];
+            if (Double.isNaN(coordinate))
+                coordinate = 0d; //favor providing 0,0,0 over NaN data to SOS
+            if ((i == SensorMeasurementLocation.FIELD_ALTITUDE) && (altitudeDecimalPlaces >= 0))
+                SosNumberFormat.appendFixed(out,coordinate,altitudeDecimalPlaces);
+            else
+                appendNumber(out,coordinate);
+        }
+    }
+
     /**
      * Does this measurement have all required fields
      * @return
@@ -85,6 +85,8 @@ public class SensorMeasurement {
                 float valueF = (Float)value;
                 if (Float.isNaN(valueF))
                     return "0.0"; //favor 0.0 rather than report NaN to the SOS
+                else if ((format != null) && format.hasPrecision())
+                    return format(valueF);
                 else
                     return Float.toString(valueF);
             }
@@ -92,15 +94,25 @@ public class SensorMeasurement {
                 double valueD = (Double)value;
                 if (Double.isNaN(valueD))
                     return "0.0"; //favor 0.0 rather than report NaN to the SOS
+                else if ((format != null) && format.hasPrecision())
+                    return format(valueD);
                 else
                     return Double.toString(valueD);
             }
+            if (value instanceof Boolean)
+                return Boolean.toString((Boolean)value);
             if (value instanceof String)
                 return (String)value;
         }
         return null; //cannot generate a String
     }
 
+    private String format(double value) {
+        StringBuilder out = new StringBuilder(24);
+        format.appendNumber(out,value);
+        return out.toString();
+    }
+
     public void parseLong(String in) throws NumberFormatException {
         if (in != null)
             value = Long.parseLong(in);
@@ -89,7 +89,10 @@ public class SensorMeasurementLocation extends SensorMeasurement {
         if (value != null) {
             if (value instanceof JSONObject)
                 parse((JSONObject) value);
-            else
+            else if ((value instanceof double[]) && (((double[])value).length == 3)) {
+                double[] values = (double[])value;
+                setLocation(values[FIELD_LATITUDE],values[FIELD_LONGITUDE],values[FIELD_ALTITUDE]);
+            } else
                 clear();
         }
     }
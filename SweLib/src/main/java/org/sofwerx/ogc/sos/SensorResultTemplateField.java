@@ -12,6 +12,8 @@ public class SensorResultTemplateField {
     private String name;
     private String quantityDefinition;
     private String unitOfMeasure;
+    private int decimalPlaces = -1;
+    private int significantDigits = -1;
 
     protected SensorResultTemplateField() {}
 
@@ -63,12 +65,71 @@ public class SensorResultTemplateField {
      */
     public void setUnitOfMeasure(String unitOfMeasure) { this.unitOfMeasure = unitOfMeasure; }
 
+    /**
+     * Gets the number of decimal places values are reported with
+     * @return the decimal places (or -1 if not set)
+     */
+    public int getDecimalPlaces() { return decimalPlaces; }
+
+    /**
+     * Reports values rounded to a number of decimal places (i.e. 1 for an AGC good to 0.1 dB);
+     * this replaces any significant digits setting
+     * @param decimalPlaces the decimal places (or -1 to report full precision)
+     */
+    public void setDecimalPlaces(int decimalPlaces) {
+        this.decimalPlaces = Math.min(decimalPlaces,SosNumberFormat.MAX_DECIMAL_PLACES);
+        this.significantDigits = -1;
+    }
+
+    /**
+     * Gets the number of significant digits values are reported with
+     * @return the significant digits (or -1 if not set)
+     */
+    public int getSignificantDigits() { return significantDigits; }
+
+    /**
+     * Reports values rounded to a number of significant digits; this replaces any decimal
+     * places setting
+     * @param significantDigits the significant digits (or -1 to report full precision)
+     */
+    public void setSignificantDigits(int significantDigits) {
+        this.significantDigits = (significantDigits < 1)?-1:significantDigits;
+        this.decimalPlaces = -1;
+    }
+
+    /**
+     * Is this field reported at less than full precision
+     * @return
+     */
+    public boolean hasPrecision() { return (decimalPlaces >= 0) || (significantDigits > 0); }
+
+    /**
+     * Writes a number at the precision set for this field
+     * @param out where to write the value
+     * @param value the value (NaN is written as 0.0)
+     */
+    protected void appendNumber(StringBuilder out, double value) {
+        if (Double.isNaN(value))
+            out.append("0.0"); //favor 0.0 rather than report NaN to the SOS
+        else if (decimalPlaces >= 0)
+            SosNumberFormat.appendFixed(out,value,decimalPlaces);
+        else if (significantDigits > 0)
+            SosNumberFormat.appendSignificant(out,value,significantDigits);
+        else
+            out.append(value);
+    }
+
     protected final static String NAME_NAME = "name";
     protected final static String NAME_DEFINITION = "definition";
     protected final static String NAME_CODE = "code";
     protected final static String TAG_NAME_FIELD = "swe:field";
     protected final static String TAG_NAME_QUANTITY = "swe:Quantity";
     protected final static String TAG_NAME_TEXT = "swe:Text";
+    protected final static String TAG_NAME_COUNT = "swe:Count";
+    protected final static String TAG_NAME_BOOLEAN = "swe:Boolean";
+    protected final static String TAG_NAME_CATEGORY = "swe:Category";
+    protected final static String TAG_NAME_CODESPACE = "swe:codeSpace";
+    protected final static String NAME_XLINK_HREF = "xlink:href";
     protected final static String TAG_NAME_UOM = "swe:uom";
     protected final static String TAG_NAME_LABEL = "swe:label";
     protected final static String NAME_REFERENCE_FRAME = "referenceFrame";
@@ -128,6 +189,14 @@ public class SensorResultTemplateField {
                     template = new SensorTimeResultTemplateField();
                 else if (SensorLocationResultTemplateField.LOC_VALUE_NAME.equalsIgnoreCase(name))
                     template = new SensorLocationResultTemplateField();
+                else if (hasChild(field,TAG_NAME_COUNT))
+                    template = new SensorCountResultTemplateField();
+                else if (hasChild(field,TAG_NAME_BOOLEAN))
+                    template = new SensorBooleanResultTemplateField();
+                else if (hasChild(field,TAG_NAME_CATEGORY))
+                    template = new SensorCategoryResultTemplateField();
+                else if (hasChild(field,TAG_NAME_TEXT))
+                    template = new SensorTextResultTemplateField();
                 else
                     template = new SensorResultTemplateField();
             } else
@@ -145,6 +214,81 @@ public class SensorResultTemplateField {
         return template;
     }
 
+    private static boolean hasChild(Element field, String tag) {
+        NodeList children = field.getElementsByTagName(tag);
+        return (children != null) && (children.getLength() > 0);
+    }
+
+    /**
+     * Gets the element that describes the value type within a field (i.e. the swe:Count in a swe:field)
+     * @param field the field element
+     * @param tag the type tag (i.e. TAG_NAME_COUNT)
+     * @return the element (or null if not found)
+     */
+    protected static Element getTypeElement(Element field, String tag) {
+        if (field == null)
+            return null;
+        NodeList children = field.getElementsByTagName(tag);
+        if ((children == null) || (children.getLength() < 1))
+            return null;
+        return (Element)children.item(0);
+    }
+
+    /**
+     * Gets an optional uom code within a type element
+     * @param typeElement (i.e. the swe:Count element)
+     * @return the uom code (or null if none)
+     */
+    protected static String getUomCode(Element typeElement) {
+        Element uom = getTypeElement(typeElement,TAG_NAME_UOM);
+        if (uom == null)
+            return null;
+        String code = uom.getAttribute(NAME_CODE);
+        return ((code == null) || (code.length() == 0))?null:code;
+    }
+
+    /**
+     * How many tokens this field takes up in resultValues
+     * @return
+     */
+    public int getTokenCount() { return 1; }
+
+    /**
+     * Decodes the value for this field from resultValues
+     * @param values the result values
+     * @param block the block (row)
+     * @param token the index of the first token for this field within the block
+     * @return the value (a Double for a quantity)
+     * @throws NumberFormatException if the token does not hold a valid value for this field
+     */
+    public Object decode(SosResultValues values, int block, int token) throws NumberFormatException {
+        return values.getDouble(block,token);
+    }
+
+    /**
+     * Writes a value for this field in resultValues format
+     * @param value the value
+     * @param out where to write the value
+     */
+    public void encode(Object value, StringBuilder out) {
+        if (value instanceof Double)
+            appendNumber(out,(Double)value);
+        else if (value instanceof Float) {
+            float valueF = (Float)value;
+            if (Float.isNaN(valueF))
+                out.append("0.0"); //favor 0.0 rather than report NaN to the SOS
+            else if (hasPrecision())
+                appendNumber(out,valueF);
+            else
+                out.append(valueF);
+        } else if (value instanceof Integer)
+            out.append((int)(Integer)value);
+        else if (value instanceof Long)
+            out.append((long)(Long)value);
+        else if (value != null)
+            out.append(value.toString());
+    }
+
     public void parse(Element field) {
         if (field == null)
             return;
@@ -159,6 +303,16 @@ public class SensorResultTemplateField {
         }
     }
 
+    /**
+     * Writes out everything that ends up in this field's template XML, so two fields with the
+     * same description produce the same XML (precision is left out as it only affects results)
+     * @param out
+     */
+    protected void describe(StringBuilder out) {
+        out.append(getClass().getSimpleName()).append('\u0000').append(name).append('\u0000')
+                .append(quantityDefinition).append('\u0000').append(unitOfMeasure);
+    }
+
     public void addToElement(Document doc, Element element) {
         if ((doc == null) || (element == null)) {
             Log.e(SosIpcTransceiver.TAG,"Neither doc nor element can be null in SensorResultTemplateField.addToElement()");
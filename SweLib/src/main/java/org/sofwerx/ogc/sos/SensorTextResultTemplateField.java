@@ -40,6 +40,14 @@ public class SensorTextResultTemplateField  extends SensorResultTemplateField {
         if (field == null)
             return;
         setName(field.getAttribute(NAME_NAME));
+        Element text = getTypeElement(field,TAG_NAME_TEXT);
+        if (text != null)
+            setQuantityDefinition(text.getAttribute(NAME_DEFINITION));
+    }
+
+    @Override
+    public Object decode(SosResultValues values, int block, int token) {
+        return values.getString(block,token);
     }
 
     @Override
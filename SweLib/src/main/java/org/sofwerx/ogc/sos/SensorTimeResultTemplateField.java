@@ -40,6 +40,26 @@ public class SensorTimeResultTemplateField extends SensorResultTemplateField {
         quantity.appendChild(uom);
     }
 
+    /**
+     * Decodes an ISO 8601 time
+     * @return UNIX time as a Long
+     */
+    @Override
+    public Object decode(SosResultValues values, int block, int token) throws NumberFormatException {
+        long time = SosIpcTransceiver.parseTime(values.getString(block,token));
+        if (time == Long.MIN_VALUE)
+            throw new NumberFormatException("String was not ISO 8601 formatted time");
+        return time;
+    }
+
+    @Override
+    public void encode(Object value, StringBuilder out) {
+        if (value instanceof Long)
+            out.append(SosIpcTransceiver.formatTime((Long)value));
+        else if (value != null)
+            out.append(value.toString());
+    }
+
     /**
      * Does this measurement have all required fields
      * @return
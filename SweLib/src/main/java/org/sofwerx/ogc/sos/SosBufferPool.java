@@ -0,0 +1,66 @@
+package org.sofwerx.ogc.sos;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a few growable byte buffers around so that serializing an operation does not have to
+ * grow a new buffer from scratch every time. Buffers are acquired, written to, copied out once
+ * as the final payload, then released back to the pool.
+ */
+public class SosBufferPool {
+    private final static int MAX_POOLED_BUFFERS = 4;
+    private final static int INITIAL_CAPACITY = 4096;
+    private final static int MAX_POOLED_CAPACITY = 1024 * 256; //larger buffers are left for garbage collection rather than held forever
+    private final static ConcurrentLinkedQueue<Buffer> pool = new ConcurrentLinkedQueue<>();
+    private final static AtomicInteger pooled = new AtomicInteger(0);
+
+    /**
+     * A growable byte buffer that can hand out its contents without an intermediate copy
+     */
+    public static class Buffer extends ByteArrayOutputStream {
+        private Buffer() { super(INITIAL_CAPACITY); }
+
+        /**
+         * Copies the contents into an array of exactly the right size
+         * @return
+         */
+        public byte[] toExactArray() { return Arrays.copyOf(buf,count); }
+
+        /**
+         * Gets the backing array; only the first size() bytes are valid
+         * @return
+         */
+        public byte[] getArray() { return buf; }
+
+        private int capacity() { return buf.length; }
+    }
+
+    /**
+     * Gets an empty buffer from the pool (or a new one if the pool is empty)
+     * @return
+     */
+    public static Buffer acquire() {
+        Buffer buffer = pool.poll();
+        if (buffer == null)
+            return new Buffer();
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool; the buffer must not be used after this
+     * @param buffer
+     */
+    public static void release(Buffer buffer) {
+        if ((buffer == null) || (buffer.capacity() > MAX_POOLED_CAPACITY))
+            return;
+        buffer.reset();
+        if (pooled.incrementAndGet() <= MAX_POOLED_BUFFERS)
+            pool.offer(buffer);
+        else
+            pooled.decrementAndGet();
+    }
+}
@@ -0,0 +1,292 @@
+package org.sofwerx.ogc.sos;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+/**
+ * One call to SosService.registerSensors(); each lane takes the next sensor off the queue once
+ * its current sensor is done. Calls running at the same time share the lanes.
+ */
+class SosBulkRegistration {
+    /**
+     * What a bulk registration needs from the SosService running it
+     */
+    interface Host {
+        /**
+         * Gets what a server has assigned to a sensor so far; the first time, it takes in what
+         * the sensor was given before (saved from an earlier run, or set by the app)
+         * @param target
+         * @param sensor
+         * @param endpoint
+         * @return
+         */
+        SosRegistration getRegistration(SosDestination target, SosSensor sensor, SosEndpoint endpoint);
+
+        SosTemplateRegistry getTemplateRegistry();
+
+        /**
+         * Takes the procedure and offering (and template, if one with the same layout is
+         * already known) that a server holds for a sensor
+         * @param response
+         * @param sensor
+         * @param registration
+         * @param endpoint
+         */
+        void adoptDiscovered(OperationGetCapabilitiesResponse response, SosSensor sensor, SosRegistration registration, SosEndpoint endpoint);
+
+        /**
+         * Saves what a server assigned to a sensor
+         * @param sensor
+         * @param endpoint
+         * @param registration
+         */
+        void saveRegistration(SosSensor sensor, SosEndpoint endpoint, SosRegistration registration);
+
+        /**
+         * Gives the sensor what this server assigned to it
+         * @param target
+         * @param endpoint
+         * @param sensor
+         * @param registration
+         */
+        void onRegistered(SosDestination target, SosEndpoint endpoint, SosSensor sensor, SosRegistration registration);
+
+        /**
+         * Sends one step to the server on the given lane
+         * @param target
+         * @param operation
+         * @param payload
+         * @param future
+         * @param endpoint
+         * @param lane
+         */
+        void send(SosDestination target, AbstractSosOperation operation, SosPayload payload, SosFuture<AbstractSosOperation> future, SosEndpoint endpoint, SosLane lane);
+
+        /**
+         * The registration finished or was cancelled
+         * @param bulk
+         */
+        void onFinished(SosBulkRegistration bulk);
+    }
+
+    private final Host host;
+    private final SosDestination target;
+    private final SosEndpoint endpoint;
+    private final ConcurrentLinkedQueue<SosSensor> queue;
+    private final HashSet<SosSensor> members;
+    private final SosLane[] lanes;
+    private final int total;
+    private final boolean discover;
+    private final long timeToLive;
+    private final AtomicInteger finished = new AtomicInteger(0);
+    private final CopyOnWriteArrayList<SosSensor> registered = new CopyOnWriteArrayList<>();
+    private final SosRegistrationListener progress;
+    private final SosFuture<ArrayList<SosSensor>> future = new SosFuture<>();
+
+    /**
+     * @param host
+     * @param target
+     * @param endpoint the server to register with
+     * @param sensors
+     * @param lanes the lanes to register on
+     * @param progress told as each sensor is registered or fails (or null)
+     * @param discover true == ask the server what it already holds first
+     * @param timeToLive how long each step is worth sending (0 == forever)
+     */
+    SosBulkRegistration(Host host, SosDestination target, SosEndpoint endpoint, Collection<SosSensor> sensors, SosLane[] lanes, SosRegistrationListener progress, boolean discover, long timeToLive) {
+        this.host = host;
+        this.target = target;
+        this.endpoint = endpoint;
+        this.queue = new ConcurrentLinkedQueue<>(sensors);
+        this.members = new HashSet<>(sensors);
+        this.total = queue.size();
+        this.progress = progress;
+        this.lanes = lanes;
+        this.discover = discover;
+        this.timeToLive = timeToLive;
+        future.setCancelAction(() -> host.onFinished(this)); //the lanes stop taking sensors once the future is done
+    }
+
+    /**
+     * Gets the future that completes with the sensors that were registered
+     * @return
+     */
+    SosFuture<ArrayList<SosSensor>> getFuture() { return future; }
+
+    boolean includes(SosSensor sensor) { return members.contains(sensor); }
+
+    void start() {
+        Log.i(SosIpcTransceiver.TAG,"Registering "+total+" sensors with "+endpoint.getUrl()+" "+lanes.length+" at a time");
+        if (discover)
+            discover();
+        else
+            startLanes();
+    }
+
+    private void startLanes() {
+        for (SosLane lane:lanes) {
+            if (!lane.post(() -> next(lane)))
+                future.fail(new SosException("SosService is shutting down"));
+        }
+    }
+
+    /**
+     * Asks the server once for everything it already holds and gives each sensor it knows
+     * its procedure and offering (and template, if one with the same layout has been seen)
+     */
+    private void discover() {
+        OperationGetCapabilities operation = new OperationGetCapabilities();
+        operation.setSections(OperationGetCapabilities.SECTION_CONTENTS);
+        operation.setTimeToLive(timeToLive);
+        SosPayload payload = null;
+        try {
+            payload = SosPayload.newFromOperation(operation);
+        } catch (ParserConfigurationException | TransformerException e) {
+            Log.e(SosIpcTransceiver.TAG,"Unable to convert SOS operation to XML: "+e.getMessage());
+        }
+        if (payload == null) {
+            startLanes();
+            return;
+        }
+        SosFuture<AbstractSosOperation> step = new SosFuture<>();
+        step.addListener(new SosFutureListener<AbstractSosOperation>() {
+            @Override
+            public void onSosSuccess(AbstractSosOperation result) {
+                if (result instanceof OperationGetCapabilitiesResponse) {
+                    OperationGetCapabilitiesResponse response = (OperationGetCapabilitiesResponse)result;
+                    host.getTemplateRegistry().register(response);
+                    for (SosSensor sensor:queue) {
+                        SosRegistration registration = host.getRegistration(target,sensor,endpoint);
+                        if (registration.getProcedure() == null)
+                            host.adoptDiscovered(response,sensor,registration,endpoint);
+                    }
+                }
+                startLanes();
+            }
+
+            @Override
+            public void onSosFailure(SosException error) {
+                Log.d(SosIpcTransceiver.TAG,"Unable to look for sensors on "+endpoint.getUrl()+" ("+error.getMessage()+"); registering all of them");
+                startLanes();
+            }
+        });
+        host.send(target,operation,payload,step,endpoint,lanes[0]);
+    }
+
+    /**
+     * Starts on the next sensor waiting for this lane
+     * @param lane
+     */
+    private void next(SosLane lane) {
+        if (future.isDone())
+            return;
+        SosSensor sensor = queue.poll();
+        if (sensor != null)
+            step(sensor,lane);
+    }
+
+    /**
+     * Sends the registration step this sensor needs next
+     * @param sensor
+     * @param lane
+     */
+    private void step(final SosSensor sensor, final SosLane lane) {
+        final SosRegistration registration = host.getRegistration(target,sensor,endpoint);
+        if (registration.isComplete()) {
+            host.onRegistered(target,endpoint,sensor,registration);
+            onFinished(sensor,null,lane);
+            return;
+        }
+        AbstractSosOperation operation;
+        if (registration.getProcedure() == null) {
+            if (!sensor.isReadyToRegisterSensor()) {
+                onFinished(sensor,new SosException("Sensor "+sensor.getId()+" does not have enough information to register with the SOS server"),lane);
+                return;
+            }
+            operation = new OperationInsertSensor(sensor);
+        } else if ((registration.getOffering() != null) && (sensor.getSensorMeasurements() != null) && !sensor.getSensorMeasurements().isEmpty()) {
+            OperationInsertResultTemplate templateStep = new OperationInsertResultTemplate(sensor);
+            templateStep.setOffering(registration.getOffering());
+            operation = templateStep;
+        } else {
+            onFinished(sensor,new SosException("Sensor "+sensor.getId()+" does not have enough information to register a result template"),lane);
+            return;
+        }
+        operation.setTimeToLive(timeToLive);
+        SosPayload payload = null;
+        try {
+            payload = SosPayload.newFromOperation(operation);
+        } catch (ParserConfigurationException | TransformerException e) {
+            Log.e(SosIpcTransceiver.TAG,"Unable to convert SOS operation to XML: "+e.getMessage());
+        }
+        if (payload == null) {
+            onFinished(sensor,new SosException(operation.getClass().getSimpleName()+" for sensor "+sensor.getId()+" could not be converted to XML"),lane);
+            return;
+        }
+        SosFuture<AbstractSosOperation> response = new SosFuture<>();
+        response.addListener(new SosFutureListener<AbstractSosOperation>() {
+            @Override
+            public void onSosSuccess(AbstractSosOperation result) {
+                if (result instanceof OperationInsertSensorResponse) {
+                    OperationInsertSensorResponse insertSensorResponse = (OperationInsertSensorResponse)result;
+                    if ((sensor.getUniqueId() == null) || !sensor.getUniqueId().equalsIgnoreCase(insertSensorResponse.getAssignedProcedure())) {
+                        onFinished(sensor,new SosException("InsertSensorResponse was for sensor "+insertSensorResponse.getAssignedProcedure()),lane);
+                        return;
+                    }
+                    registration.setProcedure(insertSensorResponse.getAssignedProcedure());
+                    registration.setOffering(insertSensorResponse.getAssignedOffering());
+                    step(sensor,lane);
+                } else if (result instanceof OperationInsertResultTemplateResponse) {
+                    String template = ((OperationInsertResultTemplateResponse)result).getAcceptedTemplate();
+                    if ((template == null) || !template.startsWith(registration.getProcedure())) {
+                        onFinished(sensor,new SosException("InsertResultTemplateResponse was for template "+template),lane);
+                        return;
+                    }
+                    registration.setTemplate(template);
+                    host.saveRegistration(sensor,endpoint,registration);
+                    host.onRegistered(target,endpoint,sensor,registration);
+                    onFinished(sensor,null,lane);
+                } else
+                    onFinished(sensor,new SosException("Unexpected response from SOS server"),lane);
+            }
+
+            @Override
+            public void onSosFailure(SosException error) { onFinished(sensor,error,lane); }
+        });
+        host.send(target,operation,payload,response,endpoint,lane);
+    }
+
+    /**
+     * Reports how a sensor's registration ended and moves this lane on to the next sensor
+     * @param sensor
+     * @param error null == registered
+     * @param lane
+     */
+    private void onFinished(SosSensor sensor, SosException error, SosLane lane) {
+        int count = finished.incrementAndGet();
+        if (error == null) {
+            registered.add(sensor);
+            if (progress != null)
+                progress.onSensorRegistered(sensor,count,total);
+        } else {
+            Log.w(SosIpcTransceiver.TAG,"Unable to register sensor "+sensor.getId()+": "+error.getMessage());
+            if (progress != null)
+                progress.onSensorRegistrationFailed(sensor,error,count,total);
+        }
+        if (count >= total) {
+            Log.i(SosIpcTransceiver.TAG,registered.size()+" of "+total+" sensors registered with "+endpoint.getUrl());
+            host.onFinished(this);
+            future.complete(new ArrayList<>(registered));
+        } else
+            next(lane);
+    }
+}
@@ -0,0 +1,130 @@
+package org.sofwerx.ogc.sos;
+
+import android.util.Log;
+
+/**
+ * Stops requests to an SOS server that keeps failing. After enough failures in a row the
+ * breaker opens and requests fail right away instead of waiting out connect timeouts. Once
+ * the open time has passed a single probe request is let through (half-open); if it works
+ * the breaker closes again, otherwise it stays open for another round.
+ */
+public class SosCircuitBreaker {
+    public enum State {CLOSED,OPEN,HALF_OPEN}
+    public final static int DEFAULT_FAILURE_THRESHOLD = 3;
+    public final static long DEFAULT_OPEN_TIME = 1000l * 30l;
+    private final String name;
+    private final int failureThreshold;
+    private final long openTime;
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openUntil = Long.MIN_VALUE;
+    private boolean probeInFlight = false;
+
+    /**
+     * @param name used for logging (i.e. the server URL)
+     * @param failureThreshold failures in a row that open the breaker
+     * @param openTime how long to fail fast before probing the server again (in ms)
+     */
+    public SosCircuitBreaker(String name, int failureThreshold, long openTime) {
+        this.name = name;
+        this.failureThreshold = Math.max(1,failureThreshold);
+        this.openTime = Math.max(0l,openTime);
+    }
+
+    public SosCircuitBreaker(String name) { this(name,DEFAULT_FAILURE_THRESHOLD,DEFAULT_OPEN_TIME); }
+
+    /**
+     * Can a request be made right now; when this returns true the caller must report the
+     * outcome with onSuccess() or onFailure()
+     * @return false == fail fast, the server is considered down
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil)
+                    return false;
+                state = State.HALF_OPEN;
+                Log.d(SosIpcTransceiver.TAG,"Circuit for "+name+" is half-open; probing server");
+                probeInFlight = true;
+                return true;
+
+            case HALF_OPEN:
+                if (probeInFlight)
+                    return false;
+                probeInFlight = true;
+                return true;
+
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * The request reached the server
+     */
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED)
+            Log.i(SosIpcTransceiver.TAG,"Circuit for "+name+" closed; server is reachable again");
+        state = State.CLOSED;
+        failures = 0;
+        probeInFlight = false;
+    }
+
+    /**
+     * The request could not reach the server
+     */
+    public synchronized void onFailure() {
+        failures++;
+        probeInFlight = false;
+        if ((state == State.HALF_OPEN) || (failures >= failureThreshold)) {
+            if (state != State.OPEN)
+                Log.w(SosIpcTransceiver.TAG,"Circuit for "+name+" opened after "+failures+" failures");
+            state = State.OPEN;
+            openUntil = System.currentTimeMillis() + openTime;
+        }
+    }
+
+    /**
+     * The request was abandoned by the caller (i.e. cancelled or past its deadline) so it says
+     * nothing about the server; a half-open probe is released for the next request
+     */
+    public synchronized void onAbandoned() { probeInFlight = false; }
+
+    /**
+     * Would a request be let through right now (without claiming the half-open probe)
+     * @return
+     */
+    public synchronized boolean isAvailable() {
+        switch (state) {
+            case OPEN:
+                return System.currentTimeMillis() >= openUntil;
+
+            case HALF_OPEN:
+                return !probeInFlight;
+
+            default:
+                return true;
+        }
+    }
+
+    public synchronized State getState() { return state; }
+
+    /**
+     * Gets how long until the breaker will let a probe through
+     * @return time (in ms), or 0 if requests are allowed now
+     */
+    public synchronized long getTimeUntilRetry() {
+        if (state != State.OPEN)
+            return 0l;
+        return Math.max(0l,openUntil - System.currentTimeMillis());
+    }
+
+    /**
+     * Closes the breaker (i.e. after the network comes back)
+     */
+    public synchronized void reset() {
+        state = State.CLOSED;
+        failures = 0;
+        probeInFlight = false;
+    }
+}
@@ -0,0 +1,121 @@
+package org.sofwerx.ogc.sos;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+
+/**
+ * The XML machinery each thread uses to read and write SOS operations. Looking up
+ * DocumentBuilderFactory/TransformerFactory and building a parser or transformer is far more
+ * expensive than the parse itself, so each thread builds these once and resets them between
+ * uses. Get the context with get() each time rather than holding on to it, and do not keep a
+ * builder or transformer past the call that needed it.
+ */
+public class SosCodecContext {
+    private final static DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+    private final static TransformerFactory transformerFactory = TransformerFactory.newInstance();
+    private final static ThreadLocal<SosCodecContext> contexts = new ThreadLocal<SosCodecContext>() {
+        @Override
+        protected SosCodecContext initialValue() { return new SosCodecContext(); }
+    };
+    private DocumentBuilder builder;
+    private Transformer transformer;
+    private SimpleDateFormat dateFormat; //SimpleDateFormat is not thread safe, so each thread gets its own
+    private SimpleDateFormat backupDateFormat;
+
+    private SosCodecContext() {}
+
+    /**
+     * Gets the context for the calling thread
+     * @return
+     */
+    public static SosCodecContext get() { return contexts.get(); }
+
+    /**
+     * Gets this thread's parser, reset to a clean state
+     * @return
+     * @throws ParserConfigurationException
+     */
+    public DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+        if (builder == null) {
+            synchronized (builderFactory) { //factories are not guaranteed to be thread safe
+                builder = builderFactory.newDocumentBuilder();
+            }
+        } else
+            builder.reset();
+        return builder;
+    }
+
+    /**
+     * Creates an empty document
+     * @return
+     * @throws ParserConfigurationException
+     */
+    public Document newDocument() throws ParserConfigurationException {
+        return getDocumentBuilder().newDocument();
+    }
+
+    /**
+     * Parses XML
+     * @param source
+     * @return
+     * @throws ParserConfigurationException
+     * @throws IOException
+     * @throws SAXException
+     */
+    public Document parse(InputSource source) throws ParserConfigurationException, IOException, SAXException {
+        return getDocumentBuilder().parse(source);
+    }
+
+    /**
+     * Gets this thread's ISO 8601 date format
+     * @return
+     */
+    public SimpleDateFormat getDateFormat() {
+        if (dateFormat == null)
+            dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX", Locale.US);
+        return dateFormat;
+    }
+
+    /**
+     * Gets this thread's date format for times without seconds or a time zone
+     * @return
+     */
+    public SimpleDateFormat getBackupDateFormat() {
+        if (backupDateFormat == null)
+            backupDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm", Locale.US);
+        return backupDateFormat;
+    }
+
+    /**
+     * Gets this thread's transformer, reset and set up the way SOS operations are written
+     * @param omitXmlDeclaration true == leave out the XML declaration (i.e. when the XML goes inside a SOAP envelope)
+     * @return
+     * @throws TransformerException
+     */
+    public Transformer getTransformer(boolean omitXmlDeclaration) throws TransformerException {
+        if (transformer == null) {
+            synchronized (transformerFactory) {
+                transformer = transformerFactory.newTransformer();
+            }
+        } else
+            transformer.reset(); //this also clears the output properties, so they are set again below
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, omitXmlDeclaration?"yes":"no");
+        transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        return transformer;
+    }
+}
@@ -0,0 +1,178 @@
+package org.sofwerx.ogc.sos;
+
+import android.util.Log;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Decodes incoming IPC/SqAN messages on a pool of threads (one per core by default) and hands
+ * them to the listener in the order they arrived from each source. A source is the sending
+ * app plus, for an InsertResult, its template, so each sensor's readings arrive in order
+ * while different sensors are decoded at the same time. Idle threads stop after a while, so
+ * an unused pipeline costs nothing. Received InsertResults are copied into their sensor just
+ * before they are delivered (unless the registry is set to lazy decoding), so the sensor is
+ * always left holding the latest reading.
+ */
+public class SosDecodePipeline {
+    private final static long IDLE_TIME = 1000l * 30l;
+    private final static Object FAILED = new Object(); //marks a message that could not be decoded so the ones behind it are not held up
+    private final ThreadPoolExecutor executor;
+    private final HashMap<String,Source> sources = new HashMap<>();
+    private final AtomicInteger backlog = new AtomicInteger(0);
+
+    /**
+     * The messages from one source that have been decoded but are still waiting for an
+     * earlier message from that source
+     */
+    private static class Source {
+        private final String key;
+        private long nextToAssign = 0l;
+        private long nextToDeliver = 0l;
+        private boolean delivering = false;
+        private final HashMap<Long,Object> decoded = new HashMap<>();
+
+        private Source(String key) { this.key = key; }
+    }
+
+    public SosDecodePipeline() { this(Runtime.getRuntime().availableProcessors()); }
+
+    /**
+     * @param threads the most messages to decode at once
+     */
+    public SosDecodePipeline(int threads) {
+        final AtomicInteger count = new AtomicInteger(0);
+        threads = Math.max(1,threads);
+        executor = new ThreadPoolExecutor(threads,threads,IDLE_TIME,TimeUnit.MILLISECONDS,new LinkedBlockingQueue<Runnable>(),new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task,"SosDecode-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Gets the number of messages waiting to be decoded or delivered
+     * @return
+     */
+    public int getBacklog() { return backlog.get(); }
+
+    /**
+     * Queues a message to be decoded and passed to the listener
+     * @param origin the app that sent the message
+     * @param input the message
+     * @param registry used to decode InsertResults into the sensor for their template (or null)
+     * @param listener
+     */
+    public void submit(String origin, final String input, final SosTemplateRegistry registry, final SosMessageListener listener) {
+        if (input == null)
+            return;
+        String template = SosMessageClassifier.getTemplate(input);
+        String key = (template == null)?origin:(origin+'|'+template);
+        final Source source;
+        final long sequence;
+        synchronized (sources) {
+            Source existing = sources.get(key);
+            if (existing == null) {
+                existing = new Source(key);
+                sources.put(key,existing);
+            }
+            source = existing;
+            synchronized (source) {
+                sequence = source.nextToAssign++;
+            }
+        }
+        backlog.incrementAndGet();
+        try {
+            executor.execute(() -> onDecoded(source,sequence,decode(input,registry),registry,listener));
+        } catch (RejectedExecutionException e) {
+            onDecoded(source,sequence,FAILED,registry,listener);
+        }
+    }
+
+    private static Object decode(String input, SosTemplateRegistry registry) {
+        try {
+            Document doc = SosCodecContext.get().parse(new InputSource(new StringReader(input)));
+            if (doc != null) {
+                AbstractSosOperation operation = AbstractSosOperation.newFromXML(doc,registry,false); //applied in order when delivered
+                if (operation != null)
+                    return operation;
+            }
+        } catch (ParserConfigurationException | IOException | SAXException e) {
+            Log.e(SosIpcTransceiver.TAG, "SOS IPC broadcast was not XML: " + input);
+        } catch (RuntimeException e) {
+            Log.e(SosIpcTransceiver.TAG, "Unable to decode SOS IPC broadcast: " + e.getMessage());
+        }
+        return FAILED;
+    }
+
+    /**
+     * Holds a decoded message until every earlier message from its source has been delivered,
+     * then delivers it and anything behind it that is ready. Only one thread delivers for a
+     * source at a time, and the listener is called without holding any lock.
+     * @param source
+     * @param sequence
+     * @param result the operation (or FAILED)
+     * @param registry
+     * @param listener
+     */
+    private void onDecoded(Source source, long sequence, Object result, SosTemplateRegistry registry, SosMessageListener listener) {
+        boolean applyResults = !((registry == null)?SosTemplateRegistry.getShared():registry).isLazyDecoding();
+        synchronized (source) {
+            source.decoded.put(sequence,result);
+            if (source.delivering)
+                return; //the thread already delivering for this source will pick this up
+            source.delivering = true;
+        }
+        while (true) {
+            Object next;
+            synchronized (source) {
+                next = source.decoded.remove(source.nextToDeliver);
+                if (next == null) {
+                    source.delivering = false;
+                    break;
+                }
+                source.nextToDeliver++;
+            }
+            backlog.decrementAndGet();
+            if (next == FAILED)
+                continue;
+            if (applyResults && (next instanceof OperationInsertResult))
+                ((OperationInsertResult)next).applyToSensor();
+            if (listener != null) {
+                try {
+                    listener.onSosOperationReceived((AbstractSosOperation)next);
+                } catch (RuntimeException e) {
+                    Log.e(SosIpcTransceiver.TAG,"SosMessageListener failed: "+e.getMessage());
+                }
+            }
+        }
+        synchronized (sources) { //forget sources with nothing in flight so one-off senders do not pile up
+            synchronized (source) {
+                if (!source.delivering && (source.nextToDeliver == source.nextToAssign) && (sources.get(source.key) == source))
+                    sources.remove(source.key);
+            }
+        }
+    }
+
+    /**
+     * Stops decoding; messages not yet decoded are dropped
+     */
+    public void shutdown() { executor.shutdownNow(); }
+}
@@ -0,0 +1,303 @@
+package org.sofwerx.ogc.sos;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An ordered set of SOS servers that serve the same data (i.e. a primary and a standby).
+ * Requests go to the first healthy server and fail over down the list. Each server has its
+ * own lane so a hedged read can run against two servers at once, and its own registration
+ * since each server assigns its own procedure, offering and template.
+ */
+public class SosDestination {
+    public final static double DEFAULT_HEDGE_PERCENTILE = 0.95d;
+    public final static long DEFAULT_HEDGE_DELAY = 1000l;
+    private final static long MIN_HEDGE_DELAY = 50l;
+    private final static int MIN_HEDGE_SAMPLES = 5;
+    private final List<SosEndpoint> endpoints;
+    private final ConcurrentHashMap<SosEndpoint,SosLane> lanes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SosEndpoint,SosRegistration> registrations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SosSensor,ConcurrentHashMap<SosEndpoint,SosRegistration>> sensorRegistrations = new ConcurrentHashMap<>(); //other sensors the service registers (i.e. a fleet)
+    private volatile boolean hedging = false;
+    private volatile double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param endpoints the servers in order of preference
+     */
+    public SosDestination(List<SosEndpoint> endpoints) {
+        ArrayList<SosEndpoint> list = new ArrayList<>();
+        if (endpoints != null) {
+            for (SosEndpoint endpoint:endpoints) {
+                if ((endpoint != null) && !list.contains(endpoint))
+                    list.add(endpoint);
+            }
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Builds a destination from server URLs
+     * @param urls the server URLs in order of preference
+     * @param retryPolicy how to retry each server (or null for the default)
+     * @return
+     */
+    public static SosDestination newFromUrls(Collection<String> urls, SosRetryPolicy retryPolicy) {
+        return newFromUrls(urls,retryPolicy,null);
+    }
+
+    /**
+     * Builds a destination from server URLs, keeping the servers already in another destination
+     * (with their circuit breakers and latency history) for any URL that is in both
+     * @param urls the server URLs in order of preference
+     * @param retryPolicy how to retry each new server (or null for the default)
+     * @param previous the destination being replaced (or null)
+     * @return
+     */
+    public static SosDestination newFromUrls(Collection<String> urls, SosRetryPolicy retryPolicy, SosDestination previous) {
+        ArrayList<SosEndpoint> endpoints = new ArrayList<>();
+        if (urls != null) {
+            for (String url:urls) {
+                if (url == null)
+                    continue;
+                SosEndpoint endpoint = (previous == null)?null:previous.getEndpoint(url);
+                endpoints.add((endpoint == null)?new SosEndpoint(url,retryPolicy,null):endpoint);
+            }
+        }
+        return new SosDestination(endpoints);
+    }
+
+    public List<SosEndpoint> getEndpoints() { return endpoints; }
+
+    /**
+     * Gets the server with this URL
+     * @param url
+     * @return the server (or null if it is not part of this destination)
+     */
+    public SosEndpoint getEndpoint(String url) {
+        if (url == null)
+            return null;
+        for (SosEndpoint endpoint:endpoints) {
+            if (url.equals(endpoint.getUrl()))
+                return endpoint;
+        }
+        return null;
+    }
+
+    /**
+     * Are these exactly the servers in this destination, in the same order
+     * @param urls
+     * @return
+     */
+    public boolean hasUrls(Collection<String> urls) {
+        ArrayList<String> ours = new ArrayList<>(endpoints.size());
+        for (SosEndpoint endpoint:endpoints)
+            ours.add(endpoint.getUrl());
+        ArrayList<String> theirs = new ArrayList<>();
+        if (urls != null) {
+            for (String url:urls) {
+                if (url != null)
+                    theirs.add(url);
+            }
+        }
+        return ours.equals(theirs);
+    }
+
+    /**
+     * Takes over the registrations and lanes of every server this destination shares (by URL)
+     * with the one it replaces, so sensors are not registered again and requests already
+     * queued for those servers still go out. Call this before shutting the old destination down.
+     * @param previous the destination being replaced
+     */
+    public void takeOver(SosDestination previous) {
+        if ((previous == null) || (previous == this))
+            return;
+        for (SosEndpoint endpoint:endpoints) {
+            SosEndpoint old = previous.getEndpoint(endpoint.getUrl());
+            if (old == null)
+                continue;
+            SosRegistration registration = previous.registrations.get(old);
+            if (registration != null)
+                registrations.putIfAbsent(endpoint,registration);
+            for (SosSensor sensor:previous.sensorRegistrations.keySet()) {
+                registration = previous.sensorRegistrations.get(sensor).get(old);
+                if (registration == null)
+                    continue;
+                ConcurrentHashMap<SosEndpoint,SosRegistration> bySensor = sensorRegistrations.get(sensor);
+                if (bySensor == null) {
+                    bySensor = new ConcurrentHashMap<>();
+                    ConcurrentHashMap<SosEndpoint,SosRegistration> existing = sensorRegistrations.putIfAbsent(sensor,bySensor);
+                    if (existing != null)
+                        bySensor = existing;
+                }
+                bySensor.putIfAbsent(endpoint,registration);
+            }
+            synchronized (previous.lanes) {
+                SosLane lane = previous.lanes.remove(old);
+                if (lane != null) {
+                    synchronized (lanes) {
+                        if (shutdown || (lanes.putIfAbsent(endpoint,lane) != null))
+                            lane.shutdown();
+                    }
+                }
+            }
+        }
+    }
+    public boolean isEmpty() { return endpoints.isEmpty(); }
+
+    /**
+     * Gets the most preferred server
+     * @return
+     */
+    public SosEndpoint getPrimary() { return endpoints.isEmpty()?null:endpoints.get(0); }
+
+    /**
+     * Gets the server requests should go to now: the first healthy one in order, or the
+     * primary if none are healthy (so the request fails fast on its circuit breaker)
+     * @return the server (or null if there are no servers)
+     */
+    public SosEndpoint getActive() {
+        for (SosEndpoint endpoint:endpoints) {
+            if (endpoint.isHealthy())
+                return endpoint;
+        }
+        return getPrimary();
+    }
+
+    /**
+     * Gets the next healthy server to fail over to
+     * @param tried servers that have already been tried for this request
+     * @return the server (or null if there are no more healthy servers)
+     */
+    public SosEndpoint getNext(Collection<SosEndpoint> tried) {
+        for (SosEndpoint endpoint:endpoints) {
+            if (endpoint.isHealthy() && ((tried == null) || !tried.contains(endpoint)))
+                return endpoint;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the lane requests to this server run on
+     * @param endpoint
+     * @return the lane (or null if this destination has been shut down)
+     */
+    public SosLane getLane(SosEndpoint endpoint) {
+        if ((endpoint == null) || shutdown)
+            return null;
+        SosLane lane = lanes.get(endpoint);
+        if (lane == null) {
+            synchronized (lanes) {
+                lane = lanes.get(endpoint);
+                if ((lane == null) && !shutdown) {
+                    lane = new SosLane("HTTP-"+(endpoints.indexOf(endpoint)+1));
+                    lanes.put(endpoint,lane);
+                }
+            }
+        }
+        return lane;
+    }
+
+    /**
+     * Gets what a server assigned to the sensor
+     * @param endpoint
+     * @return
+     */
+    public SosRegistration getRegistration(SosEndpoint endpoint) {
+        SosRegistration registration = registrations.get(endpoint);
+        if (registration == null) {
+            registration = new SosRegistration();
+            SosRegistration existing = registrations.putIfAbsent(endpoint,registration);
+            if (existing != null)
+                registration = existing;
+        }
+        return registration;
+    }
+
+    /**
+     * Gets what a server assigned to one of several sensors the service registers (i.e. with
+     * SosService.registerSensors()) other than its own sensor
+     * @param sensor
+     * @param endpoint
+     * @return
+     */
+    public SosRegistration getRegistration(SosSensor sensor, SosEndpoint endpoint) {
+        ConcurrentHashMap<SosEndpoint,SosRegistration> bySensor = sensorRegistrations.get(sensor);
+        if (bySensor == null) {
+            bySensor = new ConcurrentHashMap<>();
+            ConcurrentHashMap<SosEndpoint,SosRegistration> existing = sensorRegistrations.putIfAbsent(sensor,bySensor);
+            if (existing != null)
+                bySensor = existing;
+        }
+        SosRegistration registration = bySensor.get(endpoint);
+        if (registration == null) {
+            registration = new SosRegistration();
+            SosRegistration existing = bySensor.putIfAbsent(endpoint,registration);
+            if (existing != null)
+                registration = existing;
+        }
+        return registration;
+    }
+
+    /**
+     * Forgets what every server assigned to the service's own sensor (i.e. when a different sensor is used)
+     */
+    public void clearRegistrations() { registrations.clear(); }
+
+    /**
+     * Should idempotent reads (GetCapabilities and GetResult) also be sent to a second server
+     * if the first is slow to answer
+     * @return
+     */
+    public boolean isHedging() { return hedging; }
+
+    /**
+     * Sets if idempotent reads should be hedged
+     * @param hedging
+     */
+    public void setHedging(boolean hedging) { this.hedging = hedging; }
+
+    /**
+     * Sets the latency percentile after which a hedged read is sent to the next server
+     * @param hedgePercentile 0 to 1 (i.e. 0.95)
+     */
+    public void setHedgePercentile(double hedgePercentile) { this.hedgePercentile = Math.min(1d,Math.max(0d,hedgePercentile)); }
+    public double getHedgePercentile() { return hedgePercentile; }
+
+    /**
+     * Gets how long to wait on a server before hedging a read to the next one
+     * @param endpoint the server the read was sent to first
+     * @return time (in ms)
+     */
+    public long getHedgeDelay(SosEndpoint endpoint) {
+        if ((endpoint == null) || (endpoint.getLatencySampleCount() < MIN_HEDGE_SAMPLES))
+            return DEFAULT_HEDGE_DELAY;
+        return Math.max(MIN_HEDGE_DELAY,endpoint.getLatencyPercentile(hedgePercentile));
+    }
+
+    /**
+     * Gets the number of requests waiting across all servers
+     * @return
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (SosLane lane:lanes.values())
+            depth += lane.getQueueDepth();
+        return depth;
+    }
+
+    /**
+     * Stops every lane; queued requests are dropped
+     */
+    public void shutdown() {
+        synchronized (lanes) {
+            shutdown = true;
+            for (SosLane lane:lanes.values())
+                lane.shutdown();
+            lanes.clear();
+        }
+    }
+}
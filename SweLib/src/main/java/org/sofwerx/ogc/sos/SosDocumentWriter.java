@@ -0,0 +1,49 @@
+package org.sofwerx.ogc.sos;
+
+import org.w3c.dom.Document;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * Serializes an operation's XML straight into an HTTP request as it is sent, for when the
+ * operation does not also need to be held as bytes for IPC. The document is built once and
+ * can be written again for retries.
+ */
+public class SosDocumentWriter implements HttpHelper.BodyWriter {
+    private final Document doc;
+
+    public SosDocumentWriter(Document doc) { this.doc = doc; }
+
+    /**
+     * Builds the operation's document
+     * @param operation
+     * @return the writer (or null if the operation could not be turned into XML)
+     * @throws ParserConfigurationException
+     */
+    public static SosDocumentWriter newFromOperation(AbstractSosOperation operation) throws ParserConfigurationException {
+        if (operation == null)
+            return null;
+        Document doc = operation.toXML();
+        return (doc == null)?null:new SosDocumentWriter(doc);
+    }
+
+    @Override
+    public long getLength(boolean soapWrapped) { return -1l; }
+
+    @Override
+    public void writeTo(OutputStream out, boolean soapWrapped) throws IOException {
+        synchronized (doc) { //DOM reads are not thread safe, and hedged requests may write at the same time
+            try {
+                SosCodecContext.get().getTransformer(soapWrapped).transform(new DOMSource(doc),new StreamResult(out));
+            } catch (TransformerException e) {
+                throw new IOException("Unable to write SOS operation: "+e.getMessage(),e);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.sofwerx.ogc.sos;
+
+import java.util.Arrays;
+
+/**
+ * An SOS server along with the state used to decide whether it is worth contacting and how
+ * long it usually takes to answer
+ */
+public class SosEndpoint {
+    private final static int LATENCY_SAMPLES = 32;
+    private final String url;
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount = 0;
+    private int latencyNext = 0;
+    private final SosCircuitBreaker circuitBreaker;
+    private volatile SosRetryPolicy retryPolicy;
+    private volatile HttpHelper.Compression requestCompression = HttpHelper.Compression.NONE;
+
+    public SosEndpoint(String url, SosRetryPolicy retryPolicy, SosCircuitBreaker circuitBreaker) {
+        this.url = url;
+        this.retryPolicy = (retryPolicy == null)?new SosRetryPolicy():retryPolicy;
+        this.circuitBreaker = (circuitBreaker == null)?new SosCircuitBreaker(url):circuitBreaker;
+    }
+
+    public SosEndpoint(String url) { this(url,null,null); }
+
+    public String getUrl() { return url; }
+    public SosCircuitBreaker getCircuitBreaker() { return circuitBreaker; }
+    public SosRetryPolicy getRetryPolicy() { return retryPolicy; }
+    public void setRetryPolicy(SosRetryPolicy retryPolicy) { this.retryPolicy = (retryPolicy == null)?new SosRetryPolicy():retryPolicy; }
+
+    /**
+     * Gets how request bodies sent to this server are compressed
+     * @return
+     */
+    public HttpHelper.Compression getRequestCompression() { return requestCompression; }
+
+    /**
+     * Sets how request bodies sent to this server are compressed; only use this for servers
+     * that accept a compressed Content-Encoding. Responses are decoded either way.
+     * @param requestCompression
+     */
+    public void setRequestCompression(HttpHelper.Compression requestCompression) {
+        this.requestCompression = (requestCompression == null)?HttpHelper.Compression.NONE:requestCompression;
+    }
+
+    /**
+     * Is this server worth trying right now (i.e. its circuit breaker is not open)
+     * @return
+     */
+    public boolean isHealthy() { return circuitBreaker.isAvailable(); }
+
+    /**
+     * Records how long a successful request took
+     * @param latency time (in ms)
+     */
+    public void recordLatency(long latency) {
+        synchronized (latencies) {
+            latencies[latencyNext] = latency;
+            latencyNext = (latencyNext + 1) % LATENCY_SAMPLES;
+            if (latencyCount < LATENCY_SAMPLES)
+                latencyCount++;
+        }
+    }
+
+    /**
+     * Gets a percentile of the recent request latencies
+     * @param percentile 0 to 1 (i.e. 0.95)
+     * @return latency (in ms) or -1 if no requests have succeeded yet
+     */
+    public long getLatencyPercentile(double percentile) {
+        long[] sorted;
+        synchronized (latencies) {
+            if (latencyCount == 0)
+                return -1l;
+            sorted = Arrays.copyOf(latencies,latencyCount);
+        }
+        Arrays.sort(sorted);
+        int index = (int)Math.ceil(Math.min(1d,Math.max(0d,percentile))*sorted.length) - 1;
+        return sorted[Math.max(0,index)];
+    }
+
+    /**
+     * Gets the number of latency samples held
+     * @return
+     */
+    public int getLatencySampleCount() {
+        synchronized (latencies) {
+            return latencyCount;
+        }
+    }
+
+    @Override
+    public String toString() { return url; }
+}
@@ -2,4 +2,5 @@ package org.sofwerx.ogc.sos;
 
 public class SosException extends Exception {
     public SosException(String message) { super(message); }
+    public SosException(String message, Throwable cause) { super(message,cause); }
 }
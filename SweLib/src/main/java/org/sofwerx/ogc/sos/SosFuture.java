@@ -0,0 +1,219 @@
+package org.sofwerx.ogc.sos;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of one SosService operation. Callers can block on it, poll it or add
+ * listeners; it finishes exactly once (with a result, a failure, or by being cancelled).
+ * CompletableFuture is not available before API 24, so this covers the parts SosService needs.
+ */
+public class SosFuture<T> implements Future<T> {
+    private T result;
+    private SosException error;
+    private boolean done = false;
+    private boolean cancelled = false;
+    private Runnable cancelAction;
+    private ArrayList<SosFutureListener<T>> listeners;
+
+    /**
+     * Builds a future that has already succeeded
+     * @param result
+     * @return
+     */
+    public static <T> SosFuture<T> newCompleted(T result) {
+        SosFuture<T> future = new SosFuture<>();
+        future.complete(result);
+        return future;
+    }
+
+    /**
+     * Builds a future that has already failed
+     * @param error
+     * @return
+     */
+    public static <T> SosFuture<T> newFailed(SosException error) {
+        SosFuture<T> future = new SosFuture<>();
+        future.fail(error);
+        return future;
+    }
+
+    /**
+     * Finishes this future with a result
+     * @param result
+     * @return false == this future was already finished
+     */
+    public boolean complete(T result) {
+        ArrayList<SosFutureListener<T>> toNotify;
+        synchronized (this) {
+            if (done)
+                return false;
+            this.result = result;
+            done = true;
+            toNotify = listeners;
+            listeners = null;
+            cancelAction = null;
+            notifyAll();
+        }
+        if (toNotify != null) {
+            for (SosFutureListener<T> listener:toNotify)
+                listener.onSosSuccess(result);
+        }
+        return true;
+    }
+
+    /**
+     * Finishes this future with a failure
+     * @param error
+     * @return false == this future was already finished
+     */
+    public boolean fail(SosException error) {
+        ArrayList<SosFutureListener<T>> toNotify;
+        synchronized (this) {
+            if (done)
+                return false;
+            this.error = (error == null)?new SosException("Unknown failure"):error;
+            done = true;
+            toNotify = listeners;
+            listeners = null;
+            cancelAction = null;
+            notifyAll();
+        }
+        if (toNotify != null) {
+            for (SosFutureListener<T> listener:toNotify)
+                listener.onSosFailure(this.error);
+        }
+        return true;
+    }
+
+    /**
+     * Sets what to do if this future is cancelled while the operation is in progress (i.e.
+     * drop a queued request); it is run at most once
+     * @param cancelAction
+     */
+    public void setCancelAction(Runnable cancelAction) {
+        boolean runNow;
+        synchronized (this) {
+            runNow = cancelled;
+            if (!done)
+                this.cancelAction = cancelAction;
+        }
+        if (runNow && (cancelAction != null))
+            cancelAction.run();
+    }
+
+    /**
+     * Cancels this future; finishing and marking it cancelled happen together, so a result that
+     * arrives at the same time either wins (and this returns false) or is ignored
+     * @param mayInterruptIfRunning not used; the cancel action decides how to stop the operation
+     * @return false == this future was already finished
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        ArrayList<SosFutureListener<T>> toNotify;
+        Runnable action;
+        SosException cancelError;
+        synchronized (this) {
+            if (done)
+                return false;
+            cancelled = true;
+            error = new SosException("Operation was cancelled");
+            cancelError = error;
+            done = true;
+            toNotify = listeners;
+            listeners = null;
+            action = cancelAction;
+            cancelAction = null;
+            notifyAll();
+        }
+        if (toNotify != null) {
+            for (SosFutureListener<T> listener:toNotify)
+                listener.onSosFailure(cancelError);
+        }
+        if (action != null)
+            action.run();
+        return true;
+    }
+
+    /**
+     * Adds a listener; if this future is already finished, the listener is called right away
+     * @param listener
+     * @return this future
+     */
+    public SosFuture<T> addListener(SosFutureListener<T> listener) {
+        if (listener == null)
+            return this;
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null)
+                    listeners = new ArrayList<>();
+                listeners.add(listener);
+                return this;
+            }
+        }
+        if (error == null)
+            listener.onSosSuccess(result);
+        else
+            listener.onSosFailure(error);
+        return this;
+    }
+
+    /**
+     * Finishes this future the same way another future finishes
+     * @param other
+     */
+    public void completeFrom(SosFuture<T> other) {
+        if (other == null)
+            return;
+        other.addListener(new SosFutureListener<T>() {
+            @Override
+            public void onSosSuccess(T result) { complete(result); }
+
+            @Override
+            public void onSosFailure(SosException error) { fail(error); }
+        });
+    }
+
+    @Override
+    public synchronized boolean isCancelled() { return cancelled; }
+
+    @Override
+    public synchronized boolean isDone() { return done; }
+
+    /**
+     * Gets the failure
+     * @return the failure (or null if this future has not failed)
+     */
+    public synchronized SosException getError() { return error; }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done)
+            wait();
+        return getResult();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0l)
+                throw new TimeoutException("SOS operation did not finish in time");
+            TimeUnit.NANOSECONDS.timedWait(this,remaining);
+        }
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        if (cancelled)
+            throw new CancellationException();
+        if (error != null)
+            throw new ExecutionException(error.getMessage(),error);
+        return result;
+    }
+}
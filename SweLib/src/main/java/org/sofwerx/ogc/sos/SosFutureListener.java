@@ -0,0 +1,19 @@
+package org.sofwerx.ogc.sos;
+
+/**
+ * Called once when an SosFuture finishes. Callbacks run on whichever thread finished the
+ * future (usually one of the SosService lanes), so keep them short.
+ */
+public interface SosFutureListener<T> {
+    /**
+     * The operation finished
+     * @param result the result (see the method that returned the future for what it holds)
+     */
+    void onSosSuccess(T result);
+
+    /**
+     * The operation failed, timed out or was cancelled
+     * @param error what went wrong
+     */
+    void onSosFailure(SosException error);
+}
@@ -0,0 +1,28 @@
+package org.sofwerx.ogc.sos;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an SOS server answers with anything other than 200 OK; the server was reached,
+ * so this says whether the server itself is in trouble (5xx) or rejected the request (4xx)
+ */
+public class SosHttpException extends IOException {
+    private final int statusCode;
+
+    /**
+     * @param statusCode the HTTP status the server answered with
+     * @param url the server
+     */
+    public SosHttpException(int statusCode, String url) {
+        super("SOS server "+url+" answered with HTTP "+statusCode);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() { return statusCode; }
+
+    /**
+     * Is the server failing (i.e. overloaded or down behind a proxy) rather than rejecting this request
+     * @return
+     */
+    public boolean isServerError() { return statusCode >= 500; }
+}
@@ -0,0 +1,501 @@
+package org.sofwerx.ogc.sos;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+/**
+ * One operation on its way to the SOS servers. Each try blocks so it runs on the lane of
+ * the server it is sent to. Failed connections are retried against the same server with
+ * backoff (rather than by sleeping) and then fail over to the next healthy server; nothing
+ * is sent to a server while its circuit breaker is open. Writes are only retried if the
+ * connection never opened, since otherwise the server may already have stored them, and
+ * 5xx answers count against the breaker the same as a failed connection. Idempotent reads can also be
+ * hedged: if the first server has not answered within its usual latency the read is sent
+ * to the next server too and whichever answers first is used.
+ */
+class SosHttpRequest {
+    /**
+     * What a request needs from the SosService sending it
+     */
+    interface Host {
+        /**
+         * Runs a task on the service thread
+         * @param task
+         * @return false == the service has been shut down
+         */
+        boolean post(Runnable task);
+
+        /**
+         * Runs a task on the service thread after a delay unless the future finishes first
+         * @param future
+         * @param task
+         * @param delay time to wait (in ms)
+         * @return false == the service has been shut down
+         */
+        <T> boolean postUntilDone(SosFuture<T> future, Runnable task, long delay);
+
+        /**
+         * An operation passed its deadline before it could be sent
+         * @param operation
+         * @param future failed with the reason
+         */
+        void onExpired(AbstractSosOperation operation, SosFuture<AbstractSosOperation> future);
+
+        /**
+         * A server accepted an operation
+         * @param operation
+         */
+        void onSent(AbstractSosOperation operation);
+
+        /**
+         * Reports a failure to the service's listener
+         * @param message
+         */
+        void onError(String message);
+
+        String getUsername();
+        String getPassword();
+
+        /**
+         * Should requests be wrapped in a SOAP envelope
+         * @return
+         */
+        boolean isSoapWrapped();
+
+        SosTemplateRegistry getTemplateRegistry();
+
+        /**
+         * Gets what makes the HTTP calls
+         * @return
+         */
+        SosHttpTransport getTransport();
+
+        /**
+         * Gets the sensor whose server-assigned ids an operation carries
+         * @param operation
+         * @return the sensor (or null if the operation is not tied to a registration)
+         */
+        SosSensor getBoundSensor(AbstractSosOperation operation);
+
+        /**
+         * Gets the server whose assignments a sensor currently holds
+         * @param sensor
+         * @return the server (or null if none has been picked yet)
+         */
+        SosEndpoint getRegisteredEndpoint(SosSensor sensor);
+
+        /**
+         * Decodes a GetResult answer into its sensor and completes the future; runs on the
+         * service thread
+         * @param operation
+         * @param result
+         * @param future
+         */
+        void onGetResultsResponse(OperationGetResults operation, String result, SosFuture<AbstractSosOperation> future);
+
+        /**
+         * Handles the server's response on the service thread, which owns the sensor's
+         * assigned ids; the request completes its future once this returns
+         * @param destination
+         * @param endpoint the server that answered
+         * @param boundSensor the sensor whose assigned ids the request carried (or null)
+         * @param response
+         */
+        void onResponse(SosDestination destination, SosEndpoint endpoint, SosSensor boundSensor, AbstractSosOperation response);
+
+        /**
+         * Is this the service's own sensor (rather than one registered with registerSensors())
+         * @param sensor
+         * @return
+         */
+        boolean isOwnSensor(SosSensor sensor);
+
+        /**
+         * Moves the service's own sensor to the server requests currently go to
+         * @return the server the sensor now uses (or null if there is none)
+         */
+        SosEndpoint selectRegistration();
+
+        /**
+         * Gets the registration operation the service's own sensor needs next with the server
+         * it is now using
+         * @return the operation (or null if the sensor is already registered there)
+         */
+        AbstractSosOperation getNextRegistrationStep();
+
+        /**
+         * Registers the service's own sensor with the server it now uses and sends its
+         * reading once that is done
+         */
+        void reregisterSensor();
+
+        /**
+         * The service's own sensor is already registered with the server it now uses
+         * @param sensor
+         */
+        void finishRegistrations(SosSensor sensor);
+
+        /**
+         * Registers one of the sensors registered with registerSensors() with another server
+         * @param destination
+         * @param endpoint
+         * @param sensor
+         */
+        void registerFleetSensor(SosDestination destination, SosEndpoint endpoint, SosSensor sensor);
+
+        /**
+         * Gives one of the sensors registered with registerSensors() what a server assigned
+         * to it
+         * @param sensor
+         * @param endpoint
+         * @param registration
+         */
+        void useFleetEndpoint(SosSensor sensor, SosEndpoint endpoint, SosRegistration registration);
+    }
+
+    private final Host host;
+    private final SosDestination destination;
+    private final SosFuture<AbstractSosOperation> future;
+    private final SosEndpoint pinned; //for fan-out, the only server this request may go to
+    private final SosLane lane; //overrides the server's lane
+    private final SosSensor boundSensor; //the sensor whose assigned ids this request carries (or null)
+    private final boolean boundToRegistration;
+    private final List<SosEndpoint> tried = new ArrayList<>();
+    private final AtomicInteger outstanding = new AtomicInteger(0); //servers still working on this request
+    private final AtomicBoolean answered = new AtomicBoolean(false);
+    private final CopyOnWriteArrayList<HttpHelper.Call> calls = new CopyOnWriteArrayList<>(); //requests in progress
+    private volatile AbstractSosOperation operation;
+    private volatile HttpHelper.BodyWriter body;
+
+    SosHttpRequest(Host host, SosDestination destination, AbstractSosOperation operation, HttpHelper.BodyWriter body, SosFuture<AbstractSosOperation> future) {
+        this(host,destination,operation,body,future,null);
+    }
+
+    /**
+     * @param host
+     * @param destination
+     * @param operation
+     * @param body the serialized operation (not needed for GetResult)
+     * @param future
+     * @param pinned the only server to send to (without failover); the response completes the
+     *               future but is not handled as the service's own
+     */
+    SosHttpRequest(Host host, SosDestination destination, AbstractSosOperation operation, HttpHelper.BodyWriter body, SosFuture<AbstractSosOperation> future, SosEndpoint pinned) {
+        this(host,destination,operation,body,future,pinned,null);
+    }
+
+    /**
+     * @param host
+     * @param destination
+     * @param operation
+     * @param body
+     * @param future
+     * @param pinned
+     * @param lane the lane to send on instead of the server's own (i.e. one of several
+     *             registering sensors in parallel), or null
+     */
+    SosHttpRequest(Host host, SosDestination destination, AbstractSosOperation operation, HttpHelper.BodyWriter body, SosFuture<AbstractSosOperation> future, SosEndpoint pinned, SosLane lane) {
+        this.host = host;
+        this.destination = destination;
+        this.operation = operation;
+        this.body = body;
+        this.future = future;
+        this.pinned = pinned;
+        this.lane = lane;
+        this.boundSensor = (pinned == null)?host.getBoundSensor(operation):null;
+        this.boundToRegistration = (boundSensor != null);
+    }
+
+    private boolean isGetResults() { return operation instanceof OperationGetResults; }
+
+    private boolean isIdempotent() { return (operation instanceof OperationGetResults) || (operation instanceof OperationGetCapabilities); }
+
+    void start() {
+        if (isGetResults() && !operation.isValid()) {
+            host.onError("Unable to GetResult without a sensor, an assignedOffering, and at least one observableProperty");
+            future.fail(new SosException("Unable to GetResult without a sensor, an assignedOffering, and at least one observableProperty"));
+            return;
+        }
+        if (!isGetResults() && (body == null)) {
+            future.fail(new SosException(operation.getClass().getSimpleName()+" could not be converted to XML"));
+            return;
+        }
+        future.addListener(new SosFutureListener<AbstractSosOperation>() {
+            @Override
+            public void onSosSuccess(AbstractSosOperation result) { cancelCalls(); } //abandons the slower side of a hedged read
+
+            @Override
+            public void onSosFailure(SosException error) { cancelCalls(); }
+        });
+        if (operation.hasDeadline()) {
+            host.postUntilDone(future,() -> {
+                if (!future.isDone())
+                    host.onExpired(operation,future);
+            },operation.getTimeRemaining());
+        }
+        SosEndpoint first = (pinned != null)?pinned:(boundToRegistration?host.getRegisteredEndpoint(boundSensor):null);
+        if ((first == null) || !destination.getEndpoints().contains(first))
+            first = destination.getActive();
+        synchronized (tried) {
+            tried.add(first);
+        }
+        outstanding.incrementAndGet();
+        send(first,1,0l);
+        if ((pinned == null) && isIdempotent() && destination.isHedging() && (destination.getEndpoints().size() > 1)) {
+            final SosEndpoint primary = first;
+            host.postUntilDone(future,() -> {
+                if (future.isDone())
+                    return;
+                SosEndpoint next = claimNext();
+                if (next != null) {
+                    Log.d(SosIpcTransceiver.TAG,primary.getUrl()+" has not answered yet; hedging with "+next.getUrl());
+                    outstanding.incrementAndGet();
+                    send(next,1,0l);
+                }
+            },destination.getHedgeDelay(primary));
+        }
+    }
+
+    /**
+     * Picks the next healthy server that has not been tried yet
+     * @return
+     */
+    private SosEndpoint claimNext() {
+        synchronized (tried) {
+            SosEndpoint next = destination.getNext(tried);
+            if (next != null)
+                tried.add(next);
+            return next;
+        }
+    }
+
+    private void cancelCalls() {
+        for (HttpHelper.Call call:calls)
+            call.cancel();
+    }
+
+    private boolean send(final SosEndpoint endpoint, final int attempt, long delay) {
+        SosLane sendLane = (lane == null)?destination.getLane(endpoint):lane;
+        if ((sendLane != null) && sendLane.postDelayed(() -> {
+            if (!future.isDone() && !dropIfExpired())
+                attempt(endpoint,attempt);
+        },delay))
+            return true;
+        future.fail(new SosException("SosService is shutting down"));
+        return false;
+    }
+
+    /**
+     * Drops the operation if it has passed its deadline instead of sending it
+     * @return true == the operation was dropped
+     */
+    private boolean dropIfExpired() {
+        if (!operation.isExpired())
+            return false;
+        host.onExpired(operation,future);
+        return true;
+    }
+
+    private void attempt(SosEndpoint endpoint, int attempt) {
+        if (!endpoint.getCircuitBreaker().allowRequest()) {
+            onServerFailed(endpoint,"SOS server "+endpoint.getUrl()+" is unavailable; not retrying for "+endpoint.getCircuitBreaker().getTimeUntilRetry()+"ms",null);
+            return;
+        }
+        Log.d(SosIpcTransceiver.TAG,"Broadcasting SOS operation to "+endpoint.getUrl()+((attempt > 1)?" (attempt "+attempt+")":""));
+        long startTime = System.currentTimeMillis();
+        long timeout = operation.hasDeadline()?Math.max(1l,operation.getTimeRemaining()):0l;
+        HttpHelper.Call call = new HttpHelper.Call();
+        calls.add(call);
+        if (future.isDone())
+            call.cancel(); //finished while this attempt was starting
+        String result;
+        try {
+            if (isGetResults())
+                result = host.getTransport().get(endpoint.getUrl(),((OperationGetResults) operation).getPairs(),timeout,call);
+            else
+                result = host.getTransport().post(endpoint.getUrl(),host.getUsername(),host.getPassword(),body,host.isSoapWrapped(),endpoint.getRequestCompression(),timeout,call);
+            endpoint.getCircuitBreaker().onSuccess();
+            endpoint.recordLatency(System.currentTimeMillis() - startTime);
+            host.onSent(operation);
+        } catch (IOException e) {
+            if (call.isCancelled()) {
+                endpoint.getCircuitBreaker().onAbandoned();
+                return;
+            }
+            if ((e instanceof SosHttpException) && !((SosHttpException)e).isServerError()) {
+                endpoint.getCircuitBreaker().onSuccess(); //the server is up, it just turned this request down
+                Log.e(SosIpcTransceiver.TAG,e.getMessage());
+                onRejected("SOS server rejected "+operation.getClass().getSimpleName()+": "+e.getMessage(),e);
+                return;
+            }
+            endpoint.getCircuitBreaker().onFailure();
+            SosRetryPolicy retryPolicy = endpoint.getRetryPolicy();
+            boolean safeToRepeat = isIdempotent() || !call.isConnected(); //once connected the server may already have stored this write
+            if (safeToRepeat && retryPolicy.shouldRetry(attempt) && !future.isDone() && (retryPolicy.getBaseDelay() < operation.getTimeRemaining())) {
+                long delay = Math.min(retryPolicy.getDelay(attempt),operation.getTimeRemaining());
+                Log.d(SosIpcTransceiver.TAG,"Attempt "+attempt+" to reach "+endpoint.getUrl()+" failed ("+e.getMessage()+"); retrying in "+delay+"ms");
+                send(endpoint,attempt+1,delay);
+                return;
+            }
+            if (isGetResults())
+                Log.e(SosIpcTransceiver.TAG,"Attempt to get results for "+((OperationGetResults) operation).getSensor().getId()+" failed: "+e.getMessage());
+            onServerFailed(endpoint,"Unable to connect to SOS server: " + e.getMessage(),e);
+            return;
+        } finally {
+            calls.remove(call);
+        }
+        if (!answered.compareAndSet(false,true))
+            return; //another server already answered this hedged read
+        if (isGetResults()) {
+            final OperationGetResults getResults = (OperationGetResults) operation;
+            final String response = result;
+            if (!host.post(() -> host.onGetResultsResponse(getResults,response,future)))
+                future.fail(new SosException("SosService is shutting down"));
+            return;
+        }
+        final AbstractSosOperation responseOperation = AbstractSosOperation.newFromXmlString(result,host.getTemplateRegistry());
+        if (responseOperation == null) {
+            Log.e(SosIpcTransceiver.TAG, "Unable to parse response from server: " + result);
+            host.onError("Unexpected response from SOS server");
+            future.fail(new SosException("Unexpected response from SOS server"));
+        } else if (pinned != null)
+            future.complete(responseOperation);
+        else if (!host.post(() -> {
+            host.onResponse(destination,endpoint,boundSensor,responseOperation);
+            future.complete(responseOperation);
+        }))
+            future.fail(new SosException("SosService is shutting down"));
+    }
+
+    /**
+     * Fails over to the next healthy server once a server has run out of retries
+     * @param endpoint the server that failed
+     * @param message
+     * @param cause
+     */
+    private void onServerFailed(SosEndpoint endpoint, String message, Throwable cause) {
+        if (future.isDone())
+            return;
+        if (pinned != null) {
+            //ids in fan-out requests belong to this one server; the next request goes to whichever server is healthy then
+        } else if (boundToRegistration) {
+            if (failOverRegistration(endpoint))
+                return;
+        } else {
+            SosEndpoint next = claimNext();
+            if (next != null) {
+                Log.i(SosIpcTransceiver.TAG,message+"; failing over to "+next.getUrl());
+                send(next,1,0l);
+                return;
+            }
+        }
+        onRejected(message,cause);
+    }
+
+    /**
+     * Fails the request without trying another server
+     * @param message
+     * @param cause
+     */
+    private void onRejected(String message, Throwable cause) {
+        if (outstanding.decrementAndGet() > 0)
+            return; //a hedged read is still waiting on another server
+        host.onError(message);
+        future.fail(new SosException(message,cause));
+    }
+
+    /**
+     * Moves the sensor to the next healthy server. The operation was built with ids from the
+     * failed server, so it is rebuilt with the next server's ids; if the sensor is not yet
+     * registered there, registration with that server is sent instead.
+     * @param endpoint the server that failed
+     * @return true == the request is now going to another server
+     */
+    private boolean failOverRegistration(SosEndpoint endpoint) {
+        if (!host.isOwnSensor(boundSensor))
+            return failOverFleetSensor(endpoint);
+        SosEndpoint next = host.selectRegistration();
+        if ((next == null) || (next == endpoint))
+            return false;
+        synchronized (tried) {
+            if (tried.contains(next))
+                return false;
+            tried.add(next);
+        }
+        AbstractSosOperation rebuilt = operation;
+        AbstractSosOperation registrationStep = host.getNextRegistrationStep();
+        if (registrationStep != null) {
+            if (rebuilt instanceof OperationInsertResult) {
+                Log.i(SosIpcTransceiver.TAG,"Failing over to "+next.getUrl()+"; readings will be sent once the sensor is registered there");
+                host.reregisterSensor();
+                future.fail(new SosException("Sensor is being registered with "+next.getUrl()+" after "+endpoint.getUrl()+" failed"));
+                return true;
+            }
+            rebuilt = registrationStep;
+        } else if (!(rebuilt instanceof OperationInsertResult)) {
+            Log.i(SosIpcTransceiver.TAG,"Failing over to "+next.getUrl()+" where the sensor is already registered");
+            host.finishRegistrations(boundSensor);
+            future.complete(null);
+            return true;
+        }
+        SosPayload rebuiltPayload;
+        try {
+            rebuiltPayload = SosPayload.newFromOperation(rebuilt);
+        } catch (ParserConfigurationException | TransformerException e) {
+            Log.e(SosIpcTransceiver.TAG,"Unable to convert SOS operation to XML: "+e.getMessage());
+            return false;
+        }
+        if (rebuiltPayload == null)
+            return false;
+        Log.i(SosIpcTransceiver.TAG,endpoint.getUrl()+" failed; sending "+rebuilt.getClass().getSimpleName()+" to "+next.getUrl());
+        rebuilt.setDeadline(operation.getDeadline());
+        operation = rebuilt;
+        body = rebuiltPayload;
+        send(next,1,0l);
+        return true;
+    }
+
+    /**
+     * Moves one of the sensors registered with registerSensors() to the next healthy server,
+     * rebuilding its InsertResult with that server's template; if the sensor is not yet
+     * registered there, it is registered instead
+     * @param endpoint the server that failed
+     * @return true == the request is now going to another server
+     */
+    private boolean failOverFleetSensor(SosEndpoint endpoint) {
+        if (!(operation instanceof OperationInsertResult))
+            return false;
+        SosEndpoint next = claimNext();
+        if (next == null)
+            return false;
+        SosRegistration registration = destination.getRegistration(boundSensor,next);
+        if (!registration.isComplete()) {
+            Log.i(SosIpcTransceiver.TAG,"Failing sensor "+boundSensor.getId()+" over to "+next.getUrl()+"; registering it there");
+            host.registerFleetSensor(destination,next,boundSensor);
+            future.fail(new SosException("Sensor "+boundSensor.getId()+" is being registered with "+next.getUrl()+" after "+endpoint.getUrl()+" failed"));
+            return true;
+        }
+        SosPayload rebuiltPayload = null;
+        try {
+            rebuiltPayload = SosPayload.newFromDocument(((OperationInsertResult)operation).toXML(registration.getTemplate()));
+        } catch (ParserConfigurationException | TransformerException e) {
+            Log.e(SosIpcTransceiver.TAG,"Unable to convert SOS operation to XML: "+e.getMessage());
+        }
+        if (rebuiltPayload == null)
+            return false;
+        Log.i(SosIpcTransceiver.TAG,endpoint.getUrl()+" failed; sending readings from sensor "+boundSensor.getId()+" to "+next.getUrl());
+        host.useFleetEndpoint(boundSensor,next,registration);
+        body = rebuiltPayload;
+        send(next,1,0l);
+        return true;
+    }
+}
@@ -0,0 +1,56 @@
+package org.sofwerx.ogc.sos;
+
+import android.util.Pair;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Makes the HTTP calls for SosHttpRequest. SosService sends through HttpHelper; tests put a
+ * fake server in its place so retries, failover and hedging can be checked without a network.
+ */
+interface SosHttpTransport {
+    /**
+     * Sends through HttpHelper
+     */
+    SosHttpTransport HTTP = new SosHttpTransport() {
+        @Override
+        public String get(String serverURL, ArrayList<Pair<String,String>> keyValues, long timeout, HttpHelper.Call call) throws IOException {
+            return HttpHelper.get(serverURL,keyValues,timeout,call);
+        }
+
+        @Override
+        public String post(String serverURL, String username, String password, HttpHelper.BodyWriter body, boolean soapWrapper, HttpHelper.Compression compression, long timeout, HttpHelper.Call call) throws IOException {
+            return HttpHelper.post(serverURL,username,password,body,soapWrapper,compression,timeout,call);
+        }
+    };
+
+    /**
+     * Gets a KVP request (see HttpHelper.get())
+     * @param serverURL
+     * @param keyValues
+     * @param timeout time left for this request (in ms) or 0 for the default timeouts
+     * @param call used to cancel this request from another thread
+     * @return the response (or null if the server sent back an empty body)
+     * @throws SosHttpException if the server answers with anything but 200 OK
+     * @throws IOException
+     */
+    String get(String serverURL, ArrayList<Pair<String,String>> keyValues, long timeout, HttpHelper.Call call) throws IOException;
+
+    /**
+     * Posts a request body (see HttpHelper.post()); the call is marked as connected once the
+     * server may have received any of the body
+     * @param serverURL
+     * @param username
+     * @param password
+     * @param body
+     * @param soapWrapper true == wrap the body in a SOAP envelope
+     * @param compression how to compress the body
+     * @param timeout time left for this request (in ms) or 0 for the default timeouts
+     * @param call used to cancel this request from another thread
+     * @return the response (or null if the server sent back an empty body)
+     * @throws SosHttpException if the server answers with anything but 200 OK
+     * @throws IOException
+     */
+    String post(String serverURL, String username, String password, HttpHelper.BodyWriter body, boolean soapWrapper, HttpHelper.Compression compression, long timeout, HttpHelper.Call call) throws IOException;
+}
@@ -6,25 +6,14 @@ import android.content.Intent;
 import android.util.Log;
 
 import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Locale;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
@@ -37,8 +26,6 @@ import javax.xml.transform.stream.StreamResult;
 public class SosIpcTransceiver extends BroadcastReceiver {
     public final static String TAG = "SosIpc";
     public final static String SOFWERX_LINK_PLACEHOLDER = "http://www.sofwerx.org/placeholder"; //this is used as a placeholder where a URL should be provided for a new standard or feature
-    private final static SimpleDateFormat dateFormatISO8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX", Locale.US);
-    private final static SimpleDateFormat dateFormatBackup = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm", Locale.US);
     public static final String ACTION_SOS = "org.sofwerx.ogc.ACTION_SOS";
     private static final String EXTRA_PAYLOAD = "SOS";
     private static final String EXTRA_ORIGIN = "src";
@@ -47,40 +34,96 @@ public class SosIpcTransceiver extends BroadcastReceiver {
     private final static String SQAN_PACKET_CHANNEL = "channel";
     final static long DEFAULT_OUTGOING_THROTTLE_RATE = 1000l * 5l;
     final static long DEFAULT_INCOMING_THROTTLE_RATE = 1000l * 10l;
-    private static boolean enableSqAN = true;
-    private static String channel = SosService.DEFAULT_SWE_CHANNEL;
+    private final SosTransportConfig config;
     private SosMessageListener listener;
-
-    //Since XML is expensive to marshall/unmarshall, include throttling to ignore messages that come in or go out too fast
-    private static long throttleRate = -1l;
-    private static long nextAvailableIntake = Long.MIN_VALUE;
+    private SosMessageFilter filter;
+    private SosTemplateRegistry templateRegistry;
+    private volatile SosDecodePipeline decodePipeline;
 
     public SosIpcTransceiver(SosMessageListener listener) {
+        this(listener,null);
+    }
+
+    /**
+     * @param listener
+     * @param config the channel, SqAN and throttle settings this transceiver uses (i.e. shared
+     *               with the SosService that owns it), or null for SosTransportConfig.getShared()
+     */
+    public SosIpcTransceiver(SosMessageListener listener, SosTransportConfig config) {
         this.listener = listener;
+        this.config = (config == null)?SosTransportConfig.getShared():config;
     }
 
-    public static void setChannel(String channel) { SosIpcTransceiver.channel = channel; }
-    public static void setEnableSqAN(boolean enable) { SosIpcTransceiver.enableSqAN = enable; }
+    public SosTransportConfig getConfig() { return config; }
+
+    /**
+     * @deprecated use SosService.getTransportConfig().setChannel(); this only changes
+     * SosTransportConfig.getShared() (used by transceivers built without a config and copied by
+     * services built afterwards)
+     */
+    @Deprecated
+    public static void setChannel(String channel) { SosTransportConfig.getShared().setChannel(channel); }
+
+    /**
+     * @deprecated use SosService.getTransportConfig().setSqANEnabled(); this only changes
+     * SosTransportConfig.getShared()
+     */
+    @Deprecated
+    public static void setEnableSqAN(boolean enable) { SosTransportConfig.getShared().setSqANEnabled(enable); }
+
+    /**
+     * @deprecated use SosService.getTransportConfig().isSqANEnabled(); this only reads
+     * SosTransportConfig.getShared()
+     */
+    @Deprecated
+    public static boolean isSqANEnabled() { return SosTransportConfig.getShared().isSqANEnabled(); }
+
+    /**
+     * @deprecated use SosService.getTransportConfig().setThrottleRate(); this only changes
+     * SosTransportConfig.getShared()
+     */
+    @Deprecated
+    public static void setThrottleRate(long rate) { SosTransportConfig.getShared().setThrottleRate(rate); }
+
+    /**
+     * @deprecated use SosService.getTransportConfig().clearThrottle(); this only changes
+     * SosTransportConfig.getShared()
+     */
+    @Deprecated
+    public static void clearThrottle() { SosTransportConfig.getShared().clearThrottle(); }
+
+    /**
+     * Sets the filter used to drop unwanted messages before they are parsed
+     * @param filter the filter (or null to accept everything)
+     */
+    public void setFilter(SosMessageFilter filter) { this.filter = filter; }
+    public SosMessageFilter getFilter() { return filter; }
+
+    /**
+     * Sets the registry used to decode each incoming InsertResult into the sensor for its template
+     * @param templateRegistry
+     */
+    public void setTemplateRegistry(SosTemplateRegistry templateRegistry) { this.templateRegistry = templateRegistry; }
 
     /**
-     * Sets a throttle rate (i.e. a min amo8nt of time between messages in ms); all messages
-     * received in excess of the throttle rate will be dropped (done to prevent bogging
-     * down the processor in XML marshallig/unmarshalling operations).
-     * @param rate rate in ms (or -1l if no throttling is needed)
+     * Sets the pipeline incoming messages are decoded on (i.e. one shared by every transceiver
+     * a service creates); a pipeline of this transceiver's own is created if none is set
+     * @param decodePipeline
      */
-    public static void setThrottleRate(long rate) {
-        if (throttleRate != rate) {
-            throttleRate = rate;
-            if (rate > 0l)
-                Log.d(TAG, "Setting throttle interval to " + Long.toString(rate) + "ms");
-            else {
-                Log.d(TAG, "Removing throttle");
+    public void setDecodePipeline(SosDecodePipeline decodePipeline) { this.decodePipeline = decodePipeline; }
+
+    private SosDecodePipeline getDecodePipeline() {
+        SosDecodePipeline current = decodePipeline;
+        if (current == null) {
+            synchronized (this) {
+                if (decodePipeline == null)
+                    decodePipeline = new SosDecodePipeline();
+                current = decodePipeline;
             }
         }
+        return current;
     }
 
-    public static void clearThrottle() { setThrottleRate(-1l); }
-
     @Override
     public void onReceive(Context context, Intent intent) {
         if ((context != null) && (intent != null)) {
@@ -93,12 +136,13 @@ public class SosIpcTransceiver extends BroadcastReceiver {
                 String origin = intent.getStringExtra(EXTRA_ORIGIN);
                 if (!context.getPackageName().equalsIgnoreCase(origin)) {
                     String channel = intent.getStringExtra(SQAN_PACKET_CHANNEL);
-                    if ((SosIpcTransceiver.channel != null) && SosIpcTransceiver.channel.equalsIgnoreCase(channel)) { //only handle SOS-T channel broadcasts
+                    String ownChannel = config.getChannel();
+                    if ((ownChannel != null) && ownChannel.equalsIgnoreCase(channel)) { //only handle SOS-T channel broadcasts
                         try {
                             byte[] bytes = intent.getByteArrayExtra(SQAN_PACKET_BYTES);
-                            if (bytes != null) {
+                            if ((bytes != null) && ((filter == null) || filter.isAccepted(bytes))) {
                                 String payload = new String(bytes,"UTF-8");
-                                onMessageReceived(context,"sqan."+SQAN_PACKET_CHANNEL,payload);
+                                onMessageReceived(context,"sqan."+((origin == null)?channel:origin),payload); //each sender's messages are delivered in order
                             }
                         } catch (UnsupportedEncodingException ignore) {
                         }
@@ -123,26 +167,11 @@ public class SosIpcTransceiver extends BroadcastReceiver {
             Log.e(TAG, "Null operation received from SOS broadcast IPC");
             return;
         }
-        if ((throttleRate <= 0l) || (System.currentTimeMillis() > nextAvailableIntake)) {
-            if (throttleRate > 0l)
-                nextAvailableIntake = System.currentTimeMillis() + throttleRate;
-            new Thread(() -> {
-                try {
-                    DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
-                    DocumentBuilder docBuilder = builderFactory.newDocumentBuilder();
-                    Document doc = docBuilder.parse(new InputSource(new ByteArrayInputStream(input.getBytes("utf-8"))));
-                    if (doc != null) {
-                        AbstractSosOperation operation = AbstractSosOperation.newFromXML(doc);
-                        if (operation != null) {
-                            if (listener != null)
-                                listener.onSosOperationReceived(operation);
-                        }
-                    }
-                } catch (ParserConfigurationException | IOException | SAXException e) {
-                    Log.e(TAG, "SOS IPC broadcast was not XML: " + input);
-                }
-            }).start();
-        } else
+        if ((filter != null) && !filter.isAccepted(input))
+            return;
+        if (config.tryPassThrottle())
+            getDecodePipeline().submit(source,input,templateRegistry,listener); //decoded in parallel but delivered in order for each sensor
+        else
             Log.d(TAG,"Dropping message from "+source+" due to flooding: "+input);
     }
 
@@ -152,56 +181,90 @@ public class SosIpcTransceiver extends BroadcastReceiver {
      * @param operation
      */
     public void broadcast(final Context context, final AbstractSosOperation operation) throws SosException {
-        if ((throttleRate <= 0l) || (System.currentTimeMillis() > nextAvailableIntake)) {
-            if (throttleRate > 0l)
-                nextAvailableIntake = System.currentTimeMillis() + throttleRate;
+        if (config.tryPassThrottle()) {
             if (operation != null) {
                 if (!operation.isValid()) {
                     throw new SosException(operation.getClass().getSimpleName() + " does not have all required information");
                 }
                 new Thread(() -> {
-                    Document doc = null;
-                    try {
-                        doc = operation.toXML();
-                    } catch (ParserConfigurationException e) {
-                        //throw new SosException("Unable to create document: " + e.getMessage());
-                    }
                     try {
-                        if (doc != null)
-                            broadcast(context, toString(doc));
+                        SosPayload payload = SosPayload.newFromOperation(operation);
+                        if (payload != null) {
+                            broadcastIpc(context, payload);
+                            if (config.isSqANEnabled())
+                                broadcastSqAN(context, payload);
+                        }
                     } catch (Exception ex) {
-                        //throw new SosException("Unable to convert XML document to string: " + ex.getMessage());
+                        //throw new SosException("Unable to convert operation to XML: " + ex.getMessage());
                     }
                 }).start();
             }
         } else
-            Log.d(TAG,operation.getClass().getSimpleName()+" operation received but ignored since the current throttle rate of "+Long.toString(throttleRate)+"ms is being exceeded");
+            Log.d(TAG,operation.getClass().getSimpleName()+" operation received but ignored since the current throttle rate of "+Long.toString(config.getThrottleRate())+"ms is being exceeded");
+    }
+
+    /**
+     * Broadcasts an SOS operation that has already been serialized (i.e. so the same payload
+     * can also be sent over HTTP)
+     * @param context
+     * @param operation the operation (used for validity checks and logging)
+     * @param payload the serialized operation
+     * @throws SosException
+     */
+    public void broadcast(final Context context, final AbstractSosOperation operation, final SosPayload payload) throws SosException {
+        if (isSendAllowed(operation)) {
+            broadcastIpc(context, payload);
+            if (config.isSqANEnabled())
+                broadcastSqAN(context, payload);
+        }
+    }
+
+    /**
+     * Checks an outgoing operation against the outgoing throttle; call this once per operation
+     * before handing its payload to broadcastIpc() and broadcastSqAN()
+     * @param operation
+     * @return true == the operation should be sent; false == it is being throttled
+     * @throws SosException if the operation is missing required information
+     */
+    public boolean isSendAllowed(final AbstractSosOperation operation) throws SosException {
+        if (operation == null)
+            return false;
+        if (config.tryPassThrottle()) {
+            if (!operation.isValid())
+                throw new SosException(operation.getClass().getSimpleName() + " does not have all required information");
+            return true;
+        }
+        Log.d(TAG,operation.getClass().getSimpleName()+" operation received but ignored since the current throttle rate of "+Long.toString(config.getThrottleRate())+"ms is being exceeded");
+        return false;
     }
 
     public final static String toString(Document doc) throws TransformerException {
         if (doc == null)
             return null;
         StringWriter writer = new StringWriter();
-        TransformerFactory transformerFactory = TransformerFactory.newInstance();
-        Transformer transformer = transformerFactory.newTransformer();
-        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-        transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-        transformer.transform(new DOMSource(doc), new StreamResult(writer));
+        newTransformer().transform(new DOMSource(doc), new StreamResult(writer));
         return writer.toString();
     }
 
+    /**
+     * Gets this thread's transformer set up the way SOS operations are written
+     * @return
+     * @throws TransformerException
+     */
+    static Transformer newTransformer() throws TransformerException {
+        return SosCodecContext.get().getTransformer(false);
+    }
+
     public void setListener(SosMessageListener listener) {
         this.listener = listener;
     }
 
     /**
-     * Broadcast an SOS Operation
+     * Broadcast an SOS Operation to other apps on this device over IPC
      * @param context
      * @param sosOperation
      */
-    private void broadcast(Context context, String sosOperation) {
+    public void broadcastIpc(Context context, SosPayload sosOperation) {
         if (context == null) {
             Log.d(TAG,"Context needed to broadcast an SOS Operation");
             return;
@@ -213,24 +276,26 @@ public class SosIpcTransceiver extends BroadcastReceiver {
         Intent intent = new Intent(ACTION_SOS);
         //intent.putExtra(EXTRA_ORIGIN, BuildConfig.APPLICATION_ID);
         intent.putExtra(EXTRA_ORIGIN, context.getPackageName());
-        intent.putExtra(EXTRA_PAYLOAD,sosOperation);
+        intent.putExtra(EXTRA_PAYLOAD,sosOperation.getText());
         context.sendBroadcast(intent);
+        Log.d(TAG,"Broadcast: "+sosOperation.getText());
+    }
 
-        if (enableSqAN) {
-			Log.d(TAG,"Broadcasting over SqAN as well");
-            try {
-                byte[] bytes = sosOperation.getBytes("UTF-8");
-                Intent sqanIntent = new Intent(ACTION_SQAN_BROADCAST);
-                //sqanIntent.putExtra(EXTRA_ORIGIN, BuildConfig.APPLICATION_ID);
-                sqanIntent.putExtra(EXTRA_ORIGIN, context.getPackageName());
-                sqanIntent.putExtra(SQAN_PACKET_BYTES, bytes);
-                sqanIntent.putExtra(SQAN_PACKET_CHANNEL, channel);
-                context.sendBroadcast(sqanIntent);
-            } catch (UnsupportedEncodingException ignore) {
-            }
-        }
-
-        Log.d(TAG,"Broadcast: "+sosOperation);
+    /**
+     * Broadcast an SOS Operation over the SqAN mesh (as bytes on the current channel)
+     * @param context
+     * @param sosOperation
+     */
+    public void broadcastSqAN(Context context, SosPayload sosOperation) {
+        if ((context == null) || (sosOperation == null))
+            return;
+        Log.d(TAG,"Broadcasting over SqAN as well");
+        Intent sqanIntent = new Intent(ACTION_SQAN_BROADCAST);
+        //sqanIntent.putExtra(EXTRA_ORIGIN, BuildConfig.APPLICATION_ID);
+        sqanIntent.putExtra(EXTRA_ORIGIN, context.getPackageName());
+        sqanIntent.putExtra(SQAN_PACKET_BYTES, sosOperation.getBytes());
+        sqanIntent.putExtra(SQAN_PACKET_CHANNEL, config.getChannel());
+        context.sendBroadcast(sqanIntent);
     }
 
     /**
@@ -241,13 +306,13 @@ public class SosIpcTransceiver extends BroadcastReceiver {
     public static long parseTime(String time) {
         if (time != null) {
             try {
-                Date date = dateFormatISO8601.parse(time);
+                Date date = SosCodecContext.get().getDateFormat().parse(time);
                 return date.getTime();
             } catch (ParseException e) {
                 try {
                     if (time.endsWith("Z"))
                         time = time.substring(0,time.indexOf('Z'));
-                    Date date = dateFormatBackup.parse(time);
+                    Date date = SosCodecContext.get().getBackupDateFormat().parse(time);
                     return date.getTime();
                 } catch (ParseException e1) {
                     e.printStackTrace();
@@ -258,6 +323,6 @@ public class SosIpcTransceiver extends BroadcastReceiver {
     }
 
     public static String formatTime(long time) {
-        return dateFormatISO8601.format(time);
+        return SosCodecContext.get().getDateFormat().format(time);
     }
 }
\ No newline at end of file
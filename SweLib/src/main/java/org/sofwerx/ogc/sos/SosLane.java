@@ -0,0 +1,112 @@
+package org.sofwerx.ogc.sos;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single worker thread with its own queue. SosService gives each transport (IPC, SqAN and
+ * HTTP) its own lane so a slow transport only delays its own messages. The thread is only
+ * started when the first task arrives, so creating a lane never blocks and an unused lane
+ * costs nothing.
+ */
+public class SosLane {
+    private final String name;
+    private HandlerThread thread;
+    private volatile Handler handler;
+    private volatile boolean shutdown = false;
+    private final AtomicInteger queueDepth = new AtomicInteger(0);
+
+    /**
+     * Creates a lane
+     * @param name name of the lane (used for the thread name and logging)
+     */
+    public SosLane(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gets the lane's handler, starting its thread the first time
+     * @return the handler (or null if the lane has been shut down)
+     */
+    private Handler getHandler() {
+        Handler current = handler;
+        if ((current != null) || shutdown)
+            return current;
+        synchronized (this) {
+            if ((handler == null) && !shutdown) {
+                thread = new HandlerThread("SosLane-"+name);
+                thread.start();
+                handler = new Handler(thread.getLooper());
+            }
+            return handler;
+        }
+    }
+
+    public String getName() { return name; }
+
+    /**
+     * Gets the number of tasks waiting in this lane (not counting the one running)
+     * @return
+     */
+    public int getQueueDepth() { return queueDepth.get(); }
+
+    /**
+     * Is this lane still accepting work
+     * @return
+     */
+    public boolean isRunning() { return !shutdown; }
+
+    /**
+     * Queues a task on this lane
+     * @param task
+     * @return false == the lane has been shut down and the task was dropped
+     */
+    public boolean post(Runnable task) { return postDelayed(task,0l); }
+
+    /**
+     * Queues a task on this lane after a delay
+     * @param task
+     * @param delay time to wait (in ms)
+     * @return false == the lane has been shut down and the task was dropped
+     */
+    public boolean postDelayed(final Runnable task, long delay) {
+        if (task == null)
+            return false;
+        Handler current = getHandler();
+        if (current == null)
+            return false;
+        queueDepth.incrementAndGet();
+        boolean queued = current.postDelayed(() -> {
+            queueDepth.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(SosIpcTransceiver.TAG,"Task in "+name+" lane failed: "+e.getMessage());
+            }
+        },delay);
+        if (!queued) {
+            queueDepth.decrementAndGet();
+            Log.d(SosIpcTransceiver.TAG,name+" lane is shutting down so a task was dropped");
+        }
+        return queued;
+    }
+
+    /**
+     * Stops this lane; queued tasks are dropped
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        Handler current = handler;
+        handler = null;
+        if (current != null)
+            current.removeCallbacksAndMessages(null);
+        queueDepth.set(0);
+        if (thread != null) {
+            thread.quitSafely();
+            thread = null;
+        }
+    }
+}
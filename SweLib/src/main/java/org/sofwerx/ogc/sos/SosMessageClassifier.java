@@ -0,0 +1,271 @@
+package org.sofwerx.ogc.sos;
+
+import java.nio.charset.Charset;
+
+/**
+ * Takes a cheap look at the start of an SOS message to figure out which operation it holds
+ * without building a DOM. Only the markup needed to find the operation element (and, for an
+ * InsertResult, its template) is scanned; nothing is allocated unless a template in a byte
+ * message holds non-ASCII characters.
+ */
+public class SosMessageClassifier {
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static String LOCAL_NAME_ENVELOPE = "Envelope";
+    private final static String LOCAL_NAME_BODY = "Body";
+    private final static String LOCAL_NAME_TEMPLATE = "template";
+
+    /**
+     * Finds the start of the operation element name (i.e. the "s" in "&lt;sos:InsertResult"),
+     * skipping over the XML declaration, comments and any SOAP envelope
+     * @param xml the message
+     * @return index of the first character of the operation element name (or -1 if none found)
+     */
+    public static int findOperation(CharSequence xml) {
+        if (xml == null)
+            return -1;
+        int start = nextStartTag(xml,0);
+        if ((start >= 0) && isLocalName(xml,start,LOCAL_NAME_ENVELOPE)) {
+            int body = nextStartTag(xml,start);
+            while ((body >= 0) && !isLocalName(xml,body,LOCAL_NAME_BODY))
+                body = nextStartTag(xml,body);
+            if (body < 0)
+                return start;
+            start = nextStartTag(xml,body);
+        }
+        return start;
+    }
+
+    /**
+     * Is the operation in this message the given operation
+     * @param xml the message
+     * @param operation the operation name with or without its prefix (i.e. OperationInsertResult.NAMESPACE)
+     * @return true == the operation element has this local name
+     */
+    public static boolean isOperation(CharSequence xml, String operation) {
+        int start = findOperation(xml);
+        return (start >= 0) && isLocalName(xml,start,localName(operation));
+    }
+
+    /**
+     * Gets the operation name (without prefix) in this message. This allocates a small String
+     * so SosMessageFilter compares names in place instead.
+     * @param xml the message
+     * @return the operation name (i.e. "InsertResult") or null if this does not look like XML
+     */
+    public static String getOperationName(CharSequence xml) {
+        int start = findOperation(xml);
+        if (start < 0)
+            return null;
+        int end = nameEnd(xml,start);
+        return xml.subSequence(localStart(xml,start,end),end).toString();
+    }
+
+    /**
+     * Finds the text of the template element in an InsertResult
+     * @param xml the message
+     * @return the start (upper 32 bits) and end (lower 32 bits) of the trimmed template text,
+     * or -1 if there is no template or its text uses entities and cannot be compared as-is
+     */
+    public static long findTemplate(CharSequence xml) {
+        int tag = findOperation(xml);
+        if (tag < 0)
+            return -1l;
+        tag = nextStartTag(xml,tag);
+        while ((tag >= 0) && !isLocalName(xml,tag,LOCAL_NAME_TEMPLATE))
+            tag = nextStartTag(xml,tag);
+        if (tag < 0)
+            return -1l;
+        int start = indexOf(xml,'>',tag);
+        if (start < 0)
+            return -1l;
+        start++;
+        int end = indexOf(xml,'<',start);
+        if (end < 0)
+            return -1l;
+        while ((start < end) && Character.isWhitespace(xml.charAt(start)))
+            start++;
+        while ((end > start) && Character.isWhitespace(xml.charAt(end-1)))
+            end--;
+        int entity = indexOf(xml,'&',start);
+        if ((entity >= 0) && (entity < end))
+            return -1l;
+        return (((long)start) << 32) | end;
+    }
+
+    /**
+     * Gets the template ID in an InsertResult message
+     * @param xml the message
+     * @return the template (or null if none could be found)
+     */
+    public static String getTemplate(CharSequence xml) {
+        long range = findTemplate(xml);
+        if (range < 0l)
+            return null;
+        return xml.subSequence((int)(range >>> 32),(int)range).toString();
+    }
+
+    /**
+     * Compares a range of the message with a String without creating a substring, unless the
+     * message is a byte view (see asAscii()) and the range holds multi-byte UTF-8 characters;
+     * that range is then decoded before it is compared
+     * @param xml the message
+     * @param start start of the range
+     * @param end end of the range (exclusive)
+     * @param value value to compare
+     * @return true == the range holds exactly this value
+     */
+    public static boolean regionEquals(CharSequence xml, int start, int end, String value) {
+        if (value == null)
+            return false;
+        if ((xml instanceof AsciiSequence) && !((AsciiSequence)xml).isAscii(start,end))
+            return value.equals(xml.subSequence(start,end).toString());
+        return rawRegionEquals(xml,start,end,value);
+    }
+
+    /**
+     * Compares a range with an ASCII value (i.e. markup) char by char; on a byte view this is
+     * safe as every byte of a multi-byte UTF-8 character is 0x80 or more and so never matches
+     */
+    private static boolean rawRegionEquals(CharSequence xml, int start, int end, String value) {
+        if ((value == null) || (value.length() != end - start))
+            return false;
+        for (int i=0;i<value.length();i++) {
+            if (xml.charAt(start+i) != value.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Provides a CharSequence view of UTF-8 bytes without decoding them. Indexes are byte
+     * offsets and charAt() gives the raw byte, which is only meaningful for markup and ASCII
+     * text; regionEquals() and toString() decode any span holding multi-byte characters.
+     * @param bytes UTF-8 bytes
+     * @return a view on these bytes
+     */
+    public static CharSequence asAscii(final byte[] bytes) {
+        if (bytes == null)
+            return null;
+        return new AsciiSequence(bytes,0,bytes.length);
+    }
+
+    static String localName(String name) {
+        if (name == null)
+            return null;
+        return name.substring(name.lastIndexOf(':')+1);
+    }
+
+    /**
+     * Finds the name of the next start tag after the given index
+     * @return index of the first character of the tag name (or -1 if no more start tags)
+     */
+    private static int nextStartTag(CharSequence xml, int from) {
+        int length = xml.length();
+        int i = indexOf(xml,'<',from);
+        while ((i >= 0) && (i+1 < length)) {
+            char next = xml.charAt(i+1);
+            if (next == '?')
+                i = indexOf(xml,'<',skipPast(xml,i+2,"?>"));
+            else if (next == '!') {
+                if ((i+3 < length) && (xml.charAt(i+2) == '-') && (xml.charAt(i+3) == '-'))
+                    i = indexOf(xml,'<',skipPast(xml,i+4,"-->"));
+                else
+                    i = indexOf(xml,'<',i+2);
+            } else if (next == '/')
+                i = indexOf(xml,'<',i+2);
+            else
+                return i+1;
+        }
+        return -1;
+    }
+
+    private static int skipPast(CharSequence xml, int from, String marker) {
+        int length = xml.length() - marker.length();
+        for (int i=from;i<=length;i++) {
+            if (rawRegionEquals(xml,i,i+marker.length(),marker))
+                return i+marker.length();
+        }
+        return xml.length();
+    }
+
+    private static int indexOf(CharSequence xml, char c, int from) {
+        if (from < 0)
+            return -1;
+        int length = xml.length();
+        for (int i=from;i<length;i++) {
+            if (xml.charAt(i) == c)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int nameEnd(CharSequence xml, int start) {
+        int length = xml.length();
+        int i = start;
+        while (i < length) {
+            char c = xml.charAt(i);
+            if ((c == '>') || (c == '/') || Character.isWhitespace(c))
+                break;
+            i++;
+        }
+        return i;
+    }
+
+    private static int localStart(CharSequence xml, int start, int end) {
+        for (int i=end-1;i>=start;i--) {
+            if (xml.charAt(i) == ':')
+                return i+1;
+        }
+        return start;
+    }
+
+    static boolean isLocalName(CharSequence xml, int start, String localName) {
+        int end = nameEnd(xml,start);
+        return rawRegionEquals(xml,localStart(xml,start,end),end,localName);
+    }
+
+    private static class AsciiSequence implements CharSequence {
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+
+        private AsciiSequence(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() { return length; }
+
+        @Override
+        public char charAt(int index) { return (char)(bytes[offset+index] & 0xff); }
+
+        @Override
+        public CharSequence subSequence(int start, int end) { return new AsciiSequence(bytes,offset+start,end-start); }
+
+        /**
+         * Is every byte in this range plain ASCII
+         * @param start
+         * @param end (exclusive)
+         * @return
+         */
+        private boolean isAscii(int start, int end) {
+            for (int i=offset+start;i<offset+end;i++) {
+                if (bytes[i] < 0)
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            if (!isAscii(0,length))
+                return new String(bytes,offset,length,UTF8);
+            char[] chars = new char[length];
+            for (int i=0;i<length;i++)
+                chars[i] = charAt(i);
+            return new String(chars);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.sofwerx.ogc.sos;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Declares which incoming IPC/SqAN messages a subscriber actually cares about. Messages are
+ * checked with the SosMessageClassifier before any XML parsing so that unwanted operations
+ * are dropped before the costly DOM is built. An empty filter accepts everything.
+ */
+public class SosMessageFilter {
+    private final CopyOnWriteArrayList<String> operations = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<String> templates = new CopyOnWriteArrayList<>();
+
+    /**
+     * Accepts this operation type
+     * @param operation the operation name (i.e. OperationInsertResult.NAMESPACE)
+     * @return this filter
+     */
+    public SosMessageFilter addOperation(String operation) {
+        String localName = SosMessageClassifier.localName(operation);
+        if ((localName != null) && (localName.length() > 0))
+            operations.addIfAbsent(localName);
+        return this;
+    }
+
+    /**
+     * Accepts InsertResult operations for this template. Once any template is added, InsertResults
+     * for all other templates are dropped.
+     * @param template the template ID (i.e. "http://www.sofwerx.org/torgi/wiskey35#output0")
+     * @return this filter
+     */
+    public SosMessageFilter addTemplate(String template) {
+        if (template != null)
+            templates.addIfAbsent(template.trim());
+        return this;
+    }
+
+    public void removeOperation(String operation) { operations.remove(SosMessageClassifier.localName(operation)); }
+    public void removeTemplate(String template) {
+        if (template != null)
+            templates.remove(template.trim());
+    }
+
+    public void clear() {
+        operations.clear();
+        templates.clear();
+    }
+
+    /**
+     * Does this filter let everything through
+     * @return true == no operations or templates have been declared
+     */
+    public boolean isEmpty() { return operations.isEmpty() && templates.isEmpty(); }
+
+    /**
+     * Should this message be parsed
+     * @param xml the message
+     * @return true == the message passes the filter
+     */
+    public boolean isAccepted(CharSequence xml) {
+        if (isEmpty())
+            return true;
+        int start = SosMessageClassifier.findOperation(xml);
+        if (start < 0)
+            return false;
+        if (!operations.isEmpty()) {
+            boolean found = false;
+            for (String operation:operations) {
+                if (SosMessageClassifier.isLocalName(xml,start,operation)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found)
+                return false;
+        }
+        if (!templates.isEmpty() && SosMessageClassifier.isLocalName(xml,start,OperationInsertResult.NAMESPACE)) {
+            long range = SosMessageClassifier.findTemplate(xml);
+            if (range < 0l)
+                return true; //cannot compare cheaply, so let the full parser sort it out
+            int templateStart = (int)(range >>> 32);
+            int templateEnd = (int)range;
+            for (String template:templates) {
+                if (SosMessageClassifier.regionEquals(xml,templateStart,templateEnd,template))
+                    return true;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Should this message be parsed
+     * @param bytes the message as UTF-8 bytes (i.e. from SqAN)
+     * @return true == the message passes the filter
+     */
+    public boolean isAccepted(byte[] bytes) {
+        if (isEmpty())
+            return true;
+        return (bytes != null) && isAccepted(SosMessageClassifier.asAscii(bytes));
+    }
+}
@@ -0,0 +1,85 @@
+package org.sofwerx.ogc.sos;
+
+/**
+ * Writes doubles into a StringBuilder at a fixed precision without creating any intermediate
+ * Strings. Trailing zeros (and a trailing decimal point) are dropped so the shortest text that
+ * holds the requested precision is sent (i.e. 12.5 at 3 decimal places is written as "12.5").
+ */
+public class SosNumberFormat {
+    /**
+     * The most decimal places that can be requested
+     */
+    public final static int MAX_DECIMAL_PLACES = 15;
+    private final static long[] POW10 = new long[MAX_DECIMAL_PLACES+1];
+    private final static double MAX_EXACT = 9007199254740992d; //2^53; above this a double can no longer hold every long
+    static {
+        POW10[0] = 1l;
+        for (int i=1;i<POW10.length;i++)
+            POW10[i] = POW10[i-1]*10l;
+    }
+
+    /**
+     * Writes a value rounded to a number of decimal places
+     * @param out where to write the value
+     * @param value the value (NaN and infinite values are written as Double.toString() would)
+     * @param decimalPlaces number of decimal places (clamped to 0..MAX_DECIMAL_PLACES)
+     */
+    public static void appendFixed(StringBuilder out, double value, int decimalPlaces) {
+        if (decimalPlaces < 0)
+            decimalPlaces = 0;
+        else if (decimalPlaces > MAX_DECIMAL_PLACES)
+            decimalPlaces = MAX_DECIMAL_PLACES;
+        double scaledValue = Math.abs(value)*POW10[decimalPlaces];
+        if (Double.isNaN(value) || !(scaledValue < MAX_EXACT)) {
+            out.append(value); //too large to scale into a long (or not a number) so no rounding is needed anyway
+            return;
+        }
+        long scaled = Math.round(scaledValue);
+        if ((value < 0d) && (scaled != 0l))
+            out.append('-');
+        long pow = POW10[decimalPlaces];
+        out.append(scaled/pow);
+        long fraction = scaled%pow;
+        if (fraction == 0l)
+            return;
+        while (fraction%10l == 0l) {
+            fraction /= 10l;
+            decimalPlaces--;
+        }
+        out.append('.');
+        for (int i=decimalPlaces-1;(i > 0) && (fraction < POW10[i]);i--)
+            out.append('0');
+        out.append(fraction);
+    }
+
+    /**
+     * Writes a value rounded to a number of significant digits
+     * @param out where to write the value
+     * @param value the value (NaN and infinite values are written as Double.toString() would)
+     * @param significantDigits number of significant digits (at least 1)
+     */
+    public static void appendSignificant(StringBuilder out, double value, int significantDigits) {
+        if (significantDigits < 1)
+            significantDigits = 1;
+        if ((value == 0d) || Double.isNaN(value) || Double.isInfinite(value)) {
+            appendFixed(out,value,0);
+            return;
+        }
+        int exponent = (int)Math.floor(Math.log10(Math.abs(value)));
+        int decimalPlaces = significantDigits - 1 - exponent;
+        if (decimalPlaces > MAX_DECIMAL_PLACES) {
+            out.append(value);
+            return;
+        }
+        if (decimalPlaces >= 0) {
+            appendFixed(out,value,decimalPlaces);
+            return;
+        }
+        if (-decimalPlaces > MAX_DECIMAL_PLACES) {
+            out.append(value);
+            return;
+        }
+        long pow = POW10[-decimalPlaces];
+        appendFixed(out,(double)Math.round(value/pow)*pow,0);
+    }
+}
@@ -0,0 +1,135 @@
+package org.sofwerx.ogc.sos;
+
+/**
+ * Parses numbers straight out of a range of characters so that resultValues can be decoded
+ * without creating a substring for every field. Doubles with up to 15 digits and a small
+ * exponent (which covers nearly all sensor data) are converted exactly with a single multiply
+ * or divide; anything else falls back to Double.parseDouble().
+ */
+public class SosNumberParser {
+    private final static int MAX_FAST_DIGITS = 15;
+    private final static double[] POW10 = new double[23]; //every power of 10 a double holds exactly
+    static {
+        POW10[0] = 1d;
+        for (int i=1;i<POW10.length;i++)
+            POW10[i] = POW10[i-1]*10d;
+    }
+
+    /**
+     * Parses a double
+     * @param text the characters
+     * @param start start of the number
+     * @param end end of the number (exclusive)
+     * @return the value
+     * @throws NumberFormatException if the range does not hold a number
+     */
+    public static double parseDouble(CharSequence text, int start, int end) throws NumberFormatException {
+        if (start >= end)
+            throw new NumberFormatException("empty number");
+        int i = start;
+        boolean negative = false;
+        char c = text.charAt(i);
+        if ((c == '-') || (c == '+')) {
+            negative = (c == '-');
+            i++;
+        }
+        long mantissa = 0l;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigits = false;
+        boolean fast = true;
+        for (;i<end;i++) {
+            c = text.charAt(i);
+            if ((c < '0') || (c > '9'))
+                break;
+            anyDigits = true;
+            if ((mantissa == 0l) && (c == '0'))
+                continue; //leading zeros do not count toward the digits
+            if (++digits > MAX_FAST_DIGITS) {
+                fast = false;
+                break;
+            }
+            mantissa = mantissa*10l + (c - '0');
+        }
+        if (fast && (i < end) && (text.charAt(i) == '.')) {
+            for (i++;i<end;i++) {
+                c = text.charAt(i);
+                if ((c < '0') || (c > '9'))
+                    break;
+                anyDigits = true;
+                if ((mantissa == 0l) && (c == '0')) {
+                    exponent--;
+                    continue;
+                }
+                if (++digits > MAX_FAST_DIGITS) {
+                    fast = false;
+                    break;
+                }
+                mantissa = mantissa*10l + (c - '0');
+                exponent--;
+            }
+        }
+        if (fast && anyDigits && (i < end) && ((text.charAt(i) == 'e') || (text.charAt(i) == 'E'))) {
+            i++;
+            boolean negativeExponent = false;
+            if ((i < end) && ((text.charAt(i) == '-') || (text.charAt(i) == '+'))) {
+                negativeExponent = (text.charAt(i) == '-');
+                i++;
+            }
+            int exponentStart = i;
+            int explicitExponent = 0;
+            for (;i<end;i++) {
+                c = text.charAt(i);
+                if ((c < '0') || (c > '9') || (explicitExponent > 1000))
+                    break;
+                explicitExponent = explicitExponent*10 + (c - '0');
+            }
+            if (i == exponentStart)
+                fast = false;
+            exponent += negativeExponent?-explicitExponent:explicitExponent;
+        }
+        if (fast && anyDigits && (i == end) && (exponent >= -22) && (exponent <= 22)) {
+            double value = (double)mantissa;
+            if (exponent < 0)
+                value /= POW10[-exponent];
+            else if (exponent > 0)
+                value *= POW10[exponent];
+            return negative?-value:value;
+        }
+        return Double.parseDouble(text.subSequence(start,end).toString()); //rare case, so let the platform handle it (and report any errors)
+    }
+
+    /**
+     * Parses a whole number
+     * @param text the characters
+     * @param start start of the number
+     * @param end end of the number (exclusive)
+     * @return the value
+     * @throws NumberFormatException if the range does not hold a whole number or it does not fit in a long
+     */
+    public static long parseLong(CharSequence text, int start, int end) throws NumberFormatException {
+        if (start >= end)
+            throw new NumberFormatException("empty number");
+        int i = start;
+        boolean negative = false;
+        char c = text.charAt(i);
+        if ((c == '-') || (c == '+')) {
+            negative = (c == '-');
+            i++;
+            if (i == end)
+                throw new NumberFormatException("no digits after sign");
+        }
+        long value = 0l; //accumulated as a negative number so Long.MIN_VALUE can be held
+        long limit = negative?Long.MIN_VALUE:-Long.MAX_VALUE;
+        for (;i<end;i++) {
+            c = text.charAt(i);
+            if ((c < '0') || (c > '9'))
+                throw new NumberFormatException("'"+c+"' is not a digit");
+            int digit = c - '0';
+            if (value < (limit + digit)/10l)
+                throw new NumberFormatException("value does not fit in a long");
+            value = value*10l - digit;
+        }
+        return negative?value:-value;
+    }
+}
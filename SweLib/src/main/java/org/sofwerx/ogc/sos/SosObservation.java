@@ -0,0 +1,171 @@
+package org.sofwerx.ogc.sos;
+
+import java.util.ArrayList;
+
+/**
+ * An immutable set of values for one block (row) of a result template. Values line up with the
+ * template fields: a time field holds a Long (UNIX time), a location field holds a double[] of
+ * latitude, longitude and altitude, a quantity holds a Double, a count holds a Long, a boolean
+ * holds a Boolean and text or a category holds a String.
+ */
+public class SosObservation {
+    private final String template;
+    private final SensorResultTemplateField[] fields;
+    private final Object[] values;
+
+    /**
+     * @param template the template ID these values were reported against
+     * @param fields the template fields (the array is copied; the fields themselves are shared
+     *               by every observation from the same template)
+     * @param values the values in the same order as the fields (copied, including any double[])
+     */
+    public SosObservation(String template, SensorResultTemplateField[] fields, Object[] values) {
+        this(template,fields.clone(),copyValues(values),true);
+    }
+
+    /**
+     * Builds an observation around arrays made just for it, without copying them
+     * @param template
+     * @param fields not changed after this (may be shared with other observations)
+     * @param values not used anywhere else
+     * @param owned always true; only here to tell this constructor apart
+     */
+    private SosObservation(String template, SensorResultTemplateField[] fields, Object[] values, boolean owned) {
+        this.template = template;
+        this.fields = fields;
+        this.values = values;
+    }
+
+    /**
+     * Builds an observation from arrays the caller built for it and will not change or hand
+     * out (i.e. values decoded from resultValues), so they are not copied again
+     * @param template
+     * @param fields
+     * @param values
+     * @return
+     */
+    static SosObservation newFromOwnedArrays(String template, SensorResultTemplateField[] fields, Object[] values) {
+        return new SosObservation(template,fields,values,true);
+    }
+
+    /**
+     * Takes a snapshot of the current values in a sensor
+     * @param sensor
+     * @return the snapshot (or null if the sensor has no measurements)
+     */
+    public static SosObservation newFromSensor(SosSensor sensor) {
+        if (sensor == null)
+            return null;
+        ArrayList<SensorMeasurement> measurements = sensor.getSensorMeasurements();
+        if ((measurements == null) || measurements.isEmpty())
+            return null;
+        SensorResultTemplateField[] fields = new SensorResultTemplateField[measurements.size()];
+        Object[] values = new Object[fields.length];
+        for (int i=0;i<fields.length;i++) {
+            SensorMeasurement measurement = measurements.get(i);
+            fields[i] = measurement.getFormat();
+            if (measurement instanceof SensorMeasurementLocation)
+                values[i] = ((SensorMeasurementLocation)measurement).getValues();
+            else
+                values[i] = measurement.getValue();
+        }
+        return newFromOwnedArrays(sensor.getAssignedTemplate(),fields,values); //getValues() already returns a new array
+    }
+
+    public String getTemplate() { return template; }
+    public int getFieldCount() { return fields.length; }
+    public SensorResultTemplateField getField(int index) { return fields[index]; }
+    public String getName(int index) { return getName(fields[index]); }
+
+    /**
+     * Gets the value of a field
+     * @param index
+     * @return the value (a location is a copy, so changing it does not change this observation)
+     */
+    public Object getValue(int index) { return copyValue(values[index]); }
+
+    /**
+     * Gets the value of a field without copying it, for encoding; the caller must not change it
+     * @param index
+     * @return
+     */
+    Object getValueForEncoding(int index) { return values[index]; }
+
+    /**
+     * Gets the value of a field
+     * @param name the field name (i.e. "agc")
+     * @return the value (or null if there is no such field)
+     */
+    public Object getValue(String name) {
+        int index = indexOf(name);
+        return (index < 0)?null:copyValue(values[index]);
+    }
+
+    /**
+     * Gets a numeric field as a double
+     * @param name the field name (i.e. "agc")
+     * @return the value (or Double.NaN if the field is missing or not a number)
+     */
+    public double getDouble(String name) {
+        int index = indexOf(name);
+        Object value = (index < 0)?null:values[index];
+        if (value instanceof Number)
+            return ((Number)value).doubleValue();
+        return Double.NaN;
+    }
+
+    /**
+     * Gets the time of this observation
+     * @return UNIX time (or Long.MIN_VALUE if the template has no time field)
+     */
+    public long getTime() {
+        for (int i=0;i<fields.length;i++) {
+            if ((fields[i] instanceof SensorTimeResultTemplateField) && (values[i] instanceof Long))
+                return (Long)values[i];
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Gets the location of this observation
+     * @return latitude, longitude and altitude (or null if the template has no location field)
+     */
+    public double[] getLocation() {
+        for (int i=0;i<fields.length;i++) {
+            if ((fields[i] instanceof SensorLocationResultTemplateField) && (values[i] instanceof double[]))
+                return ((double[])values[i]).clone();
+        }
+        return null;
+    }
+
+    private int indexOf(String name) {
+        if (name == null)
+            return -1;
+        for (int i=0;i<fields.length;i++) {
+            if (name.equalsIgnoreCase(getName(fields[i])))
+                return i;
+        }
+        return -1;
+    }
+
+    private static Object copyValue(Object value) {
+        if (value instanceof double[])
+            return ((double[])value).clone();
+        return value; //everything else held is immutable
+    }
+
+    private static Object[] copyValues(Object[] values) {
+        Object[] copy = values.clone();
+        for (int i=0;i<copy.length;i++)
+            copy[i] = copyValue(copy[i]);
+        return copy;
+    }
+
+    private static String getName(SensorResultTemplateField field) {
+        if (field instanceof SensorTimeResultTemplateField)
+            return SensorMeasurementTime.NAME;
+        if (field instanceof SensorLocationResultTemplateField)
+            return SensorMeasurementLocation.NAME;
+        return (field == null)?null:field.getName();
+    }
+}
@@ -0,0 +1,12 @@
+package org.sofwerx.ogc.sos;
+
+import java.util.ArrayList;
+
+/**
+ * Optional addition to SosMessageListener for apps that want every block in an incoming
+ * InsertResult rather than just the latest values written into the sensor. The whole batch
+ * is delivered in one call.
+ */
+public interface SosObservationListener {
+    void onSosObservationsReceived(OperationInsertResult operation, ArrayList<SosObservation> observations);
+}
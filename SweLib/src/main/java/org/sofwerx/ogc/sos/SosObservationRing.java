@@ -0,0 +1,117 @@
+package org.sofwerx.ogc.sos;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size ring of observation snapshots handed from sensor threads to SosService. Sensor
+ * code takes a snapshot of its readings on its own thread and publishes it here; the service
+ * drains whole batches later, so encoding never reads a SensorMeasurement while it is being
+ * changed. Publishing never blocks or waits on the service: a single producer always gets its
+ * slot in one try and several producers only retry when another producer claimed the same slot
+ * first. When the ring is full the new observation is dropped and counted rather than holding
+ * up the sensor.
+ */
+public class SosObservationRing {
+    public final static int DEFAULT_CAPACITY = 1024;
+    private final int mask;
+    private final SosSensor[] sensors;
+    private final SosObservation[] observations;
+    private final AtomicLongArray sequences; //which lap each slot is ready for; also publishes the slot contents
+    private final AtomicLong tail = new AtomicLong(0l); //next slot a producer claims
+    private final AtomicLong drops = new AtomicLong(0l);
+    private long head = 0l; //next slot to drain (only touched while draining)
+
+    /**
+     * @param capacity number of observations held before new ones are dropped (rounded up to a
+     *                 power of two)
+     */
+    public SosObservationRing(int capacity) {
+        int size = 2;
+        while (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+        sensors = new SosSensor[size];
+        observations = new SosObservation[size];
+        sequences = new AtomicLongArray(size);
+        for (int i=0;i<size;i++)
+            sequences.set(i,i);
+    }
+
+    public SosObservationRing() { this(DEFAULT_CAPACITY); }
+
+    /**
+     * Adds an observation; safe to call from any thread
+     * @param sensor the sensor the observation came from
+     * @param observation the snapshot (i.e. from SosObservation.newFromSensor())
+     * @return false == the ring was full (or the arguments were null) and the observation was dropped
+     */
+    public boolean publish(SosSensor sensor, SosObservation observation) {
+        if ((sensor == null) || (observation == null))
+            return false;
+        while (true) {
+            long position = tail.get();
+            int index = (int)(position & mask);
+            long lap = sequences.get(index) - position;
+            if (lap == 0l) {
+                if (tail.compareAndSet(position,position+1l)) {
+                    sensors[index] = sensor;
+                    observations[index] = observation;
+                    sequences.set(index,position+1l);
+                    return true;
+                }
+            } else if (lap < 0l) {
+                drops.incrementAndGet();
+                return false;
+            }
+            //otherwise another producer took this slot first; try the next one
+        }
+    }
+
+    /**
+     * Moves published observations out of the ring in the order they were published; only one
+     * thread may drain at a time
+     * @param sensorsOut receives the sensor for each observation
+     * @param observationsOut receives the observations
+     * @param max most observations to move
+     * @return number of observations moved
+     */
+    public synchronized int drainTo(List<SosSensor> sensorsOut, List<SosObservation> observationsOut, int max) {
+        int count = 0;
+        while (count < max) {
+            int index = (int)(head & mask);
+            if (sequences.get(index) != head+1l)
+                break; //nothing published here yet
+            sensorsOut.add(sensors[index]);
+            observationsOut.add(observations[index]);
+            sensors[index] = null;
+            observations[index] = null;
+            sequences.set(index,head+mask+1l); //free for the next lap
+            head++;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of observations waiting to be drained (approximate while producers are publishing)
+     * @return
+     */
+    public int size() {
+        long depth = tail.get() - getHead();
+        return (int)Math.max(0l,Math.min(depth,mask+1l));
+    }
+
+    public boolean isEmpty() { return size() == 0; }
+
+    public int getCapacity() { return mask + 1; }
+
+    /**
+     * Gets the number of observations dropped because the ring was full
+     * @return
+     */
+    public long getDropCount() { return drops.get(); }
+
+    private synchronized long getHead() { return head; }
+}
@@ -0,0 +1,93 @@
+package org.sofwerx.ogc.sos;
+
+import org.w3c.dom.Document;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * An operation serialized once into UTF-8 so the same bytes can be handed to every sender
+ * (IPC, SqAN and HTTP) rather than each one converting the XML on its own. The text form is
+ * only built if a sender actually needs it.
+ */
+public class SosPayload implements HttpHelper.BodyWriter {
+    private final byte[] bytes;
+    private final HttpHelper.BodyWriter writer;
+    private volatile String text;
+
+    public SosPayload(byte[] bytes) {
+        this.bytes = bytes;
+        this.writer = HttpHelper.newBodyWriter(bytes);
+    }
+
+    /**
+     * Serializes an operation (registration operations hand back their cached bytes)
+     * @param operation
+     * @return the payload (or null if the operation could not be turned into XML)
+     * @throws ParserConfigurationException
+     * @throws TransformerException
+     */
+    public static SosPayload newFromOperation(AbstractSosOperation operation) throws ParserConfigurationException, TransformerException {
+        if (operation == null)
+            return null;
+        return operation.toPayload();
+    }
+
+    /**
+     * Serializes a document into a pooled buffer and keeps only the final bytes
+     * @param doc
+     * @return the payload (or null if doc is null)
+     * @throws TransformerException
+     */
+    public static SosPayload newFromDocument(Document doc) throws TransformerException {
+        if (doc == null)
+            return null;
+        SosBufferPool.Buffer buffer = SosBufferPool.acquire();
+        try {
+            SosIpcTransceiver.newTransformer().transform(new DOMSource(doc),new StreamResult(buffer));
+            return new SosPayload(buffer.toExactArray());
+        } finally {
+            SosBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Gets the UTF-8 bytes; these are shared so they must not be changed
+     * @return
+     */
+    public byte[] getBytes() { return bytes; }
+
+    public int length() { return bytes.length; }
+
+    @Override
+    public long getLength(boolean soapWrapped) { return writer.getLength(soapWrapped); }
+
+    @Override
+    public void writeTo(OutputStream out, boolean soapWrapped) throws IOException { writer.writeTo(out,soapWrapped); }
+
+    /**
+     * Gets the payload as text, decoding it the first time this is called
+     * @return
+     */
+    public String getText() {
+        String result = text;
+        if (result == null) {
+            try {
+                result = new String(bytes,"UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                result = new String(bytes);
+            }
+            text = result;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() { return getText(); }
+}
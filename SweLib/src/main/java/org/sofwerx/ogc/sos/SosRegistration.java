@@ -0,0 +1,120 @@
+package org.sofwerx.ogc.sos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What one SOS server assigned to a sensor when it was registered there. Each server hands
+ * out its own procedure, offering and template, so these are kept per endpoint.
+ */
+public class SosRegistration {
+    private volatile String procedure;
+    private volatile String offering;
+    private volatile String template;
+    private final AtomicBoolean registering = new AtomicBoolean(false);
+    private final static int DISCOVERY_NONE = 0;
+    private final static int DISCOVERY_RUNNING = 1;
+    private final static int DISCOVERY_DONE = 2;
+    private final AtomicInteger discovery = new AtomicInteger(DISCOVERY_NONE);
+    public final static int MAX_PENDING = 64;
+    private final ArrayList<OperationInsertResult> pending = new ArrayList<>(); //readings waiting for registration to finish
+
+    public String getProcedure() { return procedure; }
+    public void setProcedure(String procedure) { this.procedure = procedure; }
+    public String getOffering() { return offering; }
+    public void setOffering(String offering) { this.offering = offering; }
+    public String getTemplate() { return template; }
+    public void setTemplate(String template) { this.template = template; }
+
+    /**
+     * Has the sensor been fully registered (InsertSensor and InsertResultTemplate) with this server
+     * @return
+     */
+    public boolean isComplete() { return (procedure != null) && (template != null); }
+
+    /**
+     * Copies the assignments from a sensor (i.e. one that was registered before failover was set up)
+     * @param sensor
+     */
+    public void copyFrom(SosSensor sensor) {
+        if (sensor == null)
+            return;
+        procedure = sensor.getAssignedProcedure();
+        offering = sensor.getAssignedOffering();
+        template = sensor.getAssignedTemplate();
+    }
+
+    /**
+     * Gives a sensor the assignments from this server
+     * @param sensor
+     */
+    public void applyTo(SosSensor sensor) {
+        if (sensor == null)
+            return;
+        sensor.setAssignedProcedure(procedure);
+        sensor.setAssignedOffering(offering);
+        sensor.setAssignedTemplate(template);
+    }
+
+    /**
+     * Claims the registration so only one InsertSensor/InsertResultTemplate is in flight
+     * @return true == the caller should register; false == registration is already underway
+     */
+    public boolean startRegistering() { return registering.compareAndSet(false,true); }
+
+    /**
+     * Releases the registration once a step has finished (or failed)
+     */
+    public void finishRegistering() { registering.set(false); }
+
+    public boolean isRegistering() { return registering.get(); }
+
+    /**
+     * Holds readings until the sensor is registered with this server; once MAX_PENDING are
+     * held the oldest is dropped
+     * @param result
+     */
+    public void addPending(OperationInsertResult result) {
+        if (result == null)
+            return;
+        synchronized (pending) {
+            if (pending.size() >= MAX_PENDING)
+                pending.remove(0);
+            pending.add(result);
+        }
+    }
+
+    /**
+     * Takes the readings held until registration finished
+     * @return the readings in the order they were held (empty if there are none)
+     */
+    public List<OperationInsertResult> takePending() {
+        synchronized (pending) {
+            ArrayList<OperationInsertResult> taken = new ArrayList<>(pending);
+            pending.clear();
+            return taken;
+        }
+    }
+
+    /**
+     * Claims the one lookup of this sensor on the server (GetCapabilities) before registering
+     * @return true == the caller should look; false == the server has already been asked
+     */
+    public boolean startDiscovery() { return discovery.compareAndSet(DISCOVERY_NONE,DISCOVERY_RUNNING); }
+
+    /**
+     * Marks the lookup finished, whether or not the server knew the sensor
+     */
+    public void finishDiscovery() { discovery.set(DISCOVERY_DONE); }
+
+    public boolean isDiscovering() { return discovery.get() == DISCOVERY_RUNNING; }
+
+    public void clear() {
+        procedure = null;
+        offering = null;
+        template = null;
+        discovery.set(DISCOVERY_NONE);
+    }
+}
@@ -0,0 +1,24 @@
+package org.sofwerx.ogc.sos;
+
+/**
+ * Reports progress while SosService registers a fleet of sensors (see registerSensors()).
+ * Callbacks run on the registration lanes, so keep them short.
+ */
+public interface SosRegistrationListener {
+    /**
+     * A sensor now has its procedure, offering and template from the server
+     * @param sensor
+     * @param finished how many sensors have finished so far (registered or failed)
+     * @param total how many sensors are being registered
+     */
+    void onSensorRegistered(SosSensor sensor, int finished, int total);
+
+    /**
+     * A sensor could not be registered; the others carry on
+     * @param sensor
+     * @param error what went wrong
+     * @param finished how many sensors have finished so far (registered or failed)
+     * @param total how many sensors are being registered
+     */
+    void onSensorRegistrationFailed(SosSensor sensor, SosException error, int finished, int total);
+}
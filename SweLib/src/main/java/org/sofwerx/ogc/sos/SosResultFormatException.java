@@ -0,0 +1,28 @@
+package org.sofwerx.ogc.sos;
+
+/**
+ * Thrown when a field in resultValues cannot be decoded; reports where the bad field is so a
+ * malformed message can be tracked down without dumping the whole payload
+ */
+public class SosResultFormatException extends NumberFormatException {
+    private final int block;
+    private final int field;
+    private final int offset;
+
+    /**
+     * @param message what was wrong with the field
+     * @param block index of the block (row) holding the field
+     * @param field index of the field within the block
+     * @param offset character offset of the field within resultValues
+     */
+    public SosResultFormatException(String message, int block, int field, int offset) {
+        super(message+" (block "+block+", field "+field+", offset "+offset+")");
+        this.block = block;
+        this.field = field;
+        this.offset = offset;
+    }
+
+    public int getBlock() { return block; }
+    public int getField() { return field; }
+    public int getOffset() { return offset; }
+}
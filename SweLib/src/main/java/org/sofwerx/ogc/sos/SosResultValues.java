@@ -0,0 +1,273 @@
+package org.sofwerx.ogc.sos;
+
+import java.util.ArrayList;
+
+/**
+ * Holds the raw resultValues text from an InsertResult and only decodes a field when it is
+ * asked for. Decoded fields are cached so each one is parsed at most once. Apps that only
+ * forward or filter results never pay for decoding.
+ *
+ * The text can hold several blocks (rows) separated by the block separator, each with the
+ * same fields separated by the token separator. Fields are found by index and numbers are parsed
+ * in place (see SosNumberParser) so no substrings are created unless text is asked for.
+ */
+public class SosResultValues {
+    private final String text;
+    private final String tokenSeparator;
+    private final String blockSeparator;
+    private int[] bounds; //start and end of each token, built on first access
+    private int[] blocks; //index of the first token in each block, plus one past the last token
+    private Object[] values;
+
+    /**
+     * @param text the resultValues text
+     * @param tokenSeparator the separator between fields (i.e. OperationInsertResultTemplate.FIELD_SEPERATOR)
+     * @param blockSeparator the separator between blocks (i.e. OperationInsertResultTemplate.BLOCK_SEPERATOR)
+     */
+    public SosResultValues(String text, String tokenSeparator, String blockSeparator) {
+        this.text = (text == null)?"":text;
+        this.tokenSeparator = ((tokenSeparator == null) || (tokenSeparator.length() == 0))?OperationInsertResultTemplate.FIELD_SEPERATOR:tokenSeparator;
+        this.blockSeparator = ((blockSeparator == null) || (blockSeparator.length() == 0))?OperationInsertResultTemplate.BLOCK_SEPERATOR:blockSeparator;
+    }
+
+    public SosResultValues(String text) {
+        this(text,OperationInsertResultTemplate.FIELD_SEPERATOR,OperationInsertResultTemplate.BLOCK_SEPERATOR);
+    }
+
+    /**
+     * Gets the raw text exactly as it was received
+     * @return
+     */
+    public String getText() { return text; }
+
+    /**
+     * Gets the number of blocks (rows) in the text; an empty trailing block is not counted
+     * @return
+     */
+    public synchronized int getBlockCount() {
+        index();
+        return blocks.length - 1;
+    }
+
+    /**
+     * Gets the number of fields in the first block
+     * @return
+     */
+    public int getFieldCount() { return getFieldCount(0); }
+
+    /**
+     * Gets the number of fields in a block
+     * @param block index of the block
+     * @return
+     */
+    public synchronized int getFieldCount(int block) {
+        index();
+        if ((block < 0) || (block >= blocks.length - 1))
+            return 0;
+        return blocks[block+1] - blocks[block];
+    }
+
+    public String getString(int field) { return getString(0,field); }
+    public double getDouble(int field) throws NumberFormatException { return getDouble(0,field); }
+    public long getLong(int field) throws NumberFormatException { return getLong(0,field); }
+
+    /**
+     * Gets the text of a field
+     * @param block index of the block
+     * @param field index of the field within the block
+     * @return the text
+     * @throws IndexOutOfBoundsException if there is no such field
+     */
+    public synchronized String getString(int block, int field) {
+        int token = getToken(block,field);
+        Object value = values[token];
+        if (value instanceof String)
+            return (String)value;
+        String string = text.substring(bounds[token*2],bounds[token*2+1]);
+        if (value == null)
+            values[token] = string;
+        return string;
+    }
+
+    /**
+     * Gets a field as a double; the number is parsed in place without creating a String
+     * @param block index of the block
+     * @param field index of the field within the block
+     * @return the value
+     * @throws SosResultFormatException if the field is not a number
+     */
+    public synchronized double getDouble(int block, int field) throws NumberFormatException {
+        int token = getToken(block,field);
+        if (values[token] instanceof Double)
+            return (Double)values[token];
+        double parsed;
+        try {
+            parsed = SosNumberParser.parseDouble(text,bounds[token*2],bounds[token*2+1]);
+        } catch (NumberFormatException e) {
+            throw new SosResultFormatException("\""+getString(block,field)+"\" is not a number",block,field,bounds[token*2]);
+        }
+        values[token] = parsed;
+        return parsed;
+    }
+
+    /**
+     * Gets a field as a long; the number is parsed in place without creating a String
+     * @param block index of the block
+     * @param field index of the field within the block
+     * @return the value
+     * @throws SosResultFormatException if the field is not a whole number
+     */
+    public synchronized long getLong(int block, int field) throws NumberFormatException {
+        int token = getToken(block,field);
+        if (values[token] instanceof Long)
+            return (Long)values[token];
+        long parsed;
+        try {
+            parsed = SosNumberParser.parseLong(text,bounds[token*2],bounds[token*2+1]);
+        } catch (NumberFormatException e) {
+            throw new SosResultFormatException("\""+getString(block,field)+"\" is not a whole number",block,field,bounds[token*2]);
+        }
+        values[token] = parsed;
+        return parsed;
+    }
+
+    /**
+     * Gets a field as a boolean; "true"/"false" and "1"/"0" are accepted
+     * @param block index of the block
+     * @param field index of the field within the block
+     * @return the value
+     * @throws SosResultFormatException if the field is not a boolean
+     */
+    public synchronized boolean getBoolean(int block, int field) throws NumberFormatException {
+        int token = getToken(block,field);
+        if (values[token] instanceof Boolean)
+            return (Boolean)values[token];
+        int start = bounds[token*2];
+        int length = bounds[token*2+1] - start;
+        boolean parsed;
+        if (((length == 4) && text.regionMatches(true,start,"true",0,4)) || ((length == 1) && (text.charAt(start) == '1')))
+            parsed = true;
+        else if (((length == 5) && text.regionMatches(true,start,"false",0,5)) || ((length == 1) && (text.charAt(start) == '0')))
+            parsed = false;
+        else
+            throw new SosResultFormatException("\""+getString(block,field)+"\" is not a boolean",block,field,start);
+        values[token] = parsed;
+        return parsed;
+    }
+
+    /**
+     * Decodes one field with its own codec; a quantity that is not a number is kept as text
+     * rather than failing the whole block
+     * @param field the template field
+     * @param block index of the block
+     * @param token index of the first token for this field within the block
+     * @return the value
+     * @throws SosResultFormatException if a time or location field cannot be decoded
+     */
+    public Object decode(SensorResultTemplateField field, int block, int token) throws NumberFormatException {
+        try {
+            return field.decode(this,block,token);
+        } catch (NumberFormatException e) {
+            if ((field instanceof SensorTimeResultTemplateField) || (field instanceof SensorLocationResultTemplateField))
+                throw e;
+            return getString(block,token);
+        }
+    }
+
+    /**
+     * Decodes a block into the measurements of a sensor
+     * @param sensor the sensor, which must already hold the template layout
+     * @param block index of the block
+     * @return false == the sensor has no layout to decode into
+     * @throws SosResultFormatException if a field cannot be decoded
+     */
+    public boolean decodeInto(SosSensor sensor, int block) throws NumberFormatException {
+        if (sensor == null)
+            return false;
+        synchronized (sensor) {
+            ArrayList<SensorMeasurement> measurements = sensor.getSensorMeasurements();
+            if (measurements == null)
+                return false;
+            int token = 0;
+            for (SensorMeasurement measurement:measurements) {
+                SensorResultTemplateField field = measurement.getFormat();
+                measurement.setValue(decode(field,block,token));
+                token += field.getTokenCount();
+            }
+        }
+        return true;
+    }
+
+    private int getToken(int block, int field) {
+        index();
+        if ((block < 0) || (block >= blocks.length - 1))
+            throw new IndexOutOfBoundsException("resultValues has "+(blocks.length - 1)+" blocks but block "+block+" was requested");
+        int token = blocks[block] + field;
+        if ((field < 0) || (token >= blocks[block+1]))
+            throw new IndexOutOfBoundsException("block "+block+" has "+(blocks[block+1]-blocks[block])+" fields but field "+field+" was requested");
+        return token;
+    }
+
+    private void index() {
+        if (bounds != null)
+            return;
+        int length = text.length();
+        int tokenCount = 0;
+        int blockCount = 0;
+        for (int pass=0;pass<2;pass++) {
+            int[] found = (pass == 0)?null:new int[tokenCount*2];
+            int[] foundBlocks = (pass == 0)?null:new int[blockCount+1];
+            tokenCount = 0;
+            blockCount = 0;
+            int blockStart = 0;
+            while (blockStart < length) {
+                int blockEnd = text.indexOf(blockSeparator,blockStart);
+                if (blockEnd < 0)
+                    blockEnd = length;
+                if (!isBlank(blockStart,blockEnd)) {
+                    if (foundBlocks != null)
+                        foundBlocks[blockCount] = tokenCount;
+                    blockCount++;
+                    int start = blockStart;
+                    while (true) {
+                        int end = text.indexOf(tokenSeparator,start);
+                        if ((end < 0) || (end > blockEnd))
+                            end = blockEnd;
+                        if (found != null) {
+                            int trimmedStart = start;
+                            int trimmedEnd = end;
+                            while ((trimmedStart < trimmedEnd) && Character.isWhitespace(text.charAt(trimmedStart)))
+                                trimmedStart++;
+                            while ((trimmedEnd > trimmedStart) && Character.isWhitespace(text.charAt(trimmedEnd-1)))
+                                trimmedEnd--;
+                            found[tokenCount*2] = trimmedStart;
+                            found[tokenCount*2+1] = trimmedEnd;
+                        }
+                        tokenCount++;
+                        if (end >= blockEnd)
+                            break;
+                        start = end + tokenSeparator.length();
+                    }
+                }
+                blockStart = blockEnd + blockSeparator.length();
+            }
+            if (foundBlocks != null) {
+                foundBlocks[blockCount] = tokenCount;
+                values = new Object[tokenCount];
+                blocks = foundBlocks;
+                bounds = found;
+            }
+        }
+    }
+
+    private boolean isBlank(int start, int end) {
+        for (int i=start;i<end;i++) {
+            if (!Character.isWhitespace(text.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() { return text; }
+}
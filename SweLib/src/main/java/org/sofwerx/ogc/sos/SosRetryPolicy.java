@@ -0,0 +1,64 @@
+package org.sofwerx.ogc.sos;
+
+import java.util.Random;
+
+/**
+ * How many times to try an SOS server request and how long to wait between tries. Waits grow
+ * exponentially and are randomized ("full jitter") so that many devices recovering from the
+ * same outage do not all retry at the same moment.
+ */
+public class SosRetryPolicy {
+    public final static int DEFAULT_MAX_ATTEMPTS = 3;
+    public final static long DEFAULT_BASE_DELAY = 500l;
+    public final static long DEFAULT_MAX_DELAY = 1000l * 30l;
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+
+    /**
+     * @param maxAttempts total tries including the first one (1 == never retry)
+     * @param baseDelay upper bound of the wait before the first retry (in ms)
+     * @param maxDelay cap on the wait between tries (in ms)
+     */
+    public SosRetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        this.maxAttempts = Math.max(1,maxAttempts);
+        this.baseDelay = Math.max(1l,baseDelay);
+        this.maxDelay = Math.max(this.baseDelay,maxDelay);
+    }
+
+    public SosRetryPolicy() { this(DEFAULT_MAX_ATTEMPTS,DEFAULT_BASE_DELAY,DEFAULT_MAX_DELAY); }
+
+    /**
+     * A policy that never retries
+     * @return
+     */
+    public static SosRetryPolicy newNoRetry() { return new SosRetryPolicy(1,DEFAULT_BASE_DELAY,DEFAULT_BASE_DELAY); }
+
+    public int getMaxAttempts() { return maxAttempts; }
+    public long getBaseDelay() { return baseDelay; }
+    public long getMaxDelay() { return maxDelay; }
+
+    /**
+     * Should another try be made
+     * @param attempt the number of the try that just failed (starting at 1)
+     * @return
+     */
+    public boolean shouldRetry(int attempt) { return attempt < maxAttempts; }
+
+    /**
+     * Gets how long to wait before the next try
+     * @param attempt the number of the try that just failed (starting at 1)
+     * @return wait time (in ms)
+     */
+    public long getDelay(int attempt) {
+        long ceiling = baseDelay << Math.min(Math.max(0,attempt-1),20);
+        if ((ceiling <= 0l) || (ceiling > maxDelay))
+            ceiling = maxDelay;
+        double fraction;
+        synchronized (random) {
+            fraction = random.nextDouble();
+        }
+        return 1l + (long)(fraction*ceiling);
+    }
+}
@@ -7,8 +7,12 @@ import org.json.JSONObject;
 
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
 /**
  * This is the overall device/sensor that will be reporting to the SOS. This sensor can make report
  * multiple measurements.
@@ -24,6 +28,11 @@ public class SosSensor {
     private String shortName;
     private ArrayList<SensorMeasurement> measurements;
     private ArrayList<String> observableProperties;
+    private final Object payloadLock = new Object();
+    private String insertSensorKey;
+    private SosPayload insertSensorPayload;
+    private String templateKey;
+    private HashMap<String,SosPayload> templatePayloads; //by offering, as each server assigns its own
 
     public SosSensor() {
         assignedOffering = null;
@@ -282,6 +291,119 @@ public class SosSensor {
         return observableProperties;
     }
 
+    /**
+     * Describes everything that goes into the InsertSensor XML for this sensor
+     * @return
+     */
+    private String getSensorDescription() {
+        StringBuilder out = new StringBuilder();
+        out.append(id).append('\u0000').append(uniqueId).append('\u0000').append(longName)
+                .append('\u0000').append(shortName).append('\u0000').append(getFirstObservableProperty());
+        return out.toString();
+    }
+
+    /**
+     * Describes everything that goes into the InsertResultTemplate XML for this sensor other
+     * than the offering
+     * @return
+     */
+    String getTemplateDescription() {
+        ArrayList<SensorResultTemplateField> fields = new ArrayList<>();
+        ArrayList<SensorMeasurement> current = measurements;
+        if (current != null) {
+            for (SensorMeasurement measurement:current) {
+                if (measurement.getFormat() != null)
+                    fields.add(measurement.getFormat());
+            }
+        }
+        return describeFields(fields);
+    }
+
+    /**
+     * Describes a field layout; layouts with the same description produce the same template XML
+     * @param fields
+     * @return
+     */
+    static String describeFields(ArrayList<SensorResultTemplateField> fields) {
+        StringBuilder out = new StringBuilder();
+        if (fields != null) {
+            for (SensorResultTemplateField field:fields) {
+                field.describe(out);
+                out.append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Gets the InsertSensor XML for this sensor; the bytes are built once and reused until the
+     * sensor description changes
+     * @param operation
+     * @return the payload (or null if the operation could not be turned into XML)
+     * @throws ParserConfigurationException
+     * @throws TransformerException
+     */
+    SosPayload getInsertSensorPayload(OperationInsertSensor operation) throws ParserConfigurationException, TransformerException {
+        String key = getSensorDescription();
+        synchronized (payloadLock) {
+            if ((insertSensorPayload != null) && key.equals(insertSensorKey))
+                return insertSensorPayload;
+        }
+        SosPayload payload = SosPayload.newFromDocument(operation.toXML());
+        if (payload != null) {
+            synchronized (payloadLock) {
+                insertSensorKey = getSensorDescription(); //toXML may have filled in the observable property
+                insertSensorPayload = payload;
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Gets the InsertResultTemplate XML for this sensor and the operation's offering; the bytes
+     * are built once per offering and reused until the measurement templates change
+     * @param operation
+     * @return the payload (or null if the operation could not be turned into XML)
+     * @throws ParserConfigurationException
+     * @throws TransformerException
+     */
+    SosPayload getInsertResultTemplatePayload(OperationInsertResultTemplate operation) throws ParserConfigurationException, TransformerException {
+        String offering = operation.getOffering();
+        if (offering == null)
+            return SosPayload.newFromDocument(operation.toXML());
+        String key = getTemplateDescription();
+        synchronized (payloadLock) {
+            if ((templatePayloads != null) && key.equals(templateKey)) {
+                SosPayload payload = templatePayloads.get(offering);
+                if (payload != null)
+                    return payload;
+            }
+        }
+        SosPayload payload = SosPayload.newFromDocument(operation.toXML());
+        if (payload != null) {
+            synchronized (payloadLock) {
+                if ((templatePayloads == null) || !key.equals(templateKey)) {
+                    templatePayloads = new HashMap<>();
+                    templateKey = key;
+                }
+                templatePayloads.put(offering,payload);
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Drops the cached registration XML so it is rebuilt the next time it is needed
+     */
+    public void clearCachedPayloads() {
+        synchronized (payloadLock) {
+            insertSensorKey = null;
+            insertSensorPayload = null;
+            templateKey = null;
+            templatePayloads = null;
+        }
+    }
+
     /**
      * Intakes a JSON version of GetResult response and parse it into SensorMeasurements
      * @param obj
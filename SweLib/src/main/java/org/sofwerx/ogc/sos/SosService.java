@@ -2,6 +2,7 @@ package org.sofwerx.ogc.sos;
 
 import android.content.Context;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
@@ -10,10 +11,20 @@ import android.util.Pair;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.w3c.dom.Document;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -24,25 +35,66 @@ import javax.xml.transform.TransformerException;
  */
 public class SosService implements SosMessageListener {
     public final static String DEFAULT_SWE_CHANNEL = "sost";
+    public final static long DEFAULT_OBSERVATION_BATCH_INTERVAL = 250l;
+    public final static int DEFAULT_OBSERVATION_BATCH_SIZE = 64;
+    public final static int MAX_REGISTRATION_LANES = 16;
+    private final static String PREFS_REGISTRATIONS = "SosRegistrations";
+    private final static String PREFS_PROCEDURE = ".procedure";
+    private final static String PREFS_OFFERING = ".offering";
+    private final static String PREFS_TEMPLATE = ".template";
+    private final static String PREFS_LAYOUT = ".layout";
     private HandlerThread sosThread; //the MANET itself runs on this thread where possible
-    private Handler handler;
+    private volatile Handler handler;
+    private final Object startLock = new Object();
+    private ArrayList<Runnable> queuedUntilReady = new ArrayList<>(); //calls made before the service thread was ready (null once shut down)
+    private final long constructedTime = System.currentTimeMillis();
+    private volatile long readyLatency = -1l;
+    private volatile long firstObservationLatency = -1l;
+    private volatile boolean persistRegistrations = false;
+    private volatile boolean discoverRegistrations = false;
+    private SosLane ipcLane; //each transport gets its own lane so a slow SOS server never holds up local delivery
+    private SosLane sqanLane;
+    private final SosShardDispatcher shards = new SosShardDispatcher(); //no lanes == everything is encoded on the service thread
+    private final SosDecodePipeline decodePipeline = new SosDecodePipeline(); //shared by each transceiver this service creates
     private SosMessageListener listener;
-    private String serverURL;
+    private volatile SosDestination destination; //the SOS servers, each with its own HTTP lane
+    private volatile SosEndpoint registeredEndpoint; //the server whose assignments the sensor currently holds
+    private final ConcurrentHashMap<SosSensor,SosEndpoint> fleetEndpoints = new ConcurrentHashMap<>(); //the same for each sensor registered with registerSensors()
+    private final CopyOnWriteArrayList<SosDestination> fanOutDestinations = new CopyOnWriteArrayList<>(); //other servers the sensor also publishes to
+    private SosRetryPolicy retryPolicy;
     private String username;
     private String password;
     private Context context;
     private SosSensor sosSensor;
     private SosIpcTransceiver transceiver;
+    private SosMessageFilter messageFilter;
+    private final SosTemplateRegistry templateRegistry = new SosTemplateRegistry();
     private AtomicBoolean isRunning = new AtomicBoolean(false);
     private AtomicBoolean sendSensorReadingWhenReady = new AtomicBoolean(false);
+    private final CopyOnWriteArrayList<SosFuture<SosSensor>> pendingRegistrations = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<SosBulkRegistration> bulkRegistrations = new CopyOnWriteArrayList<>();
+    private final HttpHost httpHost = new HttpHost();
+    private final BulkHost bulkHost = new BulkHost();
+    private final ArrayList<SosLane> registrationLanes = new ArrayList<>(); //created as registerSensors() first needs them and shared by every call
+    private boolean registrationLanesClosed = false;
+    private volatile long timeToLive = 0l; //how long an operation is worth sending (0 == forever)
+    private final AtomicLong expiredDrops = new AtomicLong(0l);
+    private final SosObservationRing observationRing = new SosObservationRing(); //snapshots published by sensor threads
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final LinkedHashMap<SosSensor,ArrayList<SosObservation>> heldObservations = new LinkedHashMap<>(); //drained before their sensor was registered
+    private int heldCount = 0;
+    private final AtomicLong heldDrops = new AtomicLong(0l);
+    private volatile long observationBatchInterval = DEFAULT_OBSERVATION_BATCH_INTERVAL;
+    private volatile int observationBatchSize = DEFAULT_OBSERVATION_BATCH_SIZE;
     private boolean ipcBroadcast;
     private boolean sosHttpBroadcast;
     private boolean sensorMode = true;
     private AtomicBoolean shouldPollServer = new AtomicBoolean(false);
     private long pollInterval = 1000l * 15l; //default server polling interval
-    private boolean autoThrottle = false;
-    private long outgoingThrottleRate = SosIpcTransceiver.DEFAULT_OUTGOING_THROTTLE_RATE;
-    private long incomingThrottleRate = SosIpcTransceiver.DEFAULT_INCOMING_THROTTLE_RATE;
+    private volatile boolean autoThrottle = false;
+    private final SosTransportConfig transportConfig = new SosTransportConfig(SosTransportConfig.getShared());
+    private volatile long outgoingThrottleRate = SosIpcTransceiver.DEFAULT_OUTGOING_THROTTLE_RATE;
+    private volatile long incomingThrottleRate = SosIpcTransceiver.DEFAULT_INCOMING_THROTTLE_RATE;
 
     /**
      * Creates a new SosService
@@ -59,210 +111,1679 @@ public class SosService implements SosMessageListener {
             Log.e(SosIpcTransceiver.TAG,"SosService should not be passed a null context");
         this.context = context;
         this.sosSensor = sosSensor;
+        templateRegistry.setDefaultSensor(sosSensor);
         if (sosSensor == null) {
             sensorMode = false;
             Log.d(SosIpcTransceiver.TAG,"No sensor provided for SosService constructor, so SosService assumed to be running in server (rather than) sensor mode. To switch to sensor mode, use setSensorMode()");
         }
         if (context instanceof SosMessageListener)
             listener = (SosMessageListener)context;
-        this.serverURL = sosServerURL;
+        setSosServerUrl(sosServerURL);
         setSosServerUsername(username);
         setSosServerPassword(password);
+        ipcLane = new SosLane("IPC");
+        sqanLane = new SosLane("SqAN");
         sosThread = new HandlerThread("SosService") {
             @Override
             protected void onLooperPrepared() {
-                Log.i(SosIpcTransceiver.TAG,"SosService started");
-                handler = new Handler(sosThread.getLooper());
+                Handler ready = new Handler(getLooper());
+                ArrayList<Runnable> queued;
+                synchronized (startLock) {
+                    if (queuedUntilReady == null)
+                        return; //shut down before it ever started
+                    handler = ready;
+                    queued = queuedUntilReady;
+                    queuedUntilReady = new ArrayList<>();
+                }
+                readyLatency = System.currentTimeMillis() - constructedTime;
+                Log.i(SosIpcTransceiver.TAG,"SosService started in "+readyLatency+"ms");
                 setOn(turnOn);
+                for (Runnable task:queued)
+                    task.run(); //each of these hands its task to the handler, so they run after setOn()
+            }
+        };
+        sosThread.start();
+        this.ipcBroadcast = enableIpcBroadcast;
+        this.sosHttpBroadcast = (sosServerURL != null);
+    }
+
+    public SosService(Context context, SosSensor sosSensor, String sosServerURL, final boolean turnOn, final boolean enableIpcBroadcast) {
+        this(context, sosSensor, sosServerURL, null, null, turnOn, enableIpcBroadcast);
+    }
+
+    public boolean startPolling() {
+        if (!shouldPollServer.get()) {
+            shouldPollServer.set(true);
+            if (!post(repeatPollServer)) {
+                Log.d(SosIpcTransceiver.TAG,"cannot setup regular server polling as the service has been shut down");
+                shouldPollServer.set(false);
+                return false;
+            }
+            return true;
+        }
+        return true;
+    }
+
+    /**
+     * Runs a task on the service thread. While the service is still starting, the task is held
+     * and handed over as soon as the thread is ready rather than being refused.
+     * @param task
+     * @return false == the service has been shut down
+     */
+    private boolean post(Runnable task) { return postDelayed(task,0l); }
+
+    /**
+     * Runs a task on the service thread after a delay, holding it while the service is starting
+     * @param task
+     * @param delay time to wait (in ms)
+     * @return false == the service has been shut down
+     */
+    private boolean postDelayed(final Runnable task, final long delay) {
+        Handler current = handler;
+        if (current == null) {
+            synchronized (startLock) {
+                current = handler;
+                if (current == null) {
+                    if (queuedUntilReady == null)
+                        return false;
+                    final long due = System.currentTimeMillis() + delay;
+                    queuedUntilReady.add(() -> {
+                        Handler ready = handler;
+                        if (ready != null)
+                            ready.postDelayed(task,Math.max(0l,due - System.currentTimeMillis()));
+                    });
+                    return true;
+                }
+            }
+        }
+        return current.postDelayed(task,delay);
+    }
+
+    /**
+     * Runs a task on the service thread after a delay unless a future finishes first; the task is
+     * taken off the service thread once the future finishes so it does not hold on to the
+     * operation until it would have run
+     * @param future
+     * @param task
+     * @param delay time to wait (in ms)
+     * @return false == the service has been shut down
+     */
+    private <T> boolean postUntilDone(SosFuture<T> future, final Runnable task, long delay) {
+        if (!postDelayed(task,delay))
+            return false;
+        future.addListener(new SosFutureListener<T>() {
+            @Override
+            public void onSosSuccess(T result) { removeCallbacks(task); }
+
+            @Override
+            public void onSosFailure(SosException error) { removeCallbacks(task); }
+        });
+        return true;
+    }
+
+    /**
+     * Removes a task that has not run yet from the service thread (tasks still held while the
+     * service is starting just find their future finished when they run)
+     * @param task
+     */
+    private void removeCallbacks(Runnable task) {
+        Handler current = handler;
+        if (current != null)
+            current.removeCallbacks(task);
+    }
+
+    public void stopPolling() {
+        shouldPollServer.set(false);
+    }
+
+    /**
+     * TIme between polling of the SOS server for sensor data
+     * @param interval time (in ms)
+     */
+    public void setPollingInterval(long interval) { pollInterval = interval; }
+    public boolean isPollingServer() { return shouldPollServer.get(); }
+
+    private Runnable repeatPollServer = new Runnable() {
+        @Override
+        public void run() {
+            if (shouldPollServer.get()) {
+                if (sosSensor != null) {
+                    OperationGetResults op = new OperationGetResults(sosSensor);
+                    op.setTemplateRegistry(templateRegistry);
+                    if (op.isValid())
+                        broadcast(op);
+                }
+                postDelayed(repeatPollServer, pollInterval);
+            }
+        }
+    };
+
+    /**
+     * Toggles between on (active/running/transmitting and receiving) and off (paused)
+     * @param on true = on/active/transmitting and receiving
+     */
+    public void setOn(boolean on) {
+        if (on != isRunning.get()) {
+            if (on) {
+                if (context != null) {
+                    Log.i(SosIpcTransceiver.TAG,"SosService turned ON");
+                    transceiver = new SosIpcTransceiver(this,transportConfig);
+                    transceiver.setFilter(messageFilter);
+                    transceiver.setTemplateRegistry(templateRegistry);
+                    transceiver.setDecodePipeline(decodePipeline);
+                    IntentFilter intentFilter = new IntentFilter(SosIpcTransceiver.ACTION_SOS);
+                    context.registerReceiver(transceiver, intentFilter);
+                    if (sensorMode)
+                        broadcastSensorReadings();
+                    else
+                        startPolling();
+                }
+            } else {
+                Log.i(SosIpcTransceiver.TAG,"SosService turned OFF");
+                if (transceiver != null) {
+                    context.unregisterReceiver(transceiver);
+                    transceiver = null;
+                }
+            }
+            isRunning.set(on);
+        }
+    }
+
+    public void broadcastSensorReadings() {
+        Log.d(SosIpcTransceiver.TAG,"Trying to broadcast sensor readings");
+        if (sosSensor != null) {
+            selectRegistration();
+            if (sosSensor.isReadyToSendResults()) {
+                OperationInsertResult operation = new OperationInsertResult(sosSensor);
+                if (operation.isValid())
+                    broadcast(operation);
+                else {
+                    if (listener != null)
+                        listener.onSosError("Unable to send sensor readings as sensor measurements are not fully initialized");
+                    Log.d(SosIpcTransceiver.TAG, "Cannot broadcast sensor readings; OperationInsertResult did not have valid data");
+                }
+            } else {
+                registerSensor();
+                sendSensorReadingWhenReady.set(true);
+            }
+        } else {
+            if (listener != null)
+                listener.onSosError("Cannot send sensor readings as no sensor has been set. Call setSosSensor first");
+            Log.d(SosIpcTransceiver.TAG, "...but SosSensor is null");
+        }
+    }
+
+    /**
+     * Sends the current sensor readings, registering the sensor first if needed
+     * @return a future that completes with the SOS server response to the InsertResult (or null
+     * if no SOS server is used)
+     */
+    public SosFuture<AbstractSosOperation> broadcastSensorReadingsAsync() {
+        SosSensor sensor = sosSensor;
+        if (sensor == null)
+            return SosFuture.newFailed(new SosException("Cannot send sensor readings as no sensor has been set. Call setSosSensor first"));
+        selectRegistration();
+        if (sensor.isReadyToSendResults())
+            return broadcastReadingsAsync(sensor);
+        final SosFuture<AbstractSosOperation> future = new SosFuture<>();
+        final SosFuture<SosSensor> registration = registerSensorAsync();
+        future.setCancelAction(() -> registration.cancel(false));
+        registration.addListener(new SosFutureListener<SosSensor>() {
+            @Override
+            public void onSosSuccess(SosSensor result) {
+                if (!future.isDone())
+                    future.completeFrom(broadcastReadingsAsync(result));
+            }
+
+            @Override
+            public void onSosFailure(SosException error) { future.fail(error); }
+        });
+        return future;
+    }
+
+    /**
+     * Sends the current readings of one of several sensors this service publishes for (i.e.
+     * sensors registered with registerSensors()); with setShardCount() readings for different
+     * sensors are encoded and sent in parallel
+     * @param sensor
+     * @return a future that completes with the SOS server response to the InsertResult (or null
+     * if no SOS server is used)
+     */
+    public SosFuture<AbstractSosOperation> broadcastSensorReadingsAsync(SosSensor sensor) {
+        if (sensor == null)
+            return SosFuture.newFailed(new SosException("Cannot send sensor readings for a null sensor"));
+        if (sensor == sosSensor)
+            return broadcastSensorReadingsAsync();
+        if (!sensor.isReadyToSendResults())
+            return SosFuture.newFailed(new SosException("Sensor "+sensor.getId()+" is not registered; call registerSensors() first"));
+        return broadcastReadingsAsync(sensor);
+    }
+
+    private SosFuture<AbstractSosOperation> broadcastReadingsAsync(SosSensor sensor) {
+        OperationInsertResult operation = new OperationInsertResult(sensor);
+        if (!operation.isValid())
+            return SosFuture.newFailed(new SosException("Unable to send sensor readings as sensor measurements are not fully initialized"));
+        return broadcastAsync(operation);
+    }
+
+    /**
+     * Sends several observations from the sensor in a single InsertResult, one block per observation
+     * @param observations observations in the order they were taken (i.e. from SosObservation.newFromSensor())
+     */
+    public void broadcastObservations(List<SosObservation> observations) {
+        if ((observations == null) || observations.isEmpty())
+            return;
+        if (sosSensor == null) {
+            if (listener != null)
+                listener.onSosError("Cannot send observations as no sensor has been set. Call setSosSensor first");
+            return;
+        }
+        selectRegistration();
+        if (sosSensor.isReadyToSendResults())
+            broadcast(new OperationInsertResult(sosSensor,observations));
+        else {
+            if (listener != null)
+                listener.onSosError("Unable to send observations as the sensor is not yet registered");
+            registerSensor();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the sensor's current readings on the calling thread (i.e. the sensor
+     * callback that just set them) and queues it to be sent with the next batch. Unlike
+     * broadcastSensorReadings() the readings are copied before this returns, so the sensor can
+     * keep changing its SensorMeasurements while the batch is encoded.
+     * @return false == the sensor has no readings or the queue was full and the snapshot was dropped
+     */
+    public boolean publishSensorReadings() { return publishSensorReadings(sosSensor); }
+
+    /**
+     * Takes a snapshot of one sensor's current readings on the calling thread and queues it to
+     * be sent with the next batch
+     * @param sensor the service's sensor or one registered with registerSensors()
+     * @return false == the sensor has no readings or the queue was full and the snapshot was dropped
+     */
+    public boolean publishSensorReadings(SosSensor sensor) {
+        return publishObservation(sensor,SosObservation.newFromSensor(sensor));
+    }
+
+    /**
+     * Queues an observation to be sent with the next batch; safe to call from any thread and
+     * never waits on the service thread. Observations from the same sensor are sent in the
+     * order they were published, several to an InsertResult.
+     * @param sensor the service's sensor or one registered with registerSensors()
+     * @param observation the snapshot; its values must not be changed once published
+     * @return false == the queue was full (or the arguments were null) and the observation was dropped
+     */
+    public boolean publishObservation(SosSensor sensor, SosObservation observation) {
+        if (!observationRing.publish(sensor,observation))
+            return false;
+        if (drainScheduled.compareAndSet(false,true))
+            postDelayed(drainObservations,observationBatchInterval);
+        return true;
+    }
+
+    /**
+     * Sends whatever has been published since the last batch, then keeps draining every batch
+     * interval until nothing more arrives; while the drain is running publishers never touch
+     * the service thread
+     */
+    private final Runnable drainObservations = new Runnable() {
+        @Override
+        public void run() {
+            if (sendPublishedObservations() > 0) {
+                if (!postDelayed(this,observationBatchInterval))
+                    drainScheduled.set(false);
+                return;
+            }
+            drainScheduled.set(false);
+            if (!observationRing.isEmpty() && drainScheduled.compareAndSet(false,true))
+                postDelayed(this,observationBatchInterval); //published after the ring was found empty
+        }
+    };
+
+    /**
+     * Drains the published observations and sends them, one InsertResult per sensor
+     * @return number of observations drained
+     */
+    private int sendPublishedObservations() {
+        ArrayList<SosSensor> sensors = new ArrayList<>();
+        ArrayList<SosObservation> observations = new ArrayList<>();
+        int count = observationRing.drainTo(sensors,observations,observationRing.getCapacity());
+        if (count == 0)
+            return 0;
+        LinkedHashMap<SosSensor,ArrayList<SosObservation>> bySensor = new LinkedHashMap<>();
+        for (int i=0;i<count;i++) {
+            ArrayList<SosObservation> batch = bySensor.get(sensors.get(i));
+            if (batch == null) {
+                batch = new ArrayList<>();
+                bySensor.put(sensors.get(i),batch);
+            }
+            batch.add(observations.get(i));
+        }
+        int batchSize = observationBatchSize;
+        for (Map.Entry<SosSensor,ArrayList<SosObservation>> entry:bySensor.entrySet()) {
+            ArrayList<SosObservation> batch = entry.getValue();
+            for (int start=0;start<batch.size();start+=batchSize)
+                sendObservations(entry.getKey(),batch.subList(start,Math.min(batch.size(),start+batchSize)));
+        }
+        return count;
+    }
+
+    private void sendObservations(SosSensor sensor, List<SosObservation> observations) {
+        if (sensor == sosSensor)
+            selectRegistration();
+        if (sensor.isReadyToSendResults() && !isHolding(sensor)) {
+            broadcast(new OperationInsertResult(sensor,observations));
+            return;
+        }
+        if (!holdObservations(sensor,observations))
+            return; //already waiting on that sensor's registration (or the observations were dropped)
+        if (sensor == sosSensor)
+            registerSensorAsync().addListener(newReleaseListener(sensor));
+        else {
+            boolean registering = false;
+            for (SosBulkRegistration bulk:bulkRegistrations) {
+                if (bulk.includes(sensor)) {
+                    bulk.getFuture().addListener(newReleaseListener(sensor));
+                    registering = true;
+                }
+            }
+            if (!registering)
+                post(() -> releaseObservations(sensor)); //nothing will register it, so drop what was held
+        }
+    }
+
+    private boolean isHolding(SosSensor sensor) {
+        synchronized (heldObservations) {
+            return heldObservations.containsKey(sensor);
+        }
+    }
+
+    /**
+     * Holds observations drained for a sensor that is not registered yet until its registration
+     * finishes. At most as many observations as the ring holds are kept; past that the oldest
+     * held for the same sensor are dropped (or the new ones, if every held observation is for
+     * other sensors).
+     * @param sensor
+     * @param observations
+     * @return true == these are the first held for the sensor, so the caller should wait on its registration
+     */
+    private boolean holdObservations(SosSensor sensor, List<SosObservation> observations) {
+        synchronized (heldObservations) {
+            ArrayList<SosObservation> held = heldObservations.get(sensor);
+            boolean first = (held == null);
+            if (first) {
+                held = new ArrayList<>();
+                heldObservations.put(sensor,held);
+            }
+            int capacity = observationRing.getCapacity();
+            int dropped = 0;
+            for (SosObservation observation:observations) {
+                if (heldCount >= capacity) {
+                    if (held.isEmpty()) {
+                        dropped++;
+                        continue;
+                    }
+                    held.remove(0);
+                    heldCount--;
+                    dropped++;
+                }
+                held.add(observation);
+                heldCount++;
+            }
+            if (dropped > 0) {
+                heldDrops.addAndGet(dropped);
+                Log.w(SosIpcTransceiver.TAG,"Dropped "+dropped+" observations held for unregistered sensors as too many are waiting");
+            }
+            return first;
+        }
+    }
+
+    private <T> SosFutureListener<T> newReleaseListener(final SosSensor sensor) {
+        return new SosFutureListener<T>() {
+            @Override
+            public void onSosSuccess(T result) { post(() -> releaseObservations(sensor)); }
+
+            @Override
+            public void onSosFailure(SosException error) { post(() -> releaseObservations(sensor)); }
+        };
+    }
+
+    /**
+     * Sends what was held for a sensor once its registration has finished, or drops it if the
+     * sensor still is not registered
+     * @param sensor
+     */
+    private void releaseObservations(SosSensor sensor) {
+        if (sensor == sosSensor)
+            selectRegistration();
+        ArrayList<SosObservation> held;
+        synchronized (heldObservations) {
+            held = heldObservations.remove(sensor);
+            if (held == null)
+                return;
+            heldCount -= held.size();
+        }
+        if (held.isEmpty())
+            return;
+        if (!sensor.isReadyToSendResults()) {
+            heldDrops.addAndGet(held.size());
+            Log.w(SosIpcTransceiver.TAG,"Dropping "+held.size()+" observations from sensor "+sensor.getId()+" as it could not be registered");
+            if (listener != null)
+                listener.onSosError("Unable to send observations as sensor "+sensor.getId()+" is not registered"+((sensor == sosSensor)?"":"; call registerSensors() first"));
+            return;
+        }
+        int batchSize = observationBatchSize;
+        for (int start=0;start<held.size();start+=batchSize)
+            broadcast(new OperationInsertResult(sensor,held.subList(start,Math.min(held.size(),start+batchSize))));
+    }
+
+    /**
+     * Sets how often published observations are drained and sent; a longer interval packs more
+     * observations into each InsertResult
+     * @param interval time (in ms)
+     */
+    public void setObservationBatchInterval(long interval) { observationBatchInterval = Math.max(0l,interval); }
+    public long getObservationBatchInterval() { return observationBatchInterval; }
+
+    /**
+     * Sets the most observations sent in a single InsertResult
+     * @param size number of blocks
+     */
+    public void setObservationBatchSize(int size) { observationBatchSize = Math.max(1,size); }
+    public int getObservationBatchSize() { return observationBatchSize; }
+
+    /**
+     * Gets the number of published observations waiting for the next batch
+     * @return
+     */
+    public int getObservationBacklog() { return observationRing.size(); }
+
+    /**
+     * Gets the number of published observations dropped because the queue was full, or because
+     * their sensor could not be registered
+     * @return
+     */
+    public long getObservationDropCount() { return observationRing.getDropCount() + heldDrops.get(); }
+
+    public void broadcast(AbstractSosOperation operation) { broadcastAsync(operation); }
+
+    /**
+     * Broadcasts an operation and returns a future for its outcome
+     * @param operation
+     * @return a future that completes with the parsed SOS server response (the operation itself
+     * for GetResult, as its results are decoded into the sensor) or with null once the operation
+     * has been sent over IPC/SqAN when no SOS server is used
+     */
+    public SosFuture<AbstractSosOperation> broadcastAsync(AbstractSosOperation operation) {
+        final SosFuture<AbstractSosOperation> future = new SosFuture<>();
+        if (operation == null) {
+            future.fail(new SosException("Cannot broadcast a null operation"));
+            return future;
+        }
+        if (!operation.hasDeadline())
+            operation.setTimeToLive(timeToLive);
+        final SosLane shard = shards.getShard(operation);
+        if (!postToShard(shard,() -> {
+            if (future.isDone() || dropIfExpired(operation,future))
+                return;
+            Log.d(SosIpcTransceiver.TAG,"Broadcasting "+operation.getClass().getName());
+            if (isRunning.get()) {
+                SosPayload payload = null; //serialized once and shared by every sender
+                SosDestination currentDestination = destination;
+                boolean useHttp = (currentDestination != null) && sosHttpBroadcast;
+                HttpHelper.BodyWriter httpBody = null;
+                try {
+                    if (ipcBroadcast) {
+                        payload = SosPayload.newFromOperation(operation);
+                        httpBody = payload;
+                    } else if (useHttp && isRegistrationStep(operation))
+                        httpBody = SosPayload.newFromOperation(operation); //registration XML is already cached
+                    else if (useHttp && !(operation instanceof OperationGetResults))
+                        httpBody = SosDocumentWriter.newFromOperation(operation); //only HTTP needs it, so write it straight into the request
+                } catch (ParserConfigurationException | TransformerException e) {
+                    Log.e(SosIpcTransceiver.TAG,"Unable to convert SOS operation to XML: "+e.getMessage());
+                }
+                final SosPayload sharedPayload = payload;
+                SosIpcTransceiver currentTransceiver = transceiver;
+                boolean sending = false;
+                if (ipcBroadcast && (currentTransceiver != null)) {
+                    Log.d(SosIpcTransceiver.TAG,"Broadcasting SOS operation over IPC");
+                    try {
+                        if (currentTransceiver.isSendAllowed(operation)) {
+                            if (sharedPayload == null)
+                                throw new SosException(operation.getClass().getSimpleName()+" could not be converted to XML");
+                            final boolean sqan = transportConfig.isSqANEnabled();
+                            final AtomicInteger sends = useHttp?null:new AtomicInteger(sqan?2:1); //without HTTP the future completes once every lane has sent
+                            final SosFuture<AbstractSosOperation> laneFuture = useHttp?null:future;
+                            sending = ipcLane.post(() -> {
+                                try {
+                                    if (!future.isCancelled() && !dropIfExpired(operation,laneFuture)) {
+                                        currentTransceiver.broadcastIpc(context,sharedPayload);
+                                        onSent(operation);
+                                    }
+                                    onLaneSent(laneFuture,sends);
+                                } catch (RuntimeException e) {
+                                    if (laneFuture != null)
+                                        laneFuture.fail(new SosException("Unable to broadcast SOS operation over IPC: "+e.getMessage(),e));
+                                    throw e;
+                                }
+                            });
+                            if (sending && sqan) {
+                                sending = sqanLane.post(() -> {
+                                    try {
+                                        if (!future.isCancelled() && !dropIfExpired(operation,laneFuture))
+                                            currentTransceiver.broadcastSqAN(context,sharedPayload);
+                                        onLaneSent(laneFuture,sends);
+                                    } catch (RuntimeException e) {
+                                        if (laneFuture != null)
+                                            laneFuture.fail(new SosException("Unable to broadcast SOS operation over SqAN: "+e.getMessage(),e));
+                                        throw e;
+                                    }
+                                });
+                            }
+                            if (!sending)
+                                throw new SosException("Unable to broadcast as SosService has been shut down");
+                        }
+                    } catch (SosException e) {
+                        Log.e(SosIpcTransceiver.TAG,"Unable to broadcast SOS operation: "+e.getMessage());
+                        e.printStackTrace();
+                        if (!useHttp)
+                            future.fail(e);
+                    }
+                }
+                if (sosHttpBroadcast)
+                    fanOut(operation,sharedPayload);
+                if (useHttp) {
+                    boolean idempotent = (operation instanceof OperationGetResults) || (operation instanceof OperationGetCapabilities);
+                    new SosHttpRequest(httpHost,currentDestination,operation,httpBody,future,null,idempotent?null:shard).start(); //reads stay on the server lanes so they can be hedged
+                }
+                else if (!sending)
+                    future.complete(null); //nothing to send (i.e. throttled); a no-op if the future already failed
+            } else {
+                if (listener != null)
+                    listener.onSosError("Cannot send SOS messages as the SosService has not be enabled (call setOn())");
+                future.fail(new SosException("Cannot send SOS messages as the SosService has not be enabled (call setOn())"));
+            }
+        })) {
+            Log.d(SosIpcTransceiver.TAG,"...but SosService has been shut down");
+            future.fail(new SosException("Unable to broadcast as SosService has been shut down"));
+        }
+        return future;
+    }
+
+    /**
+     * Broadcasts an operation that is dropped (or abandoned if already being sent) if it has
+     * not finished in time
+     * @param operation
+     * @param timeout time to wait (in ms)
+     * @return see broadcastAsync(AbstractSosOperation)
+     */
+    public SosFuture<AbstractSosOperation> broadcastAsync(AbstractSosOperation operation, long timeout) {
+        if ((operation != null) && (timeout > 0l) && (timeout < operation.getTimeRemaining()))
+            operation.setTimeToLive(timeout);
+        return broadcastAsync(operation);
+    }
+
+    /**
+     * Completes a broadcast without HTTP once the last of its IPC/SqAN sends is done
+     * @param future the broadcast's future (or null if HTTP completes it)
+     * @param sends number of lane sends still to finish
+     */
+    private static void onLaneSent(SosFuture<AbstractSosOperation> future, AtomicInteger sends) {
+        if ((future != null) && (sends.decrementAndGet() == 0))
+            future.complete(null);
+    }
+
+    /**
+     * Drops an operation that has passed its deadline instead of sending it
+     * @param operation
+     * @param future failed if the operation is dropped (or null)
+     * @return true == the operation was dropped
+     */
+    private boolean dropIfExpired(AbstractSosOperation operation, SosFuture<AbstractSosOperation> future) {
+        if (!operation.isExpired())
+            return false;
+        onExpired(operation,future);
+        return true;
+    }
+
+    private void onExpired(AbstractSosOperation operation, SosFuture<AbstractSosOperation> future) {
+        String message = operation.getClass().getSimpleName()+" passed its deadline before it could be sent";
+        if (future == null) {
+            expiredDrops.incrementAndGet();
+            Log.d(SosIpcTransceiver.TAG,message+"; dropped");
+        } else if (future.fail(new SosException(message))) {
+            expiredDrops.incrementAndGet();
+            Log.d(SosIpcTransceiver.TAG,message+"; dropped");
+        }
+    }
+
+    /**
+     * Sets how long operations are worth sending; operations still queued (i.e. behind an
+     * outage) when this runs out are dropped and requests still in progress are abandoned
+     * @param timeToLive time (in ms) or 0 to keep trying forever
+     */
+    public void setTimeToLive(long timeToLive) { this.timeToLive = Math.max(0l,timeToLive); }
+    public long getTimeToLive() { return timeToLive; }
+
+    /**
+     * Records when the first observation left this device
+     * @param operation
+     */
+    private void onSent(AbstractSosOperation operation) {
+        if ((firstObservationLatency < 0l) && (operation instanceof OperationInsertResult))
+            firstObservationLatency = System.currentTimeMillis() - constructedTime;
+    }
+
+    /**
+     * Gets how long the service thread took to be ready after this service was constructed
+     * @return time (in ms) or -1 if it is not ready yet
+     */
+    public long getReadyLatency() { return readyLatency; }
+
+    /**
+     * Gets how long after this service was constructed the first observation went out (handed
+     * to IPC or accepted by an SOS server); useful for measuring startup cost
+     * @return time (in ms) or -1 if no observation has gone out yet
+     */
+    public long getStartupLatency() { return firstObservationLatency; }
+
+    /**
+     * Loads and runs the XML and number codecs once in the background (on the service thread)
+     * so the first real operation does not pay for class loading and factory lookups. Can be
+     * called right after construction; it runs as soon as the service thread is ready.
+     */
+    public void warmUp() { post(() -> warmUpCodecs()); }
+
+    /**
+     * Loads and runs the XML and number codecs once; blocks, so call it off the main thread
+     */
+    public static void warmUpCodecs() {
+        long start = System.currentTimeMillis();
+        try {
+            Document doc = new OperationGetCapabilities().toXML();
+            SosPayload payload = SosPayload.newFromDocument(doc);
+            if (payload != null)
+                AbstractSosOperation.newFromXmlString(payload.getText());
+            StringBuilder out = new StringBuilder();
+            SosNumberFormat.appendFixed(out,12.5d,3);
+            SosNumberParser.parseDouble(out,0,out.length());
+        } catch (Exception e) {
+            Log.w(SosIpcTransceiver.TAG,"Unable to warm up SOS codecs: "+e.getMessage());
+            return;
+        }
+        Log.d(SosIpcTransceiver.TAG,"SOS codecs warmed up in "+(System.currentTimeMillis()-start)+"ms");
+    }
+
+    /**
+     * Sets if what each SOS server assigned to the sensor is saved on this device, so that after
+     * a restart the sensor can send right away instead of registering again
+     * @param persistRegistrations
+     */
+    public void setPersistRegistrations(boolean persistRegistrations) {
+        this.persistRegistrations = persistRegistrations;
+        if (persistRegistrations)
+            post(() -> restoreRegistrations());
+    }
+    public boolean isPersistRegistrations() { return persistRegistrations; }
+
+    /**
+     * Sets if each SOS server is first asked (with GetCapabilities) whether it already holds
+     * this sensor, i.e. from an earlier run on another device. A matching procedure and
+     * offering are taken from the server instead of sending InsertSensor, and a template
+     * already seen for that offering with the same field layout is reused instead of sending
+     * InsertResultTemplate. The sensor is only registered if nothing matches.
+     * @param discoverRegistrations
+     */
+    public void setDiscoverRegistrations(boolean discoverRegistrations) { this.discoverRegistrations = discoverRegistrations; }
+    public boolean isDiscoverRegistrations() { return discoverRegistrations; }
+
+    /**
+     * Asks a server which offerings it already holds and takes whatever it has for this sensor
+     * into that server's registration; next is run once the server answers (or fails to),
+     * whether or not anything matched
+     * @param target
+     * @param endpoint
+     * @param sensor
+     * @param next
+     */
+    private void discoverRegistration(SosDestination target, SosEndpoint endpoint, final SosSensor sensor, final Runnable next) {
+        final SosRegistration registration = getRegistration(target,sensor,endpoint);
+        OperationGetCapabilities operation = new OperationGetCapabilities();
+        operation.setSections(OperationGetCapabilities.SECTION_CONTENTS);
+        operation.setTimeToLive(timeToLive);
+        SosPayload payload = null;
+        try {
+            payload = SosPayload.newFromOperation(operation);
+        } catch (ParserConfigurationException | TransformerException e) {
+            Log.e(SosIpcTransceiver.TAG,"Unable to convert SOS operation to XML: "+e.getMessage());
+        }
+        if (payload == null) {
+            registration.finishDiscovery();
+            next.run();
+            return;
+        }
+        Log.d(SosIpcTransceiver.TAG,"Looking for sensor "+sensor.getUniqueId()+" on "+endpoint.getUrl());
+        SosFuture<AbstractSosOperation> future = new SosFuture<>();
+        future.addListener(new SosFutureListener<AbstractSosOperation>() {
+            @Override
+            public void onSosSuccess(AbstractSosOperation result) {
+                if (result instanceof OperationGetCapabilitiesResponse) {
+                    OperationGetCapabilitiesResponse response = (OperationGetCapabilitiesResponse)result;
+                    templateRegistry.register(response);
+                    adoptDiscovered(response,sensor,registration,endpoint);
+                }
+                registration.finishDiscovery();
+                next.run();
+            }
+
+            @Override
+            public void onSosFailure(SosException error) {
+                Log.d(SosIpcTransceiver.TAG,"Unable to look for sensor on "+endpoint.getUrl()+" ("+error.getMessage()+"); registering it instead");
+                registration.finishDiscovery();
+                next.run();
+            }
+        });
+        new SosHttpRequest(httpHost,target,operation,payload,future,endpoint).start();
+    }
+
+    /**
+     * Takes the procedure and offering (and template, if one with the same layout is already
+     * known) that a server holds for a sensor
+     * @param response
+     * @param sensor
+     * @param registration
+     * @param endpoint
+     */
+    private void adoptDiscovered(OperationGetCapabilitiesResponse response, SosSensor sensor, SosRegistration registration, SosEndpoint endpoint) {
+        ArrayList<SosSensor> matches = response.getSensors(sensor.getUniqueId());
+        if (matches.isEmpty()) {
+            Log.d(SosIpcTransceiver.TAG,"Sensor "+sensor.getUniqueId()+" is not yet known to "+endpoint.getUrl());
+            return;
+        }
+        SosSensor match = matches.get(0);
+        String template = null;
+        for (SosSensor candidate:matches) {
+            template = templateRegistry.findTemplate(candidate.getAssignedOffering(),sensor);
+            if (template != null) {
+                match = candidate;
+                break;
+            }
+        }
+        registration.setProcedure(match.getAssignedProcedure());
+        registration.setOffering(match.getAssignedOffering());
+        if (template != null)
+            registration.setTemplate(template);
+        Log.i(SosIpcTransceiver.TAG,"Sensor "+sensor.getUniqueId()+" already known to "+endpoint.getUrl()+" as offering "+match.getAssignedOffering()
+                +((template == null)?"; registering its result template":" with template "+template));
+    }
+
+    /**
+     * Looks for the sensor on the server requests currently go to before registering it there
+     * @return true == a lookup was started and registration will continue once it finishes
+     */
+    private boolean discoverActiveRegistration() {
+        final SosDestination current = destination;
+        final SosEndpoint endpoint = registeredEndpoint;
+        final SosSensor sensor = sosSensor;
+        if (!discoverRegistrations || !sosHttpBroadcast || (current == null) || (endpoint == null) || (sensor == null))
+            return false;
+        final SosRegistration registration = current.getRegistration(endpoint);
+        if (registration.isDiscovering())
+            return true; //registration continues when that lookup finishes
+        if (!registration.startDiscovery())
+            return false;
+        discoverRegistration(current,endpoint,sensor,() -> {
+            adoptRegistration(current,endpoint);
+            if (registration.isComplete()) {
+                saveRegistration(sensor,endpoint,registration);
+                Log.i(SosIpcTransceiver.TAG,"Sensor is already registered with "+endpoint.getUrl());
+                onSensorRegistered(sensor);
+            } else
+                registerSensor();
+        });
+        return true;
+    }
+
+    /**
+     * Gives the sensor what was found on a server, if requests still go to that server
+     * @param current
+     * @param endpoint
+     */
+    private synchronized void adoptRegistration(SosDestination current, SosEndpoint endpoint) {
+        SosSensor sensor = sosSensor;
+        if ((sensor != null) && (current == destination) && (endpoint == registeredEndpoint))
+            current.getRegistration(endpoint).applyTo(sensor);
+    }
+
+    /**
+     * Builds the key a registration is saved under
+     * @param sensor
+     * @param endpoint
+     * @return
+     */
+    private String getRegistrationKey(SosSensor sensor, SosEndpoint endpoint) {
+        return sensor.getUniqueId()+"|"+endpoint.getUrl();
+    }
+
+    /**
+     * Saves what a server assigned to a sensor once registration with it is complete
+     * @param sensor
+     * @param endpoint
+     * @param registration
+     */
+    private void saveRegistration(SosSensor sensor, SosEndpoint endpoint, SosRegistration registration) {
+        Context current = context;
+        if (!persistRegistrations || (current == null) || (sensor == null) || (sensor.getUniqueId() == null) || !registration.isComplete())
+            return;
+        String key = getRegistrationKey(sensor,endpoint);
+        SharedPreferences.Editor edit = current.getSharedPreferences(PREFS_REGISTRATIONS,Context.MODE_PRIVATE).edit();
+        edit.putString(key+PREFS_PROCEDURE,registration.getProcedure());
+        edit.putString(key+PREFS_OFFERING,registration.getOffering());
+        edit.putString(key+PREFS_TEMPLATE,registration.getTemplate());
+        edit.putString(key+PREFS_LAYOUT,sensor.getTemplateDescription());
+        edit.apply();
+    }
+
+    /**
+     * Loads what a server assigned to a sensor in an earlier run. The template a server assigns
+     * only fits the field layout it was registered with, so the full layout is saved alongside it;
+     * after the sensor's fields change (i.e. an app update) nothing is restored and the template
+     * is registered again.
+     * @param sensor
+     * @param endpoint
+     * @param registration filled in with the saved assignments
+     * @return true == a saved registration for the sensor's current layout was found
+     */
+    private boolean loadRegistration(SosSensor sensor, SosEndpoint endpoint, SosRegistration registration) {
+        Context current = context;
+        if (!persistRegistrations || (current == null) || (sensor == null) || (sensor.getUniqueId() == null))
+            return false;
+        SharedPreferences prefs = current.getSharedPreferences(PREFS_REGISTRATIONS,Context.MODE_PRIVATE);
+        String key = getRegistrationKey(sensor,endpoint);
+        if (!prefs.contains(key+PREFS_TEMPLATE) || !sensor.getTemplateDescription().equals(prefs.getString(key+PREFS_LAYOUT,null)))
+            return false;
+        registration.setProcedure(prefs.getString(key+PREFS_PROCEDURE,null));
+        registration.setOffering(prefs.getString(key+PREFS_OFFERING,null));
+        registration.setTemplate(prefs.getString(key+PREFS_TEMPLATE,null));
+        return true;
+    }
+
+    /**
+     * Restores what each server assigned to the sensor before this service was started
+     */
+    private synchronized void restoreRegistrations() {
+        Context current = context;
+        SosSensor sensor = sosSensor;
+        if (!persistRegistrations || (current == null) || (sensor == null) || (sensor.getUniqueId() == null))
+            return;
+        int restored = 0;
+        for (SosDestination target:getDestinations()) {
+            for (SosEndpoint endpoint:target.getEndpoints()) {
+                SosRegistration registration = target.getRegistration(endpoint);
+                if (!registration.isComplete() && loadRegistration(sensor,endpoint,registration))
+                    restored++;
+            }
+        }
+        SosDestination main = destination;
+        if ((main != null) && (sensor.getAssignedProcedure() == null)) {
+            SosEndpoint active = main.getActive();
+            main.getRegistration(active).applyTo(sensor);
+            registeredEndpoint = active;
+        }
+        if (restored > 0)
+            Log.i(SosIpcTransceiver.TAG,"Restored "+restored+" saved sensor registration(s)");
+    }
+
+    /**
+     * Gets the number of operations (or copies of an operation on one transport) dropped
+     * because they passed their deadline
+     * @return
+     */
+    public long getExpiredDropCount() { return expiredDrops.get(); }
+
+    /**
+     * Fails a future if it has not finished in time
+     * @param future
+     * @param timeout time to wait (in ms)
+     * @return the same future
+     */
+    private <T> SosFuture<T> withTimeout(final SosFuture<T> future, final long timeout) {
+        if ((timeout > 0l) && !future.isDone())
+            postUntilDone(future,() -> future.fail(new SosException("SOS operation timed out after "+timeout+"ms")),timeout);
+        return future;
+    }
+
+    /**
+     * Is this one of the steps that registers a sensor (whose XML is cached on the sensor)
+     * @param operation
+     * @return
+     */
+    private static boolean isRegistrationStep(AbstractSosOperation operation) {
+        return (operation instanceof OperationInsertSensor) || (operation instanceof OperationInsertResultTemplate);
+    }
+
+    /**
+     * Does this operation carry the procedure, offering or template that one server assigned
+     * to this service's sensor (so it only makes sense to that server)
+     * @param operation
+     * @return
+     */
+    private boolean isBoundToRegistration(AbstractSosOperation operation) { return getBoundSensor(operation) != null; }
+
+    /**
+     * Gets the sensor whose server-assigned ids an operation carries: this service's sensor or
+     * one registered with registerSensors()
+     * @param operation
+     * @return the sensor (or null if the operation is not tied to a registration)
+     */
+    private SosSensor getBoundSensor(AbstractSosOperation operation) {
+        SosSensor sensor = null;
+        if (operation instanceof OperationInsertSensor)
+            sensor = ((OperationInsertSensor)operation).getSosSensor();
+        else if (operation instanceof OperationInsertResultTemplate)
+            sensor = ((OperationInsertResultTemplate)operation).getSosSensor();
+        else if (operation instanceof OperationInsertResult) {
+            OperationInsertResult insertResult = (OperationInsertResult)operation;
+            if (insertResult.getAssignedTemplate() == null) //forwarded results keep their own template
+                sensor = insertResult.getSosSensor();
+        }
+        if ((sensor == null) || ((sensor != sosSensor) && !fleetEndpoints.containsKey(sensor)))
+            return null;
+        return sensor;
+    }
+
+    /**
+     * Gets what a server assigned to a sensor; this service's sensor and the sensors registered
+     * with registerSensors() are kept apart
+     * @param target
+     * @param sensor
+     * @param endpoint
+     * @return
+     */
+    private SosRegistration getRegistration(SosDestination target, SosSensor sensor, SosEndpoint endpoint) {
+        return (sensor == sosSensor)?target.getRegistration(endpoint):target.getRegistration(sensor,endpoint);
+    }
+
+    /**
+     * Gets the server whose assignments a sensor currently holds
+     * @param sensor
+     * @return the server (or null if none has been picked yet)
+     */
+    private SosEndpoint getRegisteredEndpoint(SosSensor sensor) {
+        return (sensor == sosSensor)?registeredEndpoint:fleetEndpoints.get(sensor);
+    }
+
+    /**
+     * Gives one of the sensors registered with registerSensors() what a server assigned to it;
+     * its readings go to that server from now on
+     * @param sensor
+     * @param endpoint
+     * @param registration
+     */
+    private void useFleetEndpoint(SosSensor sensor, SosEndpoint endpoint, SosRegistration registration) {
+        synchronized (sensor) {
+            registration.applyTo(sensor);
+        }
+        fleetEndpoints.put(sensor,endpoint);
+        templateRegistry.register(registration.getTemplate(),sensor);
+    }
+
+    /**
+     * Gets the registration operation the sensor needs next with the server it is now using
+     * @return the operation (or null if the sensor is already registered there)
+     */
+    private AbstractSosOperation getNextRegistrationStep() {
+        SosSensor sensor = sosSensor;
+        if (sensor == null)
+            return null;
+        if (sensor.getAssignedProcedure() == null)
+            return new OperationInsertSensor(sensor);
+        if (sensor.getAssignedTemplate() == null)
+            return new OperationInsertResultTemplate(sensor);
+        return null;
+    }
+
+    /**
+     * Gives the HTTP requests what they need from this service
+     */
+    private class HttpHost implements SosHttpRequest.Host {
+        @Override
+        public boolean post(Runnable task) { return SosService.this.post(task); }
+
+        @Override
+        public <T> boolean postUntilDone(SosFuture<T> future, Runnable task, long delay) { return SosService.this.postUntilDone(future,task,delay); }
+
+        @Override
+        public void onExpired(AbstractSosOperation operation, SosFuture<AbstractSosOperation> future) { SosService.this.onExpired(operation,future); }
+
+        @Override
+        public void onSent(AbstractSosOperation operation) { SosService.this.onSent(operation); }
+
+        @Override
+        public void onError(String message) {
+            if (listener != null)
+                listener.onSosError(message);
+        }
+
+        @Override
+        public String getUsername() { return username; }
+
+        @Override
+        public String getPassword() { return password; }
+
+        @Override
+        public boolean isSoapWrapped() { return !sensorMode; }
+
+        @Override
+        public SosTemplateRegistry getTemplateRegistry() { return templateRegistry; }
+
+        @Override
+        public SosHttpTransport getTransport() { return SosHttpTransport.HTTP; }
+
+        @Override
+        public SosSensor getBoundSensor(AbstractSosOperation operation) { return SosService.this.getBoundSensor(operation); }
+
+        @Override
+        public SosEndpoint getRegisteredEndpoint(SosSensor sensor) { return SosService.this.getRegisteredEndpoint(sensor); }
+
+        @Override
+        public void onGetResultsResponse(OperationGetResults operation, String result, SosFuture<AbstractSosOperation> future) {
+            SosService.this.onGetResultsResponse(operation,result,future);
+        }
+
+        @Override
+        public void onResponse(SosDestination destination, SosEndpoint endpoint, SosSensor boundSensor, AbstractSosOperation response) {
+            onSosOperationReceived(response);
+            if ((boundSensor != null) && (boundSensor == sosSensor)) {
+                recordRegistration(destination,endpoint);
+                SosService.this.saveRegistration(boundSensor,endpoint,destination.getRegistration(endpoint));
+            }
+        }
+
+        @Override
+        public boolean isOwnSensor(SosSensor sensor) { return sensor == sosSensor; }
+
+        @Override
+        public SosEndpoint selectRegistration() {
+            SosService.this.selectRegistration();
+            return registeredEndpoint;
+        }
+
+        @Override
+        public AbstractSosOperation getNextRegistrationStep() { return SosService.this.getNextRegistrationStep(); }
+
+        @Override
+        public void reregisterSensor() {
+            sendSensorReadingWhenReady.set(true);
+            registerSensor();
+        }
+
+        @Override
+        public void finishRegistrations(SosSensor sensor) { SosService.this.finishRegistrations(sensor); }
+
+        @Override
+        public void registerFleetSensor(SosDestination destination, SosEndpoint endpoint, SosSensor sensor) {
+            startBulkRegistration(destination,endpoint,Collections.singletonList(sensor),1,null);
+        }
+
+        @Override
+        public void useFleetEndpoint(SosSensor sensor, SosEndpoint endpoint, SosRegistration registration) {
+            SosService.this.useFleetEndpoint(sensor,endpoint,registration);
+        }
+    }
+
+    private void onGetResultsResponse(OperationGetResults operation, String result, SosFuture<AbstractSosOperation> future) {
+        SosSensor sensor = operation.getSensor();
+        try {
+            sensor.parseSensors(new JSONObject(result));
+            if (listener != null)
+                listener.onSosOperationReceived(operation);
+            future.complete(operation);
+        } catch (JSONException e) {
+            try {
+                JSONArray array = new JSONArray(result); //this is actually a list of results, so let's get the last one
+                if ((array == null) || (array.length() < 1)) {
+                    future.complete(operation);
+                    return;
+                }
+                sensor.parseSensors((JSONObject) array.get(array.length() - 1));
+                if (listener != null)
+                    listener.onSosOperationReceived(operation);
+                future.complete(operation);
+            } catch (JSONException e1) {
+                if (operation.parse(result)) { //some servers ignore responseFormat and send XML
+                    if (listener != null)
+                        listener.onSosOperationReceived(operation);
+                    future.complete(operation);
+                } else {
+                    if (listener != null)
+                        listener.onSosError("Unable to parse "+result);
+                    future.fail(new SosException("Unable to parse "+result));
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the SOS server requests currently go to, along with its circuit breaker and retry policy
+     * @return the endpoint (or null if no server URL is set)
+     */
+    public SosEndpoint getEndpoint() {
+        SosDestination current = destination;
+        return (current == null)?null:current.getActive();
+    }
+
+    /**
+     * Gets the SOS servers this service sends to
+     * @return the destination (or null if no server URL is set)
+     */
+    public SosDestination getDestination() { return destination; }
+
+    /**
+     * Sets the SOS servers this service sends to, in order of preference. Requests go to the
+     * first healthy server and fail over to the next; the sensor is registered separately with
+     * each server it ends up using. Servers that were also in the previous destination (same URL)
+     * keep what they assigned, so the sensor is not registered with them again.
+     * @param destination the servers (or null to stop sending to any SOS server)
+     */
+    public void setDestination(SosDestination destination) {
+        SosDestination next = ((destination == null) || destination.isEmpty())?null:destination;
+        SosDestination old;
+        synchronized (this) {
+            old = this.destination;
+            if (old == next)
+                return;
+            if ((next != null) && (old != null)) {
+                next.takeOver(old);
+                SosEndpoint endpoint = registeredEndpoint;
+                SosEndpoint kept = (endpoint == null)?null:next.getEndpoint(endpoint.getUrl());
+                if (kept != null)
+                    registeredEndpoint = kept; //the sensor still holds what this server assigned
+                for (SosSensor sensor:fleetEndpoints.keySet()) {
+                    endpoint = fleetEndpoints.get(sensor);
+                    kept = (endpoint == null)?null:next.getEndpoint(endpoint.getUrl());
+                    if (kept != null)
+                        fleetEndpoints.put(sensor,kept);
+                }
             }
-        };
-        sosThread.start();
-        this.ipcBroadcast = enableIpcBroadcast;
-        this.sosHttpBroadcast = (sosServerURL != null);
-        SosIpcTransceiver.setChannel(DEFAULT_SWE_CHANNEL);
+            this.destination = next;
+        }
+        if (old != null)
+            old.shutdown();
     }
 
-    public SosService(Context context, SosSensor sosSensor, String sosServerURL, final boolean turnOn, final boolean enableIpcBroadcast) {
-        this(context, sosSensor, sosServerURL, null, null, turnOn, enableIpcBroadcast);
+    /**
+     * Sets the SOS servers this service sends to, in order of preference (i.e. a primary
+     * followed by a standby). Servers that were already set keep their state and registrations;
+     * nothing changes if the list is the same.
+     * @param serverUrls
+     */
+    public void setSosServerUrls(List<String> serverUrls) {
+        SosDestination current = destination;
+        if ((current == null)?((serverUrls == null) || serverUrls.isEmpty()):current.hasUrls(serverUrls))
+            return;
+        setDestination(SosDestination.newFromUrls(serverUrls,retryPolicy,current));
     }
 
-    public boolean startPolling() {
-        if (!shouldPollServer.get()) {
-            if (handler == null) {
-                Log.d(SosIpcTransceiver.TAG,"cannot setup regular server polling as handler is not yet assigned");
-                return false;
-            }
-            shouldPollServer.set(true);
-            handler.post(repeatPollServer);
-            return true;
+    /**
+     * Gives the sensor the procedure, offering and template assigned by the server requests
+     * currently go to. The assignments it held until now are kept with the server that gave them.
+     */
+    private synchronized void selectRegistration() {
+        SosDestination current = destination;
+        SosSensor sensor = sosSensor;
+        if ((current == null) || (sensor == null))
+            return;
+        SosEndpoint active = current.getActive();
+        SosEndpoint previous = registeredEndpoint;
+        if ((active == null) || (active == previous))
+            return;
+        registeredEndpoint = active;
+        if (previous == null) { //adopt anything the sensor was given before a server was picked
+            current.getRegistration(active).copyFrom(sensor);
+            return;
         }
-        return true;
+        if (current.getEndpoints().contains(previous))
+            current.getRegistration(previous).copyFrom(sensor);
+        Log.i(SosIpcTransceiver.TAG,"Sensor now using SOS server "+active.getUrl());
+        current.getRegistration(active).applyTo(sensor);
     }
 
-    public void stopPolling() {
-        shouldPollServer.set(false);
+    /**
+     * Adds another set of SOS servers that the sensor publishes to at the same time as the
+     * main destination (i.e. a local edge server along with a rear-echelon server). Each gets
+     * its own registration of the sensor; readings are encoded once and sent to every
+     * destination concurrently on that destination's own lanes.
+     * @param destination
+     */
+    public void addDestination(SosDestination destination) {
+        if ((destination == null) || destination.isEmpty() || fanOutDestinations.contains(destination))
+            return;
+        fanOutDestinations.add(destination);
+        SosSensor sensor = sosSensor;
+        if (sensorMode && (sensor != null) && sensor.isReadyToRegisterSensor())
+            registerWith(destination,destination.getActive(),sensor,null);
     }
 
     /**
-     * TIme between polling of the SOS server for sensor data
-     * @param interval time (in ms)
+     * Stops publishing to a destination added with addDestination()
+     * @param destination
      */
-    public void setPollingInterval(long interval) { pollInterval = interval; }
-    public boolean isPollingServer() { return shouldPollServer.get(); }
+    public void removeDestination(SosDestination destination) {
+        if ((destination != null) && fanOutDestinations.remove(destination))
+            destination.shutdown();
+    }
 
-    private Runnable repeatPollServer = new Runnable() {
-        @Override
-        public void run() {
-            if (shouldPollServer.get()) {
-                if (sosSensor != null) {
-                    OperationGetResults op = new OperationGetResults(sosSensor);
-                    if (op.isValid())
-                        broadcast(op);
-                }
-                if (handler != null)
-                    handler.postDelayed(repeatPollServer, pollInterval);
+    /**
+     * Gets every set of SOS servers this service sends to; the main destination comes first
+     * @return
+     */
+    public List<SosDestination> getDestinations() {
+        ArrayList<SosDestination> destinations = new ArrayList<>();
+        SosDestination current = destination;
+        if (current != null)
+            destinations.add(current);
+        destinations.addAll(fanOutDestinations);
+        return destinations;
+    }
+
+    /**
+     * Sends this sensor's registration and readings to every fan-out destination. InsertResults
+     * are rebuilt for each destination's template, but only once per distinct template; the
+     * registration operations kick off each destination's own registration.
+     * @param operation
+     * @param payload the operation as built for the main destination
+     */
+    private void fanOut(AbstractSosOperation operation, SosPayload payload) {
+        if (fanOutDestinations.isEmpty())
+            return;
+        SosSensor sensor = getBoundSensor(operation);
+        if (sensor == null)
+            return;
+        HashMap<String,SosPayload> payloads = new HashMap<>();
+        if ((payload != null) && (sensor.getAssignedTemplate() != null))
+            payloads.put(sensor.getAssignedTemplate(),payload);
+        for (SosDestination target:fanOutDestinations)
+            publishTo(target,operation,sensor,payloads);
+    }
+
+    /**
+     * Sends a sensor's operation to one fan-out destination
+     * @param target
+     * @param operation
+     * @param sensor the sensor the operation is about
+     * @param payloads InsertResults already built, by template
+     */
+    private void publishTo(SosDestination target, AbstractSosOperation operation, SosSensor sensor, HashMap<String,SosPayload> payloads) {
+        SosEndpoint endpoint = target.getActive();
+        SosRegistration registration = getRegistration(target,sensor,endpoint);
+        if (!(operation instanceof OperationInsertResult) || !registration.isComplete()) {
+            registerWith(target,endpoint,sensor,(operation instanceof OperationInsertResult)?(OperationInsertResult)operation:null);
+            return;
+        }
+        SosPayload targetPayload = payloads.get(registration.getTemplate());
+        if (targetPayload == null) {
+            try {
+                targetPayload = SosPayload.newFromDocument(((OperationInsertResult)operation).toXML(registration.getTemplate()));
+            } catch (ParserConfigurationException | TransformerException e) {
+                Log.e(SosIpcTransceiver.TAG,"Unable to convert SOS operation to XML: "+e.getMessage());
             }
+            if (targetPayload == null)
+                return;
+            payloads.put(registration.getTemplate(),targetPayload);
         }
-    };
+        new SosHttpRequest(httpHost,target,operation,targetPayload,new SosFuture<AbstractSosOperation>(),endpoint).start();
+    }
 
     /**
-     * Toggles between on (active/running/transmitting and receiving) and off (paused)
-     * @param on true = on/active/transmitting and receiving
+     * Takes the next registration step (InsertSensor or InsertResultTemplate) with one server
+     * of a fan-out destination, recording what that server assigns in its own registration
+     * rather than in the sensor
+     * @param target
+     * @param endpoint
+     * @param sensor this service's sensor or one registered with registerSensors()
+     * @param pending readings to send to this server once registration is done (or null); they
+     *                are held with the registration, so readings that arrive while another
+     *                step is in flight are not lost
      */
-    public void setOn(boolean on) {
-        if (on != isRunning.get()) {
-            if (on) {
-                if (context != null) {
-                    Log.i(SosIpcTransceiver.TAG,"SosService turned ON");
-                    transceiver = new SosIpcTransceiver(this);
-                    IntentFilter intentFilter = new IntentFilter(SosIpcTransceiver.ACTION_SOS);
-                    context.registerReceiver(transceiver, intentFilter);
-                    if (sensorMode)
-                        broadcastSensorReadings();
-                    else
-                        startPolling();
-                }
-            } else {
-                Log.i(SosIpcTransceiver.TAG,"SosService turned OFF");
-                if (transceiver != null) {
-                    context.unregisterReceiver(transceiver);
-                    transceiver = null;
+    private void registerWith(final SosDestination target, final SosEndpoint endpoint, final SosSensor sensor, final OperationInsertResult pending) {
+        if ((sensor == null) || (endpoint == null))
+            return;
+        final SosRegistration registration = getRegistration(target,sensor,endpoint);
+        if ((sensor != sosSensor) && (registration.getProcedure() == null))
+            loadRegistration(sensor,endpoint,registration); //this service's own sensor was restored at startup
+        registration.addPending(pending);
+        if (registration.isComplete()) {
+            sendPending(target,sensor,registration);
+            return;
+        }
+        if (!registration.startRegistering())
+            return;
+        AbstractSosOperation step;
+        if (registration.getProcedure() == null) {
+            if (!sensor.isReadyToRegisterSensor()) {
+                registration.finishRegistering();
+                return;
+            }
+            if (discoverRegistrations && registration.startDiscovery()) {
+                discoverRegistration(target,endpoint,sensor,() -> {
+                    registration.finishRegistering();
+                    if (registration.isComplete())
+                        saveRegistration(sensor,endpoint,registration);
+                    registerWith(target,endpoint,sensor,null);
+                });
+                return;
+            }
+            step = new OperationInsertSensor(sensor);
+        } else {
+            OperationInsertResultTemplate templateStep = new OperationInsertResultTemplate(sensor);
+            templateStep.setOffering(registration.getOffering());
+            step = templateStep;
+        }
+        SosPayload stepPayload = null;
+        try {
+            stepPayload = SosPayload.newFromOperation(step);
+        } catch (ParserConfigurationException | TransformerException e) {
+            Log.e(SosIpcTransceiver.TAG,"Unable to convert SOS operation to XML: "+e.getMessage());
+        }
+        if (stepPayload == null) {
+            registration.finishRegistering();
+            return;
+        }
+        Log.d(SosIpcTransceiver.TAG,"Registering sensor with "+endpoint.getUrl()+" ("+step.getClass().getSimpleName()+")");
+        SosFuture<AbstractSosOperation> future = new SosFuture<>();
+        future.addListener(new SosFutureListener<AbstractSosOperation>() {
+            @Override
+            public void onSosSuccess(AbstractSosOperation result) {
+                registration.finishRegistering();
+                if (result instanceof OperationInsertSensorResponse) {
+                    OperationInsertSensorResponse response = (OperationInsertSensorResponse)result;
+                    if ((sensor.getUniqueId() == null) || !sensor.getUniqueId().equalsIgnoreCase(response.getAssignedProcedure())) {
+                        Log.i(SosIpcTransceiver.TAG,"InsertSensorResponse from "+endpoint.getUrl()+" was for sensor "+response.getAssignedProcedure());
+                        return;
+                    }
+                    registration.setProcedure(response.getAssignedProcedure());
+                    registration.setOffering(response.getAssignedOffering());
+                    registerWith(target,endpoint,sensor,null);
+                } else if (result instanceof OperationInsertResultTemplateResponse) {
+                    String template = ((OperationInsertResultTemplateResponse)result).getAcceptedTemplate();
+                    if ((template == null) || !template.startsWith(registration.getProcedure())) {
+                        Log.i(SosIpcTransceiver.TAG,"InsertResultTemplateResponse from "+endpoint.getUrl()+" was for template "+template);
+                        return;
+                    }
+                    registration.setTemplate(template);
+                    saveRegistration(sensor,endpoint,registration);
+                    Log.i(SosIpcTransceiver.TAG,"Sensor "+sensor.getId()+" registered with "+endpoint.getUrl());
+                    sendPending(target,sensor,registration);
                 }
             }
-            isRunning.set(on);
+
+            @Override
+            public void onSosFailure(SosException error) { registration.finishRegistering(); }
+        });
+        new SosHttpRequest(httpHost,target,step,stepPayload,future,endpoint).start();
+    }
+
+    /**
+     * Sends the readings held while a sensor was being registered with a fan-out destination
+     * @param target
+     * @param sensor
+     * @param registration
+     */
+    private void sendPending(SosDestination target, SosSensor sensor, SosRegistration registration) {
+        for (OperationInsertResult result:registration.takePending())
+            publishTo(target,result,sensor,new HashMap<String,SosPayload>());
+    }
+
+    /**
+     * Registers a fleet of sensors (i.e. everything behind a gateway) with the server requests
+     * currently go to. Each sensor's InsertSensor and InsertResultTemplate exchanges run on
+     * one of several registration lanes, so bringing up N sensors takes about
+     * N / parallelism round trips rather than 2 x N through the service thread. If discovery
+     * is on (see setDiscoverRegistrations()) one GetCapabilities is sent for the whole fleet
+     * first. Sensors already registered with that server are skipped. What the server assigns
+     * is kept per server, the same as for this service's own sensor, and given to the sensor;
+     * readings from these sensors then fail over and fan out like the service's own.
+     * @param sensors
+     * @param parallelism how many sensors to register at once (at most MAX_REGISTRATION_LANES)
+     * @param progress told as each sensor is registered or fails (or null)
+     * @return a future that completes with the sensors that were registered once every sensor
+     * has finished; it only fails if registration could not start at all
+     */
+    public SosFuture<ArrayList<SosSensor>> registerSensors(Collection<SosSensor> sensors, int parallelism, SosRegistrationListener progress) {
+        SosDestination current = destination;
+        if (current == null)
+            return SosFuture.newFailed(new SosException("Cannot register sensors as no SOS server has been set"));
+        SosEndpoint endpoint = current.getActive();
+        if (endpoint == null)
+            return SosFuture.newFailed(new SosException("Cannot register sensors as no SOS server is available"));
+        if ((sensors == null) || sensors.isEmpty())
+            return SosFuture.newCompleted(new ArrayList<SosSensor>());
+        return startBulkRegistration(current,endpoint,sensors,parallelism,progress);
+    }
+
+    private SosFuture<ArrayList<SosSensor>> startBulkRegistration(SosDestination target, SosEndpoint endpoint, Collection<SosSensor> sensors, int parallelism, SosRegistrationListener progress) {
+        SosLane[] lanes = getRegistrationLanes(Math.min(parallelism,sensors.size()));
+        if (lanes == null)
+            return SosFuture.newFailed(new SosException("Unable to register sensors as SosService has been shut down"));
+        SosBulkRegistration bulk = new SosBulkRegistration(bulkHost,target,endpoint,sensors,lanes,progress,discoverRegistrations,timeToLive);
+        bulkRegistrations.add(bulk);
+        bulk.start();
+        return bulk.getFuture();
+    }
+
+    /**
+     * Gets the first few registration lanes, starting any that do not exist yet; the lanes stay
+     * up for later calls to registerSensors() until the service is shut down
+     * @param count number of lanes wanted (at most MAX_REGISTRATION_LANES)
+     * @return the lanes (or null if the service has been shut down)
+     */
+    private SosLane[] getRegistrationLanes(int count) {
+        count = Math.max(1,Math.min(count,MAX_REGISTRATION_LANES));
+        synchronized (registrationLanes) {
+            if (registrationLanesClosed)
+                return null;
+            while (registrationLanes.size() < count)
+                registrationLanes.add(new SosLane("Register-"+(registrationLanes.size()+1)));
+            return registrationLanes.subList(0,count).toArray(new SosLane[count]);
         }
     }
 
-    public void broadcastSensorReadings() {
-        Log.d(SosIpcTransceiver.TAG,"Trying to broadcast sensor readings");
-        if (sosSensor != null) {
-            if (sosSensor.isReadyToSendResults()) {
-                OperationInsertResult operation = new OperationInsertResult(sosSensor);
-                if (operation.isValid())
-                    broadcast(operation);
-                else {
-                    if (listener != null)
-                        listener.onSosError("Unable to send sensor readings as sensor measurements are not fully initialized");
-                    Log.d(SosIpcTransceiver.TAG, "Cannot broadcast sensor readings; OperationInsertResult did not have valid data");
-                }
-            } else {
-                registerSensor();
-                sendSensorReadingWhenReady.set(true);
+    /**
+     * Gives the bulk registrations what they need from this service
+     */
+    private class BulkHost implements SosBulkRegistration.Host {
+        @Override
+        public SosRegistration getRegistration(SosDestination target, SosSensor sensor, SosEndpoint endpoint) {
+            if (sensor == sosSensor)
+                selectRegistration();
+            SosRegistration registration = SosService.this.getRegistration(target,sensor,endpoint);
+            if ((sensor != sosSensor) && (registration.getProcedure() == null) && !fleetEndpoints.containsKey(sensor)) {
+                if (!loadRegistration(sensor,endpoint,registration))
+                    registration.copyFrom(sensor);
             }
-        } else {
-            if (listener != null)
-                listener.onSosError("Cannot send sensor readings as no sensor has been set. Call setSosSensor first");
-            Log.d(SosIpcTransceiver.TAG, "...but SosSensor is null");
+            return registration;
+        }
+
+        @Override
+        public SosTemplateRegistry getTemplateRegistry() { return templateRegistry; }
+
+        @Override
+        public void adoptDiscovered(OperationGetCapabilitiesResponse response, SosSensor sensor, SosRegistration registration, SosEndpoint endpoint) {
+            SosService.this.adoptDiscovered(response,sensor,registration,endpoint);
+        }
+
+        @Override
+        public void saveRegistration(SosSensor sensor, SosEndpoint endpoint, SosRegistration registration) {
+            SosService.this.saveRegistration(sensor,endpoint,registration);
         }
+
+        @Override
+        public void onRegistered(SosDestination target, SosEndpoint endpoint, SosSensor sensor, SosRegistration registration) {
+            if (sensor == sosSensor) {
+                adoptRegistration(target,endpoint); //only if the sensor is using this server
+                templateRegistry.register(registration.getTemplate(),sensor);
+            } else
+                useFleetEndpoint(sensor,endpoint,registration);
+        }
+
+        @Override
+        public void send(SosDestination target, AbstractSosOperation operation, SosPayload payload, SosFuture<AbstractSosOperation> future, SosEndpoint endpoint, SosLane lane) {
+            new SosHttpRequest(httpHost,target,operation,payload,future,endpoint,lane).start();
+        }
+
+        @Override
+        public void onFinished(SosBulkRegistration bulk) { bulkRegistrations.remove(bulk); }
     }
 
-    public void broadcast(AbstractSosOperation operation) {
-        if (handler != null) {
-            handler.post(() -> {
-                Log.d(SosIpcTransceiver.TAG,"Broadcasting "+operation.getClass().getName());
-                if (isRunning.get()) {
-                    if (ipcBroadcast) {
-                        SosIpcTransceiver.setEnableSqAN(true);
-                        Log.d(SosIpcTransceiver.TAG,"Broadcasting SOS operation over IPC");
-                        try {
-                            transceiver.broadcast(context, operation);
-                        } catch (SosException e) {
-                            Log.e(SosIpcTransceiver.TAG,"Unable to broadcast SOS operation: "+e.getMessage());
-                            e.printStackTrace();
-                        }
-                    }
-                    if ((serverURL != null) && sosHttpBroadcast) {
-                        Log.d(SosIpcTransceiver.TAG,"Broadcasting SOS operation to "+serverURL);
-                        if (operation instanceof OperationGetResults) { //we need to use GET with JSON for this operation
-                            SosSensor sensor = ((OperationGetResults) operation).getSensor();
-                            if (!operation.isValid()) {
-                                if (listener != null)
-                                    listener.onSosError("Unable to GetResult without a sensor, an assignedOffering, and at least one observableProperty");
-                                return;
-                            }
-                            try {
-                                String result = HttpHelper.get(serverURL,((OperationGetResults) operation).getPairs());
-                                try {
-                                    sensor.parseSensors(new JSONObject(result));
-                                    if (listener != null)
-                                        listener.onSosOperationReceived(operation);
-                                } catch (JSONException e) {
-                                    try {
-                                        JSONArray array = new JSONArray(result); //this is actually a list of results, so let's get the last one
-                                        if ((array == null) || (array.length() < 1))
-                                            return;
-                                        sensor.parseSensors((JSONObject) array.get(array.length() - 1));
-                                        if (listener != null)
-                                            listener.onSosOperationReceived(operation);
-                                    } catch (JSONException e1) {
-                                        if (listener != null)
-                                            listener.onSosError("Unable to parse "+result);
-                                    }
-                                }
-                            } catch (IOException e) {
-                                Log.e(SosIpcTransceiver.TAG,"Attempt to get results for "+sensor.getId()+" failed: "+e.getMessage());
+    /**
+     * Forgets what each server assigned to the previous sensor
+     */
+    private synchronized void resetRegistrations() {
+        registeredEndpoint = null;
+        SosDestination current = destination;
+        if (current != null)
+            current.clearRegistrations();
+        for (SosDestination target:fanOutDestinations)
+            target.clearRegistrations();
+    }
 
-                                if (listener != null)
-                                    listener.onSosError("Unable to connect to SOS server: " + e.getMessage());
-                            }
-                        } else {
-                            try {
-                                String result = HttpHelper.post(serverURL, username, password, SosIpcTransceiver.toString(operation.toXML()), !sensorMode);
-                                AbstractSosOperation responseOperation = AbstractSosOperation.newFromXmlString(result);
-                                if (responseOperation == null) {
-                                    Log.e(SosIpcTransceiver.TAG, "Unable to parse response from server: " + result);
-                                    if (listener != null)
-                                        listener.onSosError("Unexpected response from SOS server");
-                                } else
-                                    onSosOperationReceived(responseOperation);
-                            } catch (IOException | TransformerException | ParserConfigurationException e) {
-                                if (listener != null)
-                                    listener.onSosError("Unable to connect to SOS server: " + e.getMessage());
-                            }
-                        }
-                    }
-                } else {
-                    if (listener != null)
-                        listener.onSosError("Cannot send SOS messages as the SosService has not be enabled (call setOn())");
-                }
-            });
-        } else {
-            Log.d(SosIpcTransceiver.TAG,"...but handler is not yet ready");
-            if (listener != null)
-                listener.onSosError("Unable to broadcast yet as the thread and handler SosService need are not yet ready");
+    /**
+     * Keeps what a server assigned during registration with that server
+     * @param current
+     * @param endpoint the server that answered
+     */
+    private synchronized void recordRegistration(SosDestination current, SosEndpoint endpoint) {
+        SosSensor sensor = sosSensor;
+        if ((sensor != null) && (endpoint == registeredEndpoint))
+            current.getRegistration(endpoint).copyFrom(sensor);
+    }
+
+    /**
+     * Sets how failed requests to the SOS server are retried
+     * @param retryPolicy the policy (or null for the default)
+     */
+    public void setRetryPolicy(SosRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        SosDestination current = destination;
+        if (current != null) {
+            for (SosEndpoint endpoint:current.getEndpoints())
+                endpoint.setRetryPolicy(retryPolicy);
         }
     }
 
+    /**
+     * Gets the number of operations waiting to go out over IPC
+     * @return
+     */
+    public int getIpcQueueDepth() { return ipcLane.getQueueDepth(); }
+
+    /**
+     * Gets the number of incoming IPC/SqAN messages waiting to be decoded or handed to the listener
+     * @return
+     */
+    public int getDecodeBacklog() { return decodePipeline.getBacklog(); }
+
+    /**
+     * Gets the number of operations waiting to go out over SqAN
+     * @return
+     */
+    public int getSqanQueueDepth() { return sqanLane.getQueueDepth(); }
+
+    /**
+     * Sets how many worker lanes operations are spread across. Operations for the same sensor
+     * always go to the same lane, so each sensor's readings are encoded and sent in order while
+     * different sensors are encoded and sent in parallel. Operations that are not about a
+     * sensor still run on the service thread. This has to be set before the first operation
+     * is sent; moving a sensor to a different lane while its earlier operations are still
+     * queued on the old one would let them run out of order.
+     * @param count number of lanes (1 or less == run everything on the service thread)
+     * @return false == operations have already gone to the lanes so the count was not changed
+     */
+    public boolean setShardCount(int count) { return shards.setCount(count); }
+
+    /**
+     * Gets the number of worker lanes
+     * @return the number of lanes (1 if everything runs on the service thread)
+     */
+    public int getShardCount() { return shards.getCount(); }
+
+    /**
+     * Gets the number of operations waiting in each worker lane
+     * @return the depth of each lane (empty if not sharded)
+     */
+    public int[] getShardQueueDepths() { return shards.getQueueDepths(); }
+
+    /**
+     * Runs a task on a worker lane (or on the service thread if there is no lane); while the
+     * service is starting the task is held on the service thread and handed to the lane once
+     * the service is ready, so it still runs after setOn()
+     * @param shard
+     * @param task
+     * @return false == the service (or lane) has been shut down
+     */
+    private boolean postToShard(final SosLane shard, final Runnable task) {
+        if (shard == null)
+            return post(task);
+        if (handler == null)
+            return post(() -> {
+                if (!shard.post(task))
+                    task.run(); //the lane was replaced while this was held
+            });
+        return shard.post(task);
+    }
+
+    /**
+     * Gets the number of operations waiting to go to the SOS server
+     * @return
+     */
+    public int getHttpQueueDepth() {
+        SosDestination current = destination;
+        int depth = (current == null)?0:current.getQueueDepth();
+        for (SosDestination target:fanOutDestinations)
+            depth += target.getQueueDepth();
+        return depth;
+    }
+
     public void shutdown() {
         Log.i(SosIpcTransceiver.TAG,"Shutting down SosServer");
         stopPolling();
         setOn(false);
+        Handler currentHandler;
+        synchronized (startLock) {
+            currentHandler = handler;
+            handler = null;
+            queuedUntilReady = null;
+        }
+        if (currentHandler != null)
+            currentHandler.removeCallbacksAndMessages(null);
         if (sosThread != null) {
-            if (handler != null)
-                handler.removeCallbacksAndMessages(null);
             sosThread.quitSafely();
             sosThread = null;
-            handler = null;
+        }
+        ipcLane.shutdown();
+        sqanLane.shutdown();
+        decodePipeline.shutdown();
+        shards.shutdown();
+        SosDestination current = destination;
+        if (current != null)
+            current.shutdown();
+        for (SosDestination target:fanOutDestinations)
+            target.shutdown();
+        for (SosBulkRegistration bulk:bulkRegistrations)
+            bulk.getFuture().cancel(false);
+        synchronized (registrationLanes) {
+            registrationLanesClosed = true;
+            for (SosLane lane:registrationLanes)
+                lane.shutdown(); //a task still running on the lane finishes first
+            registrationLanes.clear();
+        }
+        synchronized (heldObservations) {
+            heldObservations.clear();
+            heldCount = 0;
         }
         if (context != null)
             context = null;
@@ -273,38 +1794,146 @@ public class SosService implements SosMessageListener {
      */
     public void registerSensor() {
         Log.d(SosIpcTransceiver.TAG,"Trying to register sensor");
-        if (handler != null) {
-            handler.post(() -> {
-                if (sosSensor.getAssignedProcedure() == null) {
-                    if (sosSensor.isReadyToRegisterSensor()) {
-                        if (autoThrottle)
-                            SosIpcTransceiver.clearThrottle();
-                        Log.d(SosIpcTransceiver.TAG,"Sensor has all required info to register; contacting server...");
-                        OperationInsertSensor operation = new OperationInsertSensor(sosSensor);
-                        broadcast(operation);
-                    } else
-                        Log.w(SosIpcTransceiver.TAG, "sosSensor does not yet have enough information to register with the SOS server");
-                } else if (sosSensor.getAssignedTemplate() == null) {
-                    if (sosSensor.isReadyToRegisterResultTemplate()) {
-                        if (autoThrottle)
-                            SosIpcTransceiver.clearThrottle();
-                        OperationInsertResultTemplate operation = new OperationInsertResultTemplate(sosSensor);
-                        broadcast(operation);
-                    } else
-                        Log.w(SosIpcTransceiver.TAG, "sosSensor does not yet have enough information to register a result template with the SOS server");
-                } else
-                    Log.i(SosIpcTransceiver.TAG, "registerSensor ignored as sosSensor already appears to be registered with the SOS server");
-            });
-        } else
-            Log.d(SosIpcTransceiver.TAG,"... but handler not ready yet");
+        if (!post(() -> {
+            if (sosSensor == null) {
+                failRegistrations(new SosException("Cannot register as no sensor has been set. Call setSosSensor first"));
+                return;
+            }
+            selectRegistration();
+            if (sosSensor.getAssignedProcedure() == null) {
+                if (sosSensor.isReadyToRegisterSensor()) {
+                    if (discoverActiveRegistration())
+                        return;
+                    if (autoThrottle)
+                        transportConfig.clearThrottle();
+                    Log.d(SosIpcTransceiver.TAG,"Sensor has all required info to register; contacting server...");
+                    OperationInsertSensor operation = new OperationInsertSensor(sosSensor);
+                    broadcastAsync(operation).addListener(registrationStepListener);
+                } else {
+                    Log.w(SosIpcTransceiver.TAG, "sosSensor does not yet have enough information to register with the SOS server");
+                    failRegistrations(new SosException("sosSensor does not yet have enough information to register with the SOS server"));
+                }
+            } else if (sosSensor.getAssignedTemplate() == null) {
+                if (sosSensor.isReadyToRegisterResultTemplate()) {
+                    if (autoThrottle)
+                        transportConfig.clearThrottle();
+                    OperationInsertResultTemplate operation = new OperationInsertResultTemplate(sosSensor);
+                    broadcastAsync(operation).addListener(registrationStepListener);
+                } else {
+                    Log.w(SosIpcTransceiver.TAG, "sosSensor does not yet have enough information to register a result template with the SOS server");
+                    failRegistrations(new SosException("sosSensor does not yet have enough information to register a result template with the SOS server"));
+                }
+            } else {
+                Log.i(SosIpcTransceiver.TAG, "registerSensor ignored as sosSensor already appears to be registered with the SOS server");
+                finishRegistrations(sosSensor);
+            }
+        })) {
+            Log.d(SosIpcTransceiver.TAG,"... but SosService has been shut down");
+            failRegistrations(new SosException("Unable to register as SosService has been shut down"));
+        }
+    }
+
+    /**
+     * Registers the sensor with the SOS server (InsertSensor then InsertResultTemplate) if not already done
+     * @return a future that completes with the sensor once it has an assigned template
+     */
+    public SosFuture<SosSensor> registerSensorAsync() {
+        SosSensor sensor = sosSensor;
+        if (sensor == null)
+            return SosFuture.newFailed(new SosException("Cannot register as no sensor has been set. Call setSosSensor first"));
+        if ((sensor.getAssignedProcedure() != null) && (sensor.getAssignedTemplate() != null))
+            return SosFuture.newCompleted(sensor);
+        final SosFuture<SosSensor> future = new SosFuture<>();
+        pendingRegistrations.add(future);
+        future.setCancelAction(() -> pendingRegistrations.remove(future));
+        registerSensor();
+        return future;
+    }
+
+    /**
+     * Registers the sensor and fails the future if registration has not finished in time
+     * @param timeout time to wait (in ms)
+     * @return see registerSensorAsync()
+     */
+    public SosFuture<SosSensor> registerSensorAsync(long timeout) {
+        return withTimeout(registerSensorAsync(),timeout);
+    }
+
+    private final SosFutureListener<AbstractSosOperation> registrationStepListener = new SosFutureListener<AbstractSosOperation>() {
+        @Override
+        public void onSosSuccess(AbstractSosOperation result) {} //registration continues when the response is handled in onSosOperationReceived
+
+        @Override
+        public void onSosFailure(SosException error) { failRegistrations(error); }
+    };
+
+    /**
+     * The sensor now has a template with the server requests go to
+     * @param sensor
+     */
+    private void onSensorRegistered(SosSensor sensor) {
+        finishRegistrations(sensor);
+        if (sendSensorReadingWhenReady.get())
+            broadcastSensorReadings();
+        if (listener != null)
+            listener.onSosConfigurationSuccess();
+    }
+
+    private void finishRegistrations(SosSensor sensor) {
+        for (SosFuture<SosSensor> future:pendingRegistrations) {
+            pendingRegistrations.remove(future);
+            future.complete(sensor);
+        }
+    }
+
+    private void failRegistrations(SosException error) {
+        for (SosFuture<SosSensor> future:pendingRegistrations) {
+            pendingRegistrations.remove(future);
+            future.fail(error);
+        }
+    }
+
+    /**
+     * Sets the filter that drops incoming IPC/SqAN messages this app does not care about
+     * before they are parsed (i.e. only InsertResults for a few templates)
+     * @param filter the filter (or null to accept everything)
+     */
+    public void setMessageFilter(SosMessageFilter filter) {
+        this.messageFilter = filter;
+        SosIpcTransceiver current = transceiver;
+        if (current != null)
+            current.setFilter(filter);
     }
+    public SosMessageFilter getMessageFilter() { return messageFilter; }
+
+    /**
+     * Gets the templates this service has seen; incoming InsertResults are decoded into the
+     * sensor registered here for their template
+     * @return
+     */
+    public SosTemplateRegistry getTemplateRegistry() { return templateRegistry; }
 
     public SosMessageListener getListener() { return listener; }
     public void setListener(SosMessageListener listener) { this.listener = listener; }
     public SosSensor getSosSensor() { return sosSensor; }
-    public void setSensor(SosSensor sensor) { this.sosSensor = sensor; }
-    public void setSosServerUrl(String serverUrl) { this.serverURL = serverUrl; }
-    public String getSosServerUrl() { return serverURL; }
+    public void setSensor(SosSensor sensor) {
+        this.sosSensor = sensor;
+        templateRegistry.setDefaultSensor(sensor);
+        resetRegistrations();
+    }
+    public void setSosServerUrl(String serverUrl) {
+        setSosServerUrls((serverUrl == null)?null:Collections.singletonList(serverUrl));
+    }
+
+    /**
+     * Gets the most preferred SOS server URL
+     * @return
+     */
+    public String getSosServerUrl() {
+        SosDestination current = destination;
+        SosEndpoint primary = (current == null)?null:current.getPrimary();
+        return (primary == null)?null:primary.getUrl();
+    }
     public void setSosServerUsername(String username) {
         if ((username != null) && (username.length() == 0))
             this.username = null;
@@ -326,12 +1955,21 @@ public class SosService implements SosMessageListener {
      */
     public void setSosSensor(SosSensor sosSensor) {
         this.sosSensor = sosSensor;
+        templateRegistry.setDefaultSensor(sosSensor);
+        resetRegistrations();
         if (sosSensor != null)
             registerSensor();
     }
 
     @Override
     public void onSosOperationReceived(AbstractSosOperation operation) {
+        if (operation instanceof OperationInsertResult) {
+            if (!templateRegistry.isLazyDecoding())
+                ((OperationInsertResult)operation).applyToSensor(); //normally already done when it was parsed or decoded; this is a no-op then
+        } else if (operation instanceof OperationInsertResultTemplate)
+            templateRegistry.register((OperationInsertResultTemplate)operation);
+        else if (operation instanceof OperationGetCapabilitiesResponse)
+            templateRegistry.register((OperationGetCapabilitiesResponse)operation);
         if (listener != null)
             listener.onSosOperationReceived(operation);
         if (operation instanceof OperationInsertSensorResponse) {
@@ -340,32 +1978,34 @@ public class SosService implements SosMessageListener {
                 if ((sosSensor.getUniqueId() != null) && (sosSensor.getUniqueId().equalsIgnoreCase(response.getAssignedProcedure()))) {
                     sosSensor.setAssignedProcedure(response.getAssignedProcedure());
                     sosSensor.setAssignedOffering(response.getAssignedOffering());
-                    if (sendSensorReadingWhenReady.get())
+                    if (sendSensorReadingWhenReady.get() || !pendingRegistrations.isEmpty())
                         registerSensor();
                 } else
                     Log.i(SosIpcTransceiver.TAG,"InsertSensorResponse received, but it was for sensor "+response.getAssignedProcedure());
             }
         } else if (operation instanceof OperationInsertResultTemplateResponse) {
             if (autoThrottle)
-                SosIpcTransceiver.setThrottleRate(outgoingThrottleRate);
+                transportConfig.setThrottleRate(outgoingThrottleRate);
             if (sosSensor != null) {
                 OperationInsertResultTemplateResponse response = (OperationInsertResultTemplateResponse) operation;
                 if ((response.getAcceptedTemplate() != null) && (sosSensor.getAssignedProcedure() != null)
                         && response.getAcceptedTemplate().startsWith(sosSensor.getAssignedProcedure())) {
                     sosSensor.setAssignedTemplate(response.getAcceptedTemplate());
-                    if (sendSensorReadingWhenReady.get())
-                        broadcastSensorReadings();
-                    if (listener != null)
-                        listener.onSosConfigurationSuccess();
+                    onSensorRegistered(sosSensor);
                 } else
                     Log.i(SosIpcTransceiver.TAG, "InsertResultTemplateResponse received, but it was for template " + response.getAcceptedTemplate());
             }
         } else if (operation instanceof OperationInsertResult) {
             if (autoThrottle)
-                SosIpcTransceiver.setThrottleRate(incomingThrottleRate);
+                transportConfig.setThrottleRate(incomingThrottleRate);
+            if (listener instanceof SosObservationListener) {
+                ArrayList<SosObservation> observations = ((OperationInsertResult)operation).getObservations();
+                if ((observations != null) && !observations.isEmpty())
+                    ((SosObservationListener)listener).onSosObservationsReceived((OperationInsertResult)operation,observations);
+            }
         } else if (operation instanceof OperationInsertResultResponse) {
             if (autoThrottle)
-                SosIpcTransceiver.setThrottleRate(outgoingThrottleRate);
+                transportConfig.setThrottleRate(outgoingThrottleRate);
         }
         if (listener != null)
             listener.onSosOperationReceived(operation);
@@ -425,6 +2065,14 @@ public class SosService implements SosMessageListener {
      */
     public boolean isAutoThrottle() { return autoThrottle; }
 
+    /**
+     * Gets this service's IPC/SqAN settings (SqAN channel, SqAN on/off and throttle); these
+     * only apply to this service, so other services in the same process are not affected. They
+     * start as a copy of SosTransportConfig.getShared().
+     * @return
+     */
+    public SosTransportConfig getTransportConfig() { return transportConfig; }
+
     /**
      * Sets the service to automatically throttle incoming messages (usually done as
      * a way to prevent flooding the processor with a bunch of costly XML unmarshalling)
@@ -0,0 +1,113 @@
+package org.sofwerx.ogc.sos;
+
+import android.util.Log;
+
+/**
+ * Spreads operations across worker lanes by the sensor they are about. Operations for the same
+ * sensor always go to the same lane, so each sensor's readings are encoded and sent in order
+ * while different sensors are encoded and sent in parallel.
+ */
+class SosShardDispatcher {
+    private volatile SosLane[] shards; //null == everything is encoded on the service thread
+    private volatile boolean inUse = false; //once work has gone to a lane the lanes are fixed
+
+    /**
+     * Sets how many lanes operations are spread across; this can only change before the first
+     * operation goes to a lane
+     * @param count number of lanes (1 or less == no lanes)
+     * @return false == operations have already gone to the lanes so the count was not changed
+     */
+    synchronized boolean setCount(int count) {
+        if (count == getCount())
+            return true;
+        if (inUse) {
+            Log.w(SosIpcTransceiver.TAG,"Cannot change the shard count to "+count+" once operations have been sent");
+            return false;
+        }
+        SosLane[] old = shards;
+        if (count > 1) {
+            SosLane[] next = new SosLane[count];
+            for (int i=0;i<count;i++)
+                next[i] = new SosLane("Shard-"+(i+1));
+            shards = next;
+        } else
+            shards = null;
+        if (old != null) {
+            for (SosLane lane:old)
+                lane.shutdown(); //never given any work
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of lanes
+     * @return the number of lanes (1 if there are none)
+     */
+    int getCount() {
+        SosLane[] current = shards;
+        return (current == null)?1:current.length;
+    }
+
+    /**
+     * Gets the number of operations waiting in each lane
+     * @return the depth of each lane (empty if there are none)
+     */
+    int[] getQueueDepths() {
+        SosLane[] current = shards;
+        if (current == null)
+            return new int[0];
+        int[] depths = new int[current.length];
+        for (int i=0;i<current.length;i++)
+            depths[i] = current[i].getQueueDepth();
+        return depths;
+    }
+
+    /**
+     * Picks the lane for an operation from the sensor it is about
+     * @param operation
+     * @return the lane (or null if there are no lanes or the operation is not about a sensor)
+     */
+    SosLane getShard(AbstractSosOperation operation) {
+        SosLane[] current = shards;
+        if (current == null)
+            return null;
+        if (!inUse) {
+            synchronized (this) { //fixes the lanes before the first operation goes to one
+                inUse = true;
+                current = shards;
+            }
+            if (current == null)
+                return null;
+        }
+        SosSensor sensor = null;
+        if (operation instanceof OperationInsertResult)
+            sensor = ((OperationInsertResult)operation).getSosSensor();
+        else if (operation instanceof OperationInsertSensor)
+            sensor = ((OperationInsertSensor)operation).getSosSensor();
+        else if (operation instanceof OperationInsertResultTemplate)
+            sensor = ((OperationInsertResultTemplate)operation).getSosSensor();
+        else if (operation instanceof OperationGetResults)
+            sensor = ((OperationGetResults)operation).getSensor();
+        if (sensor == null)
+            return null;
+        String key = (sensor.getUniqueId() == null)?sensor.getId():sensor.getUniqueId();
+        if (key == null)
+            return null;
+        return current[(key.hashCode() & 0x7fffffff) % current.length];
+    }
+
+    /**
+     * Stops every lane; queued operations are dropped
+     */
+    void shutdown() {
+        SosLane[] current;
+        synchronized (this) {
+            current = shards;
+            shards = null;
+        }
+        if (current != null) {
+            for (SosLane lane:current)
+                lane.shutdown();
+        }
+    }
+}
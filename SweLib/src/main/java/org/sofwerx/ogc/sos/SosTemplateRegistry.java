@@ -0,0 +1,309 @@
+package org.sofwerx.ogc.sos;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the result templates seen on the network (from InsertResultTemplate traffic
+ * and GetCapabilities responses) so that each incoming InsertResult can be decoded into the
+ * sensor that actually sent it rather than into one shared sensor.
+ */
+public class SosTemplateRegistry {
+    private final static SosTemplateRegistry shared = new SosTemplateRegistry();
+    private final ConcurrentHashMap<String,Entry> byTemplate = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,Entry> byOffering = new ConcurrentHashMap<>();
+    private volatile SosSensor defaultSensor;
+    private volatile boolean lazyDecoding = false;
+
+    /**
+     * The field layout and sensor state for one result template
+     */
+    public static class Entry {
+        private final String offering;
+        private volatile String template;
+        private volatile ArrayList<SensorResultTemplateField> fields;
+        private volatile SosSensor sensor;
+        private volatile String tokenSeparator = OperationInsertResultTemplate.FIELD_SEPERATOR;
+        private volatile String blockSeparator = OperationInsertResultTemplate.BLOCK_SEPERATOR;
+
+        private Entry(String offering, SosSensor sensor) {
+            this.offering = offering;
+            this.sensor = sensor;
+            this.fields = getFields(sensor);
+        }
+
+        public String getOffering() { return offering; }
+        public String getTemplate() { return template; }
+
+        /**
+         * Gets the field layout for this template
+         * @return the fields in the order they appear in resultValues (or an empty list if the layout is not yet known)
+         */
+        public ArrayList<SensorResultTemplateField> getFields() { return fields; }
+
+        /**
+         * Gets the sensor that InsertResults for this template decode into
+         * @return
+         */
+        public SosSensor getSensor() { return sensor; }
+
+        /**
+         * Gets the separator between fields declared by this template
+         * @return
+         */
+        public String getTokenSeparator() { return tokenSeparator; }
+
+        /**
+         * Gets the separator between blocks declared by this template
+         * @return
+         */
+        public String getBlockSeparator() { return blockSeparator; }
+
+        /**
+         * Does this entry know enough about the template to decode results
+         * @return
+         */
+        public boolean hasLayout() { return !fields.isEmpty(); }
+
+        private boolean matches(String template) {
+            if (template.startsWith(offering))
+                return true;
+            String procedure = sensor.getAssignedProcedure();
+            return (procedure != null) && template.startsWith(procedure);
+        }
+
+        private int matchLength() {
+            String procedure = sensor.getAssignedProcedure();
+            return Math.max(offering.length(),(procedure == null)?0:procedure.length());
+        }
+
+        private static ArrayList<SensorResultTemplateField> getFields(SosSensor sensor) {
+            ArrayList<SensorResultTemplateField> fields = new ArrayList<>();
+            ArrayList<SensorMeasurement> measurements = sensor.getSensorMeasurements();
+            if (measurements != null) {
+                for (SensorMeasurement measurement:measurements) {
+                    if (measurement.getFormat() != null)
+                        fields.add(measurement.getFormat());
+                }
+            }
+            return fields;
+        }
+    }
+
+    /**
+     * Records the field layout described in an InsertResultTemplate
+     * @param operation
+     */
+    public void register(OperationInsertResultTemplate operation) {
+        if (operation == null)
+            return;
+        SosSensor sensor = operation.getSosSensor();
+        if ((sensor == null) || (sensor.getAssignedOffering() == null))
+            return;
+        String offering = sensor.getAssignedOffering();
+        Entry entry = byOffering.get(offering);
+        if (entry == null) {
+            entry = new Entry(offering,sensor);
+            entry.tokenSeparator = operation.getTokenSeparator();
+            entry.blockSeparator = operation.getBlockSeparator();
+            Entry existing = byOffering.putIfAbsent(offering,entry);
+            if (existing == null) {
+                Log.d(SosIpcTransceiver.TAG,"Result template layout registered for offering "+offering);
+                return;
+            }
+            entry = existing;
+        }
+        synchronized (entry) {
+            SosSensor previous = entry.sensor;
+            copyIdentity(previous,sensor);
+            entry.sensor = sensor;
+            entry.fields = Entry.getFields(sensor);
+            entry.tokenSeparator = operation.getTokenSeparator();
+            entry.blockSeparator = operation.getBlockSeparator();
+            if (entry.template != null)
+                sensor.setAssignedTemplate(entry.template);
+        }
+        Log.d(SosIpcTransceiver.TAG,"Result template layout updated for offering "+offering);
+    }
+
+    /**
+     * Records the sensors described in a GetCapabilities response so their offerings and
+     * procedures can be matched against template IDs later
+     * @param operation
+     */
+    public void register(OperationGetCapabilitiesResponse operation) {
+        if ((operation == null) || (operation.getSensors() == null))
+            return;
+        for (SosSensor sensor:operation.getSensors()) {
+            if ((sensor == null) || (sensor.getAssignedOffering() == null))
+                continue;
+            Entry entry = byOffering.putIfAbsent(sensor.getAssignedOffering(),new Entry(sensor.getAssignedOffering(),sensor));
+            if (entry != null) {
+                synchronized (entry) {
+                    copyIdentity(sensor,entry.sensor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Binds a known template ID to a sensor (i.e. when the InsertResultTemplateResponse was seen)
+     * @param template the template ID
+     * @param sensor the sensor with an assigned offering and measurements
+     */
+    public void register(String template, SosSensor sensor) {
+        if ((template == null) || (sensor == null))
+            return;
+        String offering = (sensor.getAssignedOffering() == null)?template:sensor.getAssignedOffering();
+        Entry entry = new Entry(offering,sensor);
+        entry.template = template;
+        sensor.setAssignedTemplate(template);
+        byOffering.put(offering,entry);
+        byTemplate.put(template,entry);
+    }
+
+    /**
+     * Finds the entry for a template ID, matching the template against known offerings and
+     * procedures the first time it is seen
+     * @param template the template ID from an InsertResult
+     * @return the entry (or null if this template cannot be matched)
+     */
+    public Entry getEntry(String template) {
+        if (template == null)
+            return null;
+        Entry entry = byTemplate.get(template);
+        if (entry != null)
+            return entry;
+        Entry best = null;
+        for (Entry candidate:byOffering.values()) {
+            if (candidate.matches(template) && ((best == null) || (candidate.matchLength() > best.matchLength())))
+                best = candidate;
+        }
+        if (best != null) {
+            synchronized (best) {
+                if (best.template == null) {
+                    best.template = template;
+                    best.sensor.setAssignedTemplate(template);
+                }
+            }
+            Entry existing = byTemplate.putIfAbsent(template,best);
+            if (existing != null)
+                best = existing;
+            else
+                Log.d(SosIpcTransceiver.TAG,"Template "+template+" matched to offering "+best.offering);
+        }
+        return best;
+    }
+
+    /**
+     * Gets the entry for an offering
+     * @param offering
+     * @return the entry (or null if this offering has not been seen)
+     */
+    public Entry getEntryByOffering(String offering) {
+        if (offering == null)
+            return null;
+        return byOffering.get(offering);
+    }
+
+    /**
+     * Finds a template already known for an offering whose field layout matches a sensor's, so
+     * the sensor can send with it without registering a template of its own
+     * @param offering
+     * @param sensor
+     * @return the template ID (or null if none with the same layout is known)
+     */
+    public String findTemplate(String offering, SosSensor sensor) {
+        Entry entry = getEntryByOffering(offering);
+        if ((entry == null) || (sensor == null) || !entry.hasLayout())
+            return null;
+        String template = entry.template;
+        if ((template == null) || !SosSensor.describeFields(entry.fields).equals(sensor.getTemplateDescription()))
+            return null;
+        return template;
+    }
+
+    /**
+     * Gets the sensor that results for this template should decode into
+     * @param template the template ID from an InsertResult
+     * @return the sensor (or null if this template is unknown or its layout has not been seen)
+     */
+    public SosSensor getSensor(String template) {
+        Entry entry = getEntry(template);
+        if ((entry == null) || !entry.hasLayout())
+            return null;
+        return entry.sensor;
+    }
+
+    /**
+     * Gets the registry used when an operation is parsed without one; the deprecated
+     * AbstractSosOperation.setDefaultSensor() sets its default sensor
+     * @return
+     */
+    public static SosTemplateRegistry getShared() { return shared; }
+
+    /**
+     * Are received InsertResults left undecoded until they are used
+     * @return
+     */
+    public boolean isLazyDecoding() { return lazyDecoding; }
+
+    /**
+     * Sets if received InsertResults are left undecoded until they are used. By default each
+     * received InsertResult is copied into its sensor as it is parsed (or, for IPC and SqAN,
+     * just before it is handed to the listener). Apps that only forward or filter results
+     * (i.e. relays and gateways) can turn this on; the sensor is then only updated when
+     * OperationInsertResult.applyToSensor() is called.
+     * @param lazyDecoding
+     */
+    public void setLazyDecoding(boolean lazyDecoding) { this.lazyDecoding = lazyDecoding; }
+
+    /**
+     * Gets the sensor InsertResults decode into when their template is unknown
+     * @return
+     */
+    public SosSensor getDefaultSensor() { return defaultSensor; }
+
+    /**
+     * Used so that templates requiring some context can have that context available
+     * @param defaultSensor
+     */
+    public void setDefaultSensor(SosSensor defaultSensor) {
+        this.defaultSensor = defaultSensor;
+        Log.d(SosIpcTransceiver.TAG,"Default sensor is now: "+((defaultSensor==null)?"null":defaultSensor.getUniqueId()));
+    }
+
+    /**
+     * Gets all of the known entries
+     * @return
+     */
+    public Collection<Entry> getEntries() { return Collections.unmodifiableCollection(byOffering.values()); }
+
+    public void clear() {
+        byTemplate.clear();
+        byOffering.clear();
+    }
+
+    private static void copyIdentity(SosSensor from, SosSensor to) {
+        if ((from == null) || (to == null) || (from == to))
+            return;
+        if ((to.getId() == null) && (from.getId() != null))
+            to.setId(from.getId());
+        if ((to.getUniqueId() == null) && (from.getUniqueId() != null))
+            to.setUniqueId(from.getUniqueId());
+        if ((to.getLongName() == null) && (from.getLongName() != null))
+            to.setLongName(from.getLongName());
+        if ((to.getShortName() == null) && (from.getShortName() != null))
+            to.setShortName(from.getShortName());
+        if ((to.getAssignedProcedure() == null) && (from.getAssignedProcedure() != null))
+            to.setAssignedProcedure(from.getAssignedProcedure());
+        if (from.getObservableProperties() != null) {
+            for (String property:from.getObservableProperties())
+                to.addObservableProperty(property);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.sofwerx.ogc.sos;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The IPC/SqAN settings for one SosService (or one SosIpcTransceiver): which SqAN channel it
+ * uses, whether it sends over SqAN, and its throttle. Each service has its own, so several
+ * services in one process (i.e. a sensor publisher and a pull client on different channels)
+ * do not change each other's settings. Safe to change from any thread.
+ */
+public class SosTransportConfig {
+    private final static SosTransportConfig shared = new SosTransportConfig();
+    private volatile String channel = SosService.DEFAULT_SWE_CHANNEL;
+    private volatile boolean sqanEnabled = true;
+    //Since XML is expensive to marshall/unmarshall, include throttling to ignore messages that come in or go out too fast
+    private volatile long throttleRate = -1l;
+    private final AtomicLong nextAvailableIntake = new AtomicLong(Long.MIN_VALUE);
+
+    public SosTransportConfig() {}
+
+    /**
+     * Builds a config that starts with the same channel, SqAN and throttle settings as another
+     * @param other
+     */
+    public SosTransportConfig(SosTransportConfig other) {
+        if (other != null) {
+            channel = other.channel;
+            sqanEnabled = other.sqanEnabled;
+            throttleRate = other.throttleRate;
+        }
+    }
+
+    /**
+     * Gets the settings used by transceivers built without a config of their own; each
+     * SosService starts with a copy of these. The deprecated static setters on
+     * SosIpcTransceiver change these settings.
+     * @return
+     */
+    public static SosTransportConfig getShared() { return shared; }
+
+    /**
+     * Sets the SqAN channel that SOS traffic is sent and received on
+     * @param channel
+     */
+    public void setChannel(String channel) { this.channel = channel; }
+    public String getChannel() { return channel; }
+
+    public void setSqANEnabled(boolean enable) { this.sqanEnabled = enable; }
+    public boolean isSqANEnabled() { return sqanEnabled; }
+
+    /**
+     * Sets a throttle rate (i.e. a min amount of time between messages in ms); all messages
+     * in excess of the throttle rate will be dropped (done to prevent bogging down the
+     * processor in XML marshalling/unmarshalling operations).
+     * @param rate rate in ms (or -1l if no throttling is needed)
+     */
+    public void setThrottleRate(long rate) {
+        if (throttleRate != rate) {
+            throttleRate = rate;
+            if (rate > 0l)
+                Log.d(SosIpcTransceiver.TAG, "Setting throttle interval to " + Long.toString(rate) + "ms");
+            else
+                Log.d(SosIpcTransceiver.TAG, "Removing throttle");
+        }
+    }
+
+    public long getThrottleRate() { return throttleRate; }
+
+    public void clearThrottle() { setThrottleRate(-1l); }
+
+    /**
+     * Lets one message through the throttle if enough time has passed since the last one
+     * @return true == the message may be handled; false == it should be dropped
+     */
+    public boolean tryPassThrottle() {
+        long rate = throttleRate;
+        if (rate <= 0l)
+            return true;
+        long now = System.currentTimeMillis();
+        long next = nextAvailableIntake.get();
+        if (now <= next)
+            return false;
+        return nextAvailableIntake.compareAndSet(next,now + rate); //only one of several racing messages gets through
+    }
+}
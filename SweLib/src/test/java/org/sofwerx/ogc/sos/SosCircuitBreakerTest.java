@@ -0,0 +1,80 @@
+package org.sofwerx.ogc.sos;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SosCircuitBreakerTest {
+    @Test
+    public void opensAfterThresholdFailures() {
+        SosCircuitBreaker breaker = new SosCircuitBreaker("test",3,60000l);
+        for (int i=0;i<2;i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.onFailure();
+        }
+        assertEquals(SosCircuitBreaker.State.CLOSED,breaker.getState());
+        assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        assertEquals(SosCircuitBreaker.State.OPEN,breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.isAvailable());
+        assertTrue(breaker.getTimeUntilRetry() > 0l);
+    }
+
+    @Test
+    public void successResetsTheFailureCount() {
+        SosCircuitBreaker breaker = new SosCircuitBreaker("test",2,60000l);
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        assertEquals(SosCircuitBreaker.State.CLOSED,breaker.getState());
+    }
+
+    @Test
+    public void halfOpenLetsOneProbeThrough() {
+        SosCircuitBreaker breaker = new SosCircuitBreaker("test",1,0l);
+        breaker.onFailure();
+        assertEquals(SosCircuitBreaker.State.OPEN,breaker.getState());
+        assertTrue(breaker.isAvailable());
+        assertTrue(breaker.allowRequest()); //the open time has passed so this is the probe
+        assertEquals(SosCircuitBreaker.State.HALF_OPEN,breaker.getState());
+        assertFalse(breaker.isAvailable());
+        assertFalse(breaker.allowRequest());
+        breaker.onSuccess();
+        assertEquals(SosCircuitBreaker.State.CLOSED,breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void failedProbeOpensAgain() {
+        SosCircuitBreaker breaker = new SosCircuitBreaker("test",3,0l);
+        for (int i=0;i<3;i++)
+            breaker.onFailure();
+        assertTrue(breaker.allowRequest());
+        breaker.onFailure(); //one failure is enough while half-open
+        assertEquals(SosCircuitBreaker.State.OPEN,breaker.getState());
+    }
+
+    @Test
+    public void abandonedProbeIsReleased() {
+        SosCircuitBreaker breaker = new SosCircuitBreaker("test",1,0l);
+        breaker.onFailure();
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        breaker.onAbandoned();
+        assertEquals(SosCircuitBreaker.State.HALF_OPEN,breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void resetCloses() {
+        SosCircuitBreaker breaker = new SosCircuitBreaker("test",1,60000l);
+        breaker.onFailure();
+        breaker.reset();
+        assertEquals(SosCircuitBreaker.State.CLOSED,breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertEquals(0l,breaker.getTimeUntilRetry());
+    }
+}
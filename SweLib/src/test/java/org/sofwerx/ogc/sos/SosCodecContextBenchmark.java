@@ -0,0 +1,100 @@
+package org.sofwerx.ogc.sos;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the per-message cost of reading and writing an InsertResult when the XML factories
+ * are looked up for every message (as the library used to) with reusing SosCodecContext.
+ * Only runs with -Dsos.benchmark=true; the time per message for each is in the assertion
+ * message (SosCodecContextTest checks that both write the same XML). Set
+ * -Dsos.benchmark.messages to run longer.
+ */
+public class SosCodecContextBenchmark {
+    private final static int MESSAGES = Integer.getInteger("sos.benchmark.messages",1000);
+    private final static int ROUNDS = 3;
+    private final static String XML;
+    static {
+        StringBuilder out = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><sos:InsertResult xmlns:sos=\"http://www.opengis.net/sos/2.0\" service=\"SOS\" version=\"2.0.0\">"
+                +"<sos:template>http://www.sofwerx.org/torgi/template/1</sos:template><sos:resultValues>");
+        for (int i=0;i<20;i++) {
+            if (i > 0)
+                out.append(OperationInsertResultTemplate.BLOCK_SEPERATOR);
+            out.append("2019-03-01T00:00:").append(10+i).append("Z,38.8977,-77.0365,12.5,-61.2");
+        }
+        out.append("</sos:resultValues></sos:InsertResult>");
+        XML = out.toString();
+    }
+
+    private static void setOutputProperties(Transformer transformer) {
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,"no");
+        transformer.setOutputProperty(OutputKeys.METHOD,"xml");
+        transformer.setOutputProperty(OutputKeys.INDENT,"yes");
+        transformer.setOutputProperty(OutputKeys.ENCODING,"UTF-8");
+    }
+
+    private static String perCallRoundTrip() throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(XML)));
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        setOutputProperties(transformer);
+        StringWriter writer = new StringWriter();
+        transformer.transform(new DOMSource(doc),new StreamResult(writer));
+        return writer.toString();
+    }
+
+    private static String codecContextRoundTrip() throws Exception {
+        SosCodecContext codec = SosCodecContext.get();
+        Document doc = codec.parse(new InputSource(new StringReader(XML)));
+        StringWriter writer = new StringWriter();
+        codec.getTransformer(false).transform(new DOMSource(doc),new StreamResult(writer));
+        return writer.toString();
+    }
+
+    /**
+     * Gets the fastest of several rounds, after one warm-up round
+     * @param perCall true == look the factories up for every message
+     * @return time per message (in ns)
+     */
+    private static long time(boolean perCall) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int round=0;round<=ROUNDS;round++) {
+            long start = System.nanoTime();
+            for (int i=0;i<MESSAGES;i++) {
+                if (perCall)
+                    perCallRoundTrip();
+                else
+                    codecContextRoundTrip();
+            }
+            if (round > 0)
+                best = Math.min(best,(System.nanoTime() - start)/MESSAGES);
+        }
+        return best;
+    }
+
+    @Before
+    public void onlyWhenAsked() {
+        assumeTrue(Boolean.getBoolean("sos.benchmark"));
+    }
+
+    @Test
+    public void codecContextIsNotSlowerThanPerCallFactories() throws Exception {
+        long perCall = time(true);
+        long cached = time(false);
+        assertTrue("parse + write of one InsertResult: per-call factories "+(perCall/1000l)+"us, SosCodecContext "+(cached/1000l)+"us",cached <= perCall);
+    }
+}
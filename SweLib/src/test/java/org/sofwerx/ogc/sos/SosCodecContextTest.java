@@ -0,0 +1,70 @@
+package org.sofwerx.ogc.sos;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SosCodecContextTest {
+    private final static String XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><sos:InsertResult xmlns:sos=\"http://www.opengis.net/sos/2.0\" service=\"SOS\" version=\"2.0.0\">"
+            +"<sos:template>http://www.sofwerx.org/torgi/template/1</sos:template><sos:resultValues>2019-03-01T00:00:10Z,38.8977,-77.0365</sos:resultValues></sos:InsertResult>";
+
+    private static String write(Document doc, Transformer transformer) throws Exception {
+        StringWriter writer = new StringWriter();
+        transformer.transform(new DOMSource(doc),new StreamResult(writer));
+        return writer.toString();
+    }
+
+    private static String perCallRoundTrip() throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(XML)));
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,"no");
+        transformer.setOutputProperty(OutputKeys.METHOD,"xml");
+        transformer.setOutputProperty(OutputKeys.INDENT,"yes");
+        transformer.setOutputProperty(OutputKeys.ENCODING,"UTF-8");
+        return write(doc,transformer);
+    }
+
+    private static String codecContextRoundTrip(boolean omitXmlDeclaration) throws Exception {
+        SosCodecContext codec = SosCodecContext.get();
+        Document doc = codec.parse(new InputSource(new StringReader(XML)));
+        return write(doc,codec.getTransformer(omitXmlDeclaration));
+    }
+
+    @Test
+    public void matchesPerCallFactories() throws Exception {
+        String expected = perCallRoundTrip();
+        assertEquals(expected,codecContextRoundTrip(false));
+        assertEquals(expected,codecContextRoundTrip(false)); //a reset builder and transformer behave the same as new ones
+    }
+
+    @Test
+    public void resetClearsTheLastOutputProperties() throws Exception {
+        assertFalse(codecContextRoundTrip(true).startsWith("<?xml"));
+        assertTrue(codecContextRoundTrip(false).startsWith("<?xml"));
+    }
+
+    @Test
+    public void eachThreadHasItsOwnContext() throws Exception {
+        final SosCodecContext[] other = new SosCodecContext[1];
+        Thread thread = new Thread(() -> other[0] = SosCodecContext.get());
+        thread.start();
+        thread.join();
+        assertSame(SosCodecContext.get(),SosCodecContext.get());
+        assertFalse(other[0] == SosCodecContext.get());
+    }
+}
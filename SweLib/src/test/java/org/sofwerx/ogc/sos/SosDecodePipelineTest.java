@@ -0,0 +1,137 @@
+package org.sofwerx.ogc.sos;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SosDecodePipelineTest {
+    private final static long WAIT = 10000l;
+    private final SosDecodePipeline pipeline = new SosDecodePipeline(4);
+
+    /**
+     * Keeps the first field of each InsertResult it is given, per template
+     */
+    private static class Recorder implements SosMessageListener {
+        private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch done;
+
+        private Recorder(int expected) { done = new CountDownLatch(expected); }
+
+        @Override
+        public void onSosOperationReceived(AbstractSosOperation operation) {
+            OperationInsertResult result = (OperationInsertResult)operation;
+            received.add(result.getAssignedTemplate()+"="+result.getResultValues().getString(0));
+            done.countDown();
+        }
+
+        @Override
+        public void onSosError(String message) {}
+
+        @Override
+        public void onSosConfigurationSuccess() {}
+
+        private List<String> get(String template) {
+            ArrayList<String> values = new ArrayList<>();
+            synchronized (received) {
+                for (String value:received) {
+                    if (value.startsWith(template+"="))
+                        values.add(value.substring(template.length()+1));
+                }
+            }
+            return values;
+        }
+    }
+
+    /**
+     * @param template
+     * @param value
+     * @param padding extra blocks so some messages take longer to decode than others
+     * @return
+     */
+    private static String newInsertResult(String template, long value, int padding) {
+        StringBuilder out = new StringBuilder("<sos:InsertResult xmlns:sos=\"http://www.opengis.net/sos/2.0\" service=\"SOS\" version=\"2.0.0\"><sos:template>")
+                .append(template).append("</sos:template><sos:resultValues>").append(value);
+        for (int i=0;i<padding;i++)
+            out.append("@@").append(i);
+        return out.append("</sos:resultValues></sos:InsertResult>").toString();
+    }
+
+    private static SosTemplateRegistry newLazyRegistry() {
+        SosTemplateRegistry registry = new SosTemplateRegistry();
+        registry.setLazyDecoding(true);
+        return registry;
+    }
+
+    @After
+    public void shutdown() { pipeline.shutdown(); }
+
+    @Test
+    public void eachSourceIsDeliveredInOrder() throws InterruptedException {
+        final int messages = 200;
+        String[] templates = {"urn:test:a","urn:test:b","urn:test:c"};
+        Recorder recorder = new Recorder(messages*templates.length);
+        SosTemplateRegistry registry = newLazyRegistry();
+        Random random = new Random(49l);
+        for (int i=0;i<messages;i++) {
+            for (String template:templates)
+                pipeline.submit("app",newInsertResult(template,i,random.nextInt(3) == 0?2000:0),registry,recorder);
+        }
+        assertTrue(recorder.done.await(WAIT,TimeUnit.MILLISECONDS));
+        for (String template:templates) {
+            List<String> values = recorder.get(template);
+            assertEquals(messages,values.size());
+            for (int i=0;i<messages;i++)
+                assertEquals(template,Integer.toString(i),values.get(i));
+        }
+        assertEquals(0,pipeline.getBacklog());
+    }
+
+    @Test
+    public void aMessageThatFailsToDecodeDoesNotHoldUpTheRest() throws InterruptedException {
+        Recorder recorder = new Recorder(3);
+        SosTemplateRegistry registry = newLazyRegistry();
+        pipeline.submit("app",newInsertResult("urn:test:a",1l,0),registry,recorder);
+        pipeline.submit("app","<sos:InsertResult xmlns:sos=\"http://www.opengis.net/sos/2.0\"><sos:template>urn:test:a</sos:template><sos:resultValues>2",registry,recorder);
+        pipeline.submit("app",newInsertResult("urn:test:a",3l,0),registry,recorder);
+        pipeline.submit("app",newInsertResult("urn:test:a",4l,0),registry,recorder);
+        assertTrue(recorder.done.await(WAIT,TimeUnit.MILLISECONDS));
+        assertEquals(3,recorder.get("urn:test:a").size());
+        assertEquals("1",recorder.get("urn:test:a").get(0));
+        assertEquals("3",recorder.get("urn:test:a").get(1));
+        assertEquals("4",recorder.get("urn:test:a").get(2));
+        long deadline = System.currentTimeMillis() + WAIT;
+        while ((pipeline.getBacklog() > 0) && (System.currentTimeMillis() < deadline))
+            Thread.sleep(10l);
+        assertEquals(0,pipeline.getBacklog());
+    }
+
+    @Test
+    public void resultsAreAppliedInOrderSoTheSensorHoldsTheLatest() throws InterruptedException {
+        final int messages = 100;
+        SosSensor sensor = new SosSensor("count","urn:test:count","Count","Counter");
+        SensorMeasurement count = new SensorMeasurement(new SensorResultTemplateField("count","http://sensorml.com/ont/swe/property/Count",null));
+        sensor.addMeasurement(count);
+        SosTemplateRegistry registry = new SosTemplateRegistry();
+        registry.register("urn:test:count",sensor);
+        Recorder recorder = new Recorder(messages);
+        Random random = new Random(50l);
+        for (int i=0;i<messages;i++) {
+            StringBuilder padding = new StringBuilder();
+            for (int j=random.nextInt(3) == 0?2000:0;j>0;j--)
+                padding.append(' ');
+            pipeline.submit("app","<sos:InsertResult xmlns:sos=\"http://www.opengis.net/sos/2.0\"><sos:template>urn:test:count</sos:template>"
+                    +"<sos:resultValues>"+i+padding+"</sos:resultValues></sos:InsertResult>",registry,recorder);
+        }
+        assertTrue(recorder.done.await(WAIT,TimeUnit.MILLISECONDS));
+        assertEquals((double)(messages-1),((Number)count.getValue()).doubleValue(),0d);
+    }
+}
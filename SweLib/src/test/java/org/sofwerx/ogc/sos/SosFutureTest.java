@@ -0,0 +1,186 @@
+package org.sofwerx.ogc.sos;
+
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SosFutureTest {
+    private final static int RACES = 2000;
+
+    /**
+     * Counts how often each callback is made
+     */
+    private static class Counter implements SosFutureListener<String> {
+        private final AtomicInteger successes = new AtomicInteger(0);
+        private final AtomicInteger failures = new AtomicInteger(0);
+
+        @Override
+        public void onSosSuccess(String result) { successes.incrementAndGet(); }
+
+        @Override
+        public void onSosFailure(SosException error) { failures.incrementAndGet(); }
+
+        private int total() { return successes.get() + failures.get(); }
+    }
+
+    /**
+     * Runs two tasks as close to the same time as possible
+     */
+    private static void race(Runnable first, Runnable second) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                start.await();
+            } catch (InterruptedException ignore) {
+                return;
+            }
+            second.run();
+        });
+        thread.start();
+        start.countDown();
+        first.run();
+        thread.join();
+    }
+
+    @Test
+    public void finishesOnlyOnce() {
+        SosFuture<String> future = new SosFuture<>();
+        assertTrue(future.complete("first"));
+        assertFalse(future.complete("second"));
+        assertFalse(future.fail(new SosException("late")));
+        assertFalse(future.cancel(false));
+        assertFalse(future.isCancelled());
+        assertNull(future.getError());
+    }
+
+    @Test
+    public void cancelAndCompleteRaceHasOneWinner() throws Exception {
+        for (int i=0;i<RACES;i++) {
+            final SosFuture<String> future = new SosFuture<>();
+            final Counter counter = new Counter();
+            final AtomicInteger cancelActions = new AtomicInteger(0);
+            final boolean[] completed = new boolean[1];
+            final boolean[] cancelled = new boolean[1];
+            future.addListener(counter);
+            future.setCancelAction(() -> cancelActions.incrementAndGet());
+            race(() -> completed[0] = future.complete("result"),() -> cancelled[0] = future.cancel(false));
+            assertTrue("exactly one of complete() and cancel() wins",completed[0] != cancelled[0]);
+            assertEquals(1,counter.total());
+            assertTrue(future.isDone());
+            assertEquals(cancelled[0],future.isCancelled());
+            assertEquals(cancelled[0]?1:0,cancelActions.get());
+            if (cancelled[0]) {
+                assertEquals(1,counter.failures.get());
+                try {
+                    future.get();
+                    fail("a cancelled future has no result");
+                } catch (CancellationException ignore) {
+                }
+            } else {
+                assertEquals(1,counter.successes.get());
+                assertEquals("result",future.get());
+            }
+        }
+    }
+
+    @Test
+    public void cancelAndFailRaceHasOneWinner() throws Exception {
+        for (int i=0;i<RACES;i++) {
+            final SosFuture<String> future = new SosFuture<>();
+            final SosException error = new SosException("failed");
+            final Counter counter = new Counter();
+            final boolean[] failed = new boolean[1];
+            final boolean[] cancelled = new boolean[1];
+            future.addListener(counter);
+            race(() -> failed[0] = future.fail(error),() -> cancelled[0] = future.cancel(false));
+            assertTrue(failed[0] != cancelled[0]);
+            assertEquals(1,counter.failures.get());
+            assertEquals(0,counter.successes.get());
+            assertEquals(cancelled[0],future.isCancelled());
+            if (failed[0])
+                assertSame(error,future.getError());
+        }
+    }
+
+    @Test
+    public void listenerAddedWhileCompletingIsCalledOnce() throws Exception {
+        for (int i=0;i<RACES;i++) {
+            final SosFuture<String> future = new SosFuture<>();
+            final Counter counter = new Counter();
+            race(() -> future.complete("result"),() -> future.addListener(counter));
+            assertEquals(1,counter.successes.get());
+            assertEquals(0,counter.failures.get());
+        }
+    }
+
+    @Test
+    public void cancelActionSetAfterCancelRunsRightAway() {
+        SosFuture<String> future = new SosFuture<>();
+        AtomicInteger runs = new AtomicInteger(0);
+        assertTrue(future.cancel(false));
+        future.setCancelAction(() -> runs.incrementAndGet());
+        assertEquals(1,runs.get());
+    }
+
+    @Test
+    public void cancelActionIsDroppedOnceFinished() {
+        SosFuture<String> future = new SosFuture<>();
+        AtomicInteger runs = new AtomicInteger(0);
+        future.setCancelAction(() -> runs.incrementAndGet());
+        future.complete("done");
+        future.cancel(false);
+        future.setCancelAction(() -> runs.incrementAndGet());
+        assertEquals(0,runs.get());
+    }
+
+    @Test
+    public void getWaitsForAnotherThread() throws Exception {
+        final SosFuture<String> future = new SosFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                Thread.sleep(20l);
+            } catch (InterruptedException ignore) {
+            }
+            future.fail(new SosException("failed"));
+        });
+        thread.start();
+        try {
+            future.get(5l,TimeUnit.SECONDS);
+            fail("the future failed");
+        } catch (ExecutionException e) {
+            assertEquals("failed",e.getCause().getMessage());
+        }
+        thread.join();
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void getTimesOut() throws Exception {
+        new SosFuture<String>().get(10l,TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void completeFromFollowsTheOtherFuture() {
+        SosFuture<String> source = new SosFuture<>();
+        SosFuture<String> copy = new SosFuture<>();
+        copy.completeFrom(source);
+        assertFalse(copy.isDone());
+        source.complete("result");
+        assertTrue(copy.isDone());
+        assertNull(copy.getError());
+        SosFuture<String> failed = new SosFuture<>();
+        failed.completeFrom(SosFuture.<String>newFailed(new SosException("failed")));
+        assertEquals("failed",failed.getError().getMessage());
+    }
+}
@@ -0,0 +1,296 @@
+package org.sofwerx.ogc.sos;
+
+import android.util.Pair;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SosHttpRequestTest {
+    private final static long WAIT = 5000l;
+    private final static String URL_A = "http://a/sos";
+    private final static String URL_B = "http://b/sos";
+    private final static String RESPONSE = "<sos:InsertResultResponse xmlns:sos=\"http://www.opengis.net/sos/2.0\"/>";
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+    private final FakeServer server = new FakeServer();
+    private final FakeHost host = new FakeHost();
+
+    /**
+     * How a fake server answers one call
+     */
+    private interface Answer {
+        String answer(HttpHelper.Call call) throws IOException;
+    }
+
+    /**
+     * Answers each URL as told and keeps the URL of every call in order
+     */
+    private static class FakeServer implements SosHttpTransport {
+        private final ConcurrentHashMap<String,Answer> answers = new ConcurrentHashMap<>();
+        private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public String get(String serverURL, ArrayList<Pair<String,String>> keyValues, long timeout, HttpHelper.Call call) throws IOException {
+            return answer(serverURL,call);
+        }
+
+        @Override
+        public String post(String serverURL, String username, String password, HttpHelper.BodyWriter body, boolean soapWrapper, HttpHelper.Compression compression, long timeout, HttpHelper.Call call) throws IOException {
+            return answer(serverURL,call);
+        }
+
+        private String answer(String serverURL, HttpHelper.Call call) throws IOException {
+            requests.add(serverURL);
+            return answers.get(serverURL).answer(call);
+        }
+
+        private List<String> getRequests() {
+            synchronized (requests) {
+                return new ArrayList<>(requests);
+            }
+        }
+    }
+
+    /**
+     * Stands in for SosService; the service thread is the test's executor
+     */
+    private class FakeHost implements SosHttpRequest.Host {
+        private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        private final SosTemplateRegistry templateRegistry = new SosTemplateRegistry();
+
+        @Override
+        public boolean post(Runnable task) {
+            executor.execute(task);
+            return true;
+        }
+
+        @Override
+        public <T> boolean postUntilDone(SosFuture<T> future, Runnable task, long delay) {
+            final ScheduledFuture<?> scheduled = executor.schedule(task,delay,TimeUnit.MILLISECONDS);
+            future.addListener(new SosFutureListener<T>() {
+                @Override
+                public void onSosSuccess(T result) { scheduled.cancel(false); }
+
+                @Override
+                public void onSosFailure(SosException error) { scheduled.cancel(false); }
+            });
+            return true;
+        }
+
+        @Override
+        public void onExpired(AbstractSosOperation operation, SosFuture<AbstractSosOperation> future) { future.fail(new SosException("expired")); }
+
+        @Override
+        public void onSent(AbstractSosOperation operation) {}
+
+        @Override
+        public void onError(String message) { errors.add(message); }
+
+        @Override
+        public String getUsername() { return null; }
+
+        @Override
+        public String getPassword() { return null; }
+
+        @Override
+        public boolean isSoapWrapped() { return false; }
+
+        @Override
+        public SosTemplateRegistry getTemplateRegistry() { return templateRegistry; }
+
+        @Override
+        public SosHttpTransport getTransport() { return server; }
+
+        @Override
+        public SosSensor getBoundSensor(AbstractSosOperation operation) { return null; }
+
+        @Override
+        public SosEndpoint getRegisteredEndpoint(SosSensor sensor) { return null; }
+
+        @Override
+        public void onGetResultsResponse(OperationGetResults operation, String result, SosFuture<AbstractSosOperation> future) { future.complete(operation); }
+
+        @Override
+        public void onResponse(SosDestination destination, SosEndpoint endpoint, SosSensor boundSensor, AbstractSosOperation response) {}
+
+        @Override
+        public boolean isOwnSensor(SosSensor sensor) { return false; }
+
+        @Override
+        public SosEndpoint selectRegistration() { return null; }
+
+        @Override
+        public AbstractSosOperation getNextRegistrationStep() { return null; }
+
+        @Override
+        public void reregisterSensor() {}
+
+        @Override
+        public void finishRegistrations(SosSensor sensor) {}
+
+        @Override
+        public void registerFleetSensor(SosDestination destination, SosEndpoint endpoint, SosSensor sensor) {}
+
+        @Override
+        public void useFleetEndpoint(SosSensor sensor, SosEndpoint endpoint, SosRegistration registration) {}
+    }
+
+    /**
+     * Runs its tasks on the test's executor rather than on a HandlerThread, so tries against
+     * different servers can run at the same time
+     */
+    private class ExecutorLane extends SosLane {
+        private ExecutorLane() { super("Test"); }
+
+        @Override
+        public boolean postDelayed(Runnable task, long delay) {
+            executor.schedule(task,delay,TimeUnit.MILLISECONDS);
+            return true;
+        }
+    }
+
+    /**
+     * Servers that all share one ExecutorLane
+     */
+    private class TestDestination extends SosDestination {
+        private final SosLane lane = new ExecutorLane();
+
+        private TestDestination(SosEndpoint... endpoints) { super(Arrays.asList(endpoints)); }
+
+        @Override
+        public SosLane getLane(SosEndpoint endpoint) { return lane; }
+    }
+
+    private static SosEndpoint newEndpoint(String url, int maxAttempts) {
+        return new SosEndpoint(url,new SosRetryPolicy(maxAttempts,10l,10l),null);
+    }
+
+    private static HttpHelper.BodyWriter newBody() {
+        return HttpHelper.newBodyWriter("<sos:InsertResult xmlns:sos=\"http://www.opengis.net/sos/2.0\"/>".getBytes(Charset.forName("UTF-8")));
+    }
+
+    private SosFuture<AbstractSosOperation> send(SosDestination destination, AbstractSosOperation operation) {
+        SosFuture<AbstractSosOperation> future = new SosFuture<>();
+        new SosHttpRequest(host,destination,operation,newBody(),future).start();
+        return future;
+    }
+
+    private static void assertFails(SosFuture<AbstractSosOperation> future) throws Exception {
+        try {
+            future.get(WAIT,TimeUnit.MILLISECONDS);
+            fail("the request should have failed");
+        } catch (ExecutionException ignore) {
+        }
+    }
+
+    @After
+    public void shutdown() { executor.shutdownNow(); }
+
+    @Test
+    public void failsOverToTheNextServerOnceRetriesRunOut() throws Exception {
+        server.answers.put(URL_A,call -> { throw new IOException("refused"); });
+        server.answers.put(URL_B,call -> RESPONSE);
+        SosFuture<AbstractSosOperation> future = send(new TestDestination(newEndpoint(URL_A,2),newEndpoint(URL_B,2)),new OperationInsertResult(null));
+        assertTrue(future.get(WAIT,TimeUnit.MILLISECONDS) instanceof OperationInsertResultResponse);
+        assertEquals(Arrays.asList(URL_A,URL_A,URL_B),server.getRequests());
+        assertTrue(host.errors.isEmpty());
+    }
+
+    @Test
+    public void serverWithAnOpenBreakerIsSkipped() throws Exception {
+        SosEndpoint down = new SosEndpoint(URL_A,new SosRetryPolicy(2,10l,10l),new SosCircuitBreaker(URL_A,1,60000l));
+        down.getCircuitBreaker().onFailure();
+        server.answers.put(URL_A,call -> RESPONSE);
+        server.answers.put(URL_B,call -> RESPONSE);
+        SosFuture<AbstractSosOperation> future = send(new TestDestination(down,newEndpoint(URL_B,2)),new OperationInsertResult(null));
+        future.get(WAIT,TimeUnit.MILLISECONDS);
+        assertEquals(Collections.singletonList(URL_B),server.getRequests());
+    }
+
+    @Test
+    public void writeIsNotRetriedOnceConnected() throws Exception {
+        server.answers.put(URL_A,call -> {
+            call.onConnected();
+            throw new IOException("connection reset");
+        });
+        assertFails(send(new TestDestination(newEndpoint(URL_A,3)),new OperationInsertResult(null)));
+        assertEquals(Collections.singletonList(URL_A),server.getRequests());
+        assertEquals(1,host.errors.size());
+    }
+
+    @Test
+    public void writeIsRetriedIfItNeverConnected() throws Exception {
+        server.answers.put(URL_A,call -> { throw new IOException("refused"); });
+        assertFails(send(new TestDestination(newEndpoint(URL_A,3)),new OperationInsertResult(null)));
+        assertEquals(Arrays.asList(URL_A,URL_A,URL_A),server.getRequests());
+    }
+
+    @Test
+    public void readIsRetriedEvenOnceConnected() throws Exception {
+        server.answers.put(URL_A,call -> {
+            call.onConnected();
+            throw new IOException("connection reset");
+        });
+        assertFails(send(new TestDestination(newEndpoint(URL_A,3)),new OperationGetCapabilities()));
+        assertEquals(3,server.getRequests().size());
+    }
+
+    @Test
+    public void rejectedRequestIsNotRetriedOrFailedOver() throws Exception {
+        server.answers.put(URL_A,call -> { throw new SosHttpException(400,URL_A); });
+        server.answers.put(URL_B,call -> RESPONSE);
+        SosEndpoint endpoint = newEndpoint(URL_A,3);
+        assertFails(send(new TestDestination(endpoint,newEndpoint(URL_B,3)),new OperationInsertResult(null)));
+        assertEquals(Collections.singletonList(URL_A),server.getRequests());
+        assertEquals(SosCircuitBreaker.State.CLOSED,endpoint.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void hedgedReadCancelsTheSlowerServer() throws Exception {
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        server.answers.put(URL_A,call -> {
+            long giveUp = System.currentTimeMillis() + WAIT;
+            while (!call.isCancelled() && (System.currentTimeMillis() < giveUp)) {
+                try {
+                    Thread.sleep(5l);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (call.isCancelled())
+                cancelled.countDown();
+            throw new IOException("Request was cancelled");
+        });
+        server.answers.put(URL_B,call -> RESPONSE);
+        SosEndpoint slow = newEndpoint(URL_A,3);
+        for (int i=0;i<5;i++)
+            slow.recordLatency(10l); //hedges after the 50ms floor rather than the 1s default
+        TestDestination destination = new TestDestination(slow,newEndpoint(URL_B,3));
+        destination.setHedging(true);
+        SosFuture<AbstractSosOperation> future = send(destination,new OperationGetCapabilities());
+        assertTrue(future.get(WAIT,TimeUnit.MILLISECONDS) instanceof OperationInsertResultResponse);
+        assertTrue("the slower call is abandoned once the hedge answers",cancelled.await(WAIT,TimeUnit.MILLISECONDS));
+        Thread.sleep(50l); //lets the abandoned try finish
+        assertEquals(Arrays.asList(URL_A,URL_B),server.getRequests());
+        assertEquals(SosCircuitBreaker.State.CLOSED,slow.getCircuitBreaker().getState());
+        assertTrue(slow.getCircuitBreaker().allowRequest());
+        assertTrue(host.errors.isEmpty());
+    }
+}
@@ -0,0 +1,107 @@
+package org.sofwerx.ogc.sos;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SosMessageClassifierTest {
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private static String newInsertResult(String template) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><sos:InsertResult xmlns:sos=\"http://www.opengis.net/sos/2.0\" service=\"SOS\" version=\"2.0.0\">"
+                +"<!-- relayed \u00fcber the mesh --><sos:template>"+template+"</sos:template><sos:resultValues>1,2</sos:resultValues></sos:InsertResult>";
+    }
+
+    private final static String SOAP_12 = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            +"<soap12:Envelope xmlns:soap12=\"http://www.w3.org/2003/05/soap-envelope\">\n"
+            +"  <soap12:Header><wsa:To xmlns:wsa=\"http://www.w3.org/2005/08/addressing\">http://x/sos</wsa:To></soap12:Header>\n"
+            +"  <!-- <sos:GetCapabilities/> -->\n"
+            +"  <soap12:Body>\n"
+            +"    <sos:InsertResult xmlns:sos=\"http://www.opengis.net/sos/2.0\" service=\"SOS\" version=\"2.0.0\">\n"
+            +"      <sos:template> http://x/torgi/template/1 </sos:template>\n"
+            +"      <sos:resultValues>1,2</sos:resultValues>\n"
+            +"    </sos:InsertResult>\n"
+            +"  </soap12:Body>\n"
+            +"</soap12:Envelope>";
+
+    @Test
+    public void findsTheOperationInsideASoapEnvelope() {
+        assertEquals(OperationInsertResult.NAMESPACE,SosMessageClassifier.getOperationName(SOAP_12));
+        assertTrue(SosMessageClassifier.isOperation(SOAP_12,"sos:InsertResult"));
+        assertFalse(SosMessageClassifier.isOperation(SOAP_12,"GetCapabilities"));
+        assertEquals("http://x/torgi/template/1",SosMessageClassifier.getTemplate(SOAP_12));
+    }
+
+    @Test
+    public void envelopePrefixAndHeaderDoNotMatter() {
+        String soap11 = "<env:Envelope xmlns:env=\"http://schemas.xmlsoap.org/soap/envelope/\"><env:Body><GetCapabilities xmlns=\"http://www.opengis.net/sos/2.0\"/></env:Body></env:Envelope>";
+        assertEquals("GetCapabilities",SosMessageClassifier.getOperationName(soap11));
+        String unprefixed = "<Envelope><Header><template>not this one</template></Header><Body><sos:InsertResult xmlns:sos=\"x\"><sos:template>t1</sos:template></sos:InsertResult></Body></Envelope>";
+        assertEquals(OperationInsertResult.NAMESPACE,SosMessageClassifier.getOperationName(unprefixed));
+        assertEquals("t1",SosMessageClassifier.getTemplate(unprefixed));
+    }
+
+    @Test
+    public void bareOperationsAreFoundAfterTheDeclarationAndComments() {
+        String xml = "<?xml version=\"1.0\"?><!-- <sos:InsertResult> --><!DOCTYPE x><swes:InsertSensor xmlns:swes=\"http://www.opengis.net/swes/2.0\"/>";
+        assertEquals("InsertSensor",SosMessageClassifier.getOperationName(xml));
+        assertEquals("InsertResult",SosMessageClassifier.getOperationName("<InsertResult><template>t</template></InsertResult>"));
+    }
+
+    @Test
+    public void envelopeWithoutABodyIsTheRoot() {
+        assertEquals("Envelope",SosMessageClassifier.getOperationName("<soap:Envelope xmlns:soap=\"x\"><soap:Header/></soap:Envelope>"));
+    }
+
+    @Test
+    public void notXml() {
+        assertEquals(null,SosMessageClassifier.getOperationName("not xml"));
+        assertEquals(null,SosMessageClassifier.getOperationName(null));
+        assertEquals(-1,SosMessageClassifier.findOperation("<?xml version=\"1.0\"?><!-- only a comment -->"));
+    }
+
+    @Test
+    public void templatesWithEntitiesAreLeftToTheParser() {
+        String xml = "<sos:InsertResult xmlns:sos=\"x\"><sos:template>http://x/a&amp;b</sos:template></sos:InsertResult>";
+        assertEquals(-1l,SosMessageClassifier.findTemplate(xml));
+        assertTrue(new SosMessageFilter().addTemplate("http://x/other").isAccepted(xml));
+    }
+
+    @Test
+    public void byteViewSniffsSoapToo() {
+        CharSequence bytes = SosMessageClassifier.asAscii(SOAP_12.getBytes(UTF8));
+        assertEquals(OperationInsertResult.NAMESPACE,SosMessageClassifier.getOperationName(bytes));
+        assertEquals("http://x/torgi/template/1",SosMessageClassifier.getTemplate(bytes));
+    }
+
+    @Test
+    public void byteViewDecodesNonAsciiTemplates() {
+        String template = "urn:capteur:m\u00e9t\u00e9o#sortie0";
+        byte[] bytes = newInsertResult(template).getBytes(UTF8);
+        assertEquals(OperationInsertResult.NAMESPACE,SosMessageClassifier.getOperationName(SosMessageClassifier.asAscii(bytes)));
+        assertEquals(template,SosMessageClassifier.getTemplate(SosMessageClassifier.asAscii(bytes)));
+    }
+
+    @Test
+    public void filterMatchesNonAsciiTemplatesInBytes() {
+        byte[] wanted = newInsertResult("urn:capteur:m\u00e9t\u00e9o#sortie0").getBytes(UTF8);
+        byte[] other = newInsertResult("urn:capteur:meteo#sortie0").getBytes(UTF8);
+        SosMessageFilter filter = new SosMessageFilter().addTemplate("urn:capteur:m\u00e9t\u00e9o#sortie0");
+        assertTrue(filter.isAccepted(wanted));
+        assertFalse(filter.isAccepted(other));
+        assertTrue(filter.isAccepted(new String(wanted,UTF8)));
+        assertFalse(filter.isAccepted(new String(other,UTF8)));
+    }
+
+    @Test
+    public void multiByteCharactersDoNotMatchTheirLatin1Lookalikes() {
+        byte[] bytes = newInsertResult("urn:\u00e9").getBytes(UTF8); //two bytes, 0xc3 0xa9
+        SosMessageFilter filter = new SosMessageFilter().addTemplate("urn:\u00c3\u00a9");
+        assertFalse(filter.isAccepted(bytes));
+        assertTrue(new SosMessageFilter().addTemplate("urn:\u00e9").isAccepted(bytes));
+    }
+}
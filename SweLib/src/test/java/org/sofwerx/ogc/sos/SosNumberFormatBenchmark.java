@@ -0,0 +1,91 @@
+package org.sofwerx.ogc.sos;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares resultValues written at full precision (Double.toString) with the same readings
+ * written at the precision each field is good to. Only runs with -Dsos.benchmark=true; only the
+ * size is checked since timings depend on the machine, but both are in the assertion message.
+ * Set -Dsos.benchmark.rows to run longer.
+ */
+public class SosNumberFormatBenchmark {
+    private final static int ROWS = Integer.getInteger("sos.benchmark.rows",20000);
+    private final static int ROUNDS = 5;
+
+    /**
+     * A GPS fix (good to 1e-7 degrees and 0.1 m) and an AGC reading (good to 0.1 dB)
+     * @param random
+     * @return
+     */
+    private static double[][] newReadings(Random random) {
+        double[][] readings = new double[ROWS][];
+        for (int i=0;i<ROWS;i++)
+            readings[i] = new double[] {38d + random.nextDouble(),-77d - random.nextDouble(),random.nextDouble()*300d,-40d - random.nextDouble()*60d};
+        return readings;
+    }
+
+    private static SensorResultTemplateField[] newFields(boolean withPrecision) {
+        SensorResultTemplateField[] fields = {
+                new SensorResultTemplateField("lat","http://sensorml.com/ont/swe/property/Latitude","deg"),
+                new SensorResultTemplateField("lon","http://sensorml.com/ont/swe/property/Longitude","deg"),
+                new SensorResultTemplateField("alt","http://sensorml.com/ont/swe/property/Altitude","m"),
+                new SensorResultTemplateField("agc","http://sensorml.com/ont/swe/property/AGC","dB")};
+        if (withPrecision) {
+            fields[0].setDecimalPlaces(7);
+            fields[1].setDecimalPlaces(7);
+            fields[2].setDecimalPlaces(1);
+            fields[3].setDecimalPlaces(1);
+        }
+        return fields;
+    }
+
+    private static void encode(double[][] readings, SensorResultTemplateField[] fields, StringBuilder out) {
+        out.setLength(0);
+        for (double[] reading:readings) {
+            for (int i=0;i<fields.length;i++) {
+                if (i > 0)
+                    out.append(OperationInsertResultTemplate.FIELD_SEPERATOR);
+                fields[i].encode(reading[i],out);
+            }
+            out.append(OperationInsertResultTemplate.BLOCK_SEPERATOR);
+        }
+    }
+
+    /**
+     * Gets the fastest of several rounds, after one warm-up round
+     * @return time (in ns)
+     */
+    private static long time(double[][] readings, SensorResultTemplateField[] fields, StringBuilder out) {
+        encode(readings,fields,out);
+        long best = Long.MAX_VALUE;
+        for (int round=0;round<ROUNDS;round++) {
+            long start = System.nanoTime();
+            encode(readings,fields,out);
+            best = Math.min(best,System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    @Before
+    public void onlyWhenAsked() {
+        assumeTrue(Boolean.getBoolean("sos.benchmark"));
+    }
+
+    @Test
+    public void precisionShrinksPayload() {
+        double[][] readings = newReadings(new Random(31l));
+        StringBuilder out = new StringBuilder(ROWS*64);
+        long fullTime = time(readings,newFields(false),out);
+        int fullSize = out.length();
+        long fixedTime = time(readings,newFields(true),out);
+        int fixedSize = out.length();
+        assertTrue(ROWS+" rows: Double.toString "+fullSize+" chars in "+(fullTime/1000l)+"us; "
+                +"field precision "+fixedSize+" chars in "+(fixedTime/1000l)+"us",fixedSize < fullSize);
+    }
+}
@@ -0,0 +1,148 @@
+package org.sofwerx.ogc.sos;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SosNumberFormatTest {
+    private static String fixed(double value, int decimalPlaces) {
+        StringBuilder out = new StringBuilder();
+        SosNumberFormat.appendFixed(out,value,decimalPlaces);
+        return out.toString();
+    }
+
+    private static String significant(double value, int significantDigits) {
+        StringBuilder out = new StringBuilder();
+        SosNumberFormat.appendSignificant(out,value,significantDigits);
+        return out.toString();
+    }
+
+    private static double parse(String text) { return SosNumberParser.parseDouble(text,0,text.length()); }
+
+    @Test
+    public void appendFixedDropsTrailingZeros() {
+        assertEquals("12.5",fixed(12.5d,3));
+        assertEquals("1",fixed(1d,2));
+        assertEquals("0.05",fixed(0.05d,2));
+        assertEquals("-1.3",fixed(-1.25d,1));
+        assertEquals("38.8977001",fixed(38.8977001d,7));
+        assertEquals("-77.0365",fixed(-77.03650004d,7));
+    }
+
+    @Test
+    public void appendFixedDoesNotWriteNegativeZero() {
+        assertEquals("0",fixed(-0.0004d,3));
+        assertEquals("0",fixed(-0d,2));
+    }
+
+    @Test
+    public void appendFixedClampsDecimalPlaces() {
+        assertEquals("3",fixed(3.14159d,-2));
+        assertEquals(fixed(0.1d,SosNumberFormat.MAX_DECIMAL_PLACES),fixed(0.1d,40));
+    }
+
+    @Test
+    public void appendFixedFallsBackForValuesThatCannotBeScaled() {
+        assertEquals(Double.toString(1e20d),fixed(1e20d,2));
+        assertEquals("NaN",fixed(Double.NaN,2));
+        assertEquals("Infinity",fixed(Double.POSITIVE_INFINITY,2));
+    }
+
+    @Test
+    public void appendSignificant() {
+        assertEquals("123000",significant(123456d,3));
+        assertEquals("0.0012",significant(0.00123456d,2));
+        assertEquals("-47.3",significant(-47.26d,3));
+        assertEquals("0",significant(0d,4));
+        assertEquals("100",significant(99.96d,3));
+    }
+
+    @Test
+    public void fieldPrecisionIsUsedWhenEncoding() {
+        SensorResultTemplateField field = new SensorResultTemplateField("agc","http://sensorml.com/ont/swe/property/AGC","dB");
+        StringBuilder out = new StringBuilder();
+        field.encode(-61.23456d,out);
+        assertEquals(Double.toString(-61.23456d),out.toString());
+        field.setDecimalPlaces(1);
+        out.setLength(0);
+        field.encode(-61.23456d,out);
+        assertEquals("-61.2",out.toString());
+    }
+
+    @Test
+    public void fixedRoundTripsWithinHalfAUnit() {
+        Random random = new Random(31l);
+        for (int decimalPlaces=0;decimalPlaces<=9;decimalPlaces++) {
+            double tolerance = 0.5d*Math.pow(10d,-decimalPlaces) + 1e-9d;
+            for (int i=0;i<2000;i++) {
+                double value = (random.nextDouble() - 0.5d)*360d;
+                double parsed = parse(fixed(value,decimalPlaces));
+                if (Math.abs(parsed - value) > tolerance)
+                    fail(value+" at "+decimalPlaces+" decimal places came back as "+parsed);
+            }
+        }
+    }
+
+    @Test
+    public void fullPrecisionRoundTripsExactly() {
+        Random random = new Random(32l);
+        for (int i=0;i<10000;i++) {
+            double value = (random.nextDouble() - 0.5d)*Math.pow(10d,random.nextInt(20) - 10);
+            StringBuilder out = new StringBuilder();
+            out.append(value);
+            assertEquals(out.toString(),value,parse(out.toString()),0d);
+        }
+    }
+
+    @Test
+    public void parseDoubleReadsARangeInsideLongerText() {
+        String text = "2019-03-01T00:00:00Z,38.8977,-77.0365,1.5e2,+4";
+        assertEquals(38.8977d,SosNumberParser.parseDouble(text,21,28),0d);
+        assertEquals(-77.0365d,SosNumberParser.parseDouble(text,29,37),0d);
+        assertEquals(150d,SosNumberParser.parseDouble(text,38,43),0d);
+        assertEquals(4d,SosNumberParser.parseDouble(text,44,46),0d);
+    }
+
+    @Test
+    public void parseDoubleMatchesThePlatformOutsideTheFastPath() {
+        String[] texts = {"1.2345678901234567","123456789012345678","1e300","4.9e-324","0.000000000000000000000001"};
+        for (String text:texts)
+            assertEquals(text,Double.parseDouble(text),parse(text),0d);
+    }
+
+    @Test
+    public void parseDoubleRejectsBadText() {
+        String[] texts = {"","-","abc","1.2.3","1e","12a"};
+        for (String text:texts) {
+            try {
+                parse(text);
+                fail("\""+text+"\" should not parse");
+            } catch (NumberFormatException ignore) {
+            }
+        }
+    }
+
+    @Test
+    public void parseLongHandlesTheFullRange() {
+        String text = Long.toString(Long.MIN_VALUE);
+        assertEquals(Long.MIN_VALUE,SosNumberParser.parseLong(text,0,text.length()));
+        text = Long.toString(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE,SosNumberParser.parseLong(text,0,text.length()));
+        assertEquals(42l,SosNumberParser.parseLong("x,+42,",2,5));
+    }
+
+    @Test
+    public void parseLongRejectsOverflowAndBadDigits() {
+        String[] texts = {"9223372036854775808","-9223372036854775809","12.5","-",""};
+        for (String text:texts) {
+            try {
+                SosNumberParser.parseLong(text,0,text.length());
+                fail("\""+text+"\" should not parse");
+            } catch (NumberFormatException ignore) {
+            }
+        }
+    }
+}
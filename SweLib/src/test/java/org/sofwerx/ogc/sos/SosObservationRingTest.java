@@ -0,0 +1,133 @@
+package org.sofwerx.ogc.sos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SosObservationRingTest {
+    private final static SensorResultTemplateField[] FIELDS = {new SensorResultTemplateField("count","http://sensorml.com/ont/swe/property/Count",null)};
+
+    private static SosObservation newObservation(long value) {
+        return new SosObservation("template",FIELDS,new Object[] {value});
+    }
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(8,new SosObservationRing(5).getCapacity());
+        assertEquals(2,new SosObservationRing(0).getCapacity());
+        assertEquals(SosObservationRing.DEFAULT_CAPACITY,new SosObservationRing().getCapacity());
+    }
+
+    @Test
+    public void drainsInPublishOrder() {
+        SosObservationRing ring = new SosObservationRing(8);
+        SosSensor sensor = new SosSensor();
+        for (long i=0l;i<5l;i++)
+            assertTrue(ring.publish(sensor,newObservation(i)));
+        assertEquals(5,ring.size());
+        ArrayList<SosSensor> sensors = new ArrayList<>();
+        ArrayList<SosObservation> observations = new ArrayList<>();
+        assertEquals(3,ring.drainTo(sensors,observations,3));
+        assertEquals(2,ring.drainTo(sensors,observations,10));
+        assertTrue(ring.isEmpty());
+        for (int i=0;i<5;i++) {
+            assertSame(sensor,sensors.get(i));
+            assertEquals((long)i,observations.get(i).getValue(0));
+        }
+    }
+
+    @Test
+    public void dropsWhenFullAndReusesSlotsAfterDraining() {
+        SosObservationRing ring = new SosObservationRing(4);
+        SosSensor sensor = new SosSensor();
+        for (long i=0l;i<4l;i++)
+            assertTrue(ring.publish(sensor,newObservation(i)));
+        assertFalse(ring.publish(sensor,newObservation(4l)));
+        assertEquals(1l,ring.getDropCount());
+        ArrayList<SosSensor> sensors = new ArrayList<>();
+        ArrayList<SosObservation> observations = new ArrayList<>();
+        for (long lap=1l;lap<=3l;lap++) { //wraps around the ring several times
+            assertEquals(4,ring.drainTo(sensors,observations,4));
+            for (long i=0l;i<4l;i++)
+                assertTrue(ring.publish(sensor,newObservation(lap*4l+i)));
+        }
+        observations.clear();
+        ring.drainTo(sensors,observations,4);
+        assertEquals(12l,observations.get(0).getValue(0));
+        assertEquals(1l,ring.getDropCount());
+    }
+
+    @Test
+    public void nullsAreRejected() {
+        SosObservationRing ring = new SosObservationRing(4);
+        assertFalse(ring.publish(null,newObservation(0l)));
+        assertFalse(ring.publish(new SosSensor(),null));
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void concurrentProducersLoseNothingThatWasAccepted() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final SosObservationRing ring = new SosObservationRing(256);
+        final SosSensor[] sensors = new SosSensor[producers];
+        final int[] accepted = new int[producers];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p=0;p<producers;p++) {
+            sensors[p] = new SosSensor();
+            final int producer = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ignore) {
+                    return;
+                }
+                for (int i=0;i<perProducer;i++) {
+                    if (ring.publish(sensors[producer],newObservation(producer*(long)perProducer + i)))
+                        accepted[producer]++;
+                }
+            });
+            threads[p].start();
+        }
+        ArrayList<SosSensor> drainedSensors = new ArrayList<>();
+        ArrayList<SosObservation> drained = new ArrayList<>();
+        start.countDown();
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread thread:threads)
+                running |= thread.isAlive();
+            ring.drainTo(drainedSensors,drained,64);
+        }
+        for (Thread thread:threads)
+            thread.join();
+        ring.drainTo(drainedSensors,drained,Integer.MAX_VALUE);
+
+        int totalAccepted = 0;
+        for (int count:accepted)
+            totalAccepted += count;
+        assertEquals(totalAccepted,drained.size());
+        assertEquals((long)producers*perProducer - totalAccepted,ring.getDropCount());
+
+        long[] last = new long[producers];
+        for (int p=0;p<producers;p++)
+            last[p] = -1l;
+        HashSet<Long> seen = new HashSet<>();
+        for (int i=0;i<drained.size();i++) {
+            long value = (Long)drained.get(i).getValue(0);
+            int producer = (int)(value/perProducer);
+            assertSame(sensors[producer],drainedSensors.get(i));
+            assertTrue("each producer's observations come out in order",value > last[producer]);
+            last[producer] = value;
+            assertTrue(seen.add(value));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.sofwerx.ogc.sos;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SosResultValuesTest {
+    @Test
+    public void readsSeveralBlocks() {
+        SosResultValues values = new SosResultValues("2019-03-01T00:00:10Z,38.8977,-77.0365@@2019-03-01T00:00:11Z,38.8978,-77.0366@@");
+        assertEquals(2,values.getBlockCount());
+        assertEquals(3,values.getFieldCount(0));
+        assertEquals(3,values.getFieldCount(1));
+        assertEquals(0,values.getFieldCount(2));
+        assertEquals("2019-03-01T00:00:11Z",values.getString(1,0));
+        assertEquals(38.8977d,values.getDouble(0,1),0d);
+        assertEquals(-77.0366d,values.getDouble(1,2),0d);
+    }
+
+    @Test
+    public void blocksCanHoldDifferentNumbersOfFields() {
+        SosResultValues values = new SosResultValues("1,2,3@@4@@5,6");
+        assertEquals(3,values.getBlockCount());
+        assertEquals(3,values.getFieldCount(0));
+        assertEquals(1,values.getFieldCount(1));
+        assertEquals(2,values.getFieldCount(2));
+        assertEquals(4l,values.getLong(1,0));
+        assertEquals(6l,values.getLong(2,1));
+    }
+
+    @Test
+    public void blankBlocksAreSkippedAndFieldsTrimmed() {
+        SosResultValues values = new SosResultValues("\n  1 , 2 @@ \n @@3,\t4\n");
+        assertEquals(2,values.getBlockCount());
+        assertEquals("1",values.getString(0,0));
+        assertEquals("2",values.getString(0,1));
+        assertEquals(4l,values.getLong(1,1));
+        assertEquals(0,new SosResultValues("").getBlockCount());
+        assertEquals(0,new SosResultValues(null).getBlockCount());
+    }
+
+    @Test
+    public void emptyFieldsAreKept() {
+        SosResultValues values = new SosResultValues("a,,c");
+        assertEquals(3,values.getFieldCount());
+        assertEquals("",values.getString(1));
+        assertEquals("c",values.getString(2));
+    }
+
+    @Test
+    public void usesTheTemplateSeparators() {
+        SosResultValues values = new SosResultValues("1;2|3;4|",";","|");
+        assertEquals(2,values.getBlockCount());
+        assertEquals(2l,values.getLong(0,1));
+        assertEquals(3l,values.getLong(1,0));
+        SosResultValues defaults = new SosResultValues("1,2@@3,4",null,"");
+        assertEquals(2,defaults.getBlockCount());
+        assertEquals(4l,defaults.getLong(1,1));
+    }
+
+    @Test
+    public void multiCharacterSeparatorsAreNotSplitInside() {
+        SosResultValues values = new SosResultValues("1::2@@@3::4","::","@@@");
+        assertEquals(2,values.getBlockCount());
+        assertEquals(2l,values.getLong(0,1));
+        assertEquals(3l,values.getLong(1,0));
+    }
+
+    @Test
+    public void readsBooleans() {
+        SosResultValues values = new SosResultValues("true,FALSE,1,0");
+        assertTrue(values.getBoolean(0,0));
+        assertFalse(values.getBoolean(0,1));
+        assertTrue(values.getBoolean(0,2));
+        assertFalse(values.getBoolean(0,3));
+    }
+
+    @Test
+    public void badNumberReportsBlockFieldAndOffset() {
+        SosResultValues values = new SosResultValues("1,2@@3,x4");
+        try {
+            values.getDouble(1,1);
+            fail("\"x4\" should not parse");
+        } catch (SosResultFormatException e) {
+            assertEquals(1,e.getBlock());
+            assertEquals(1,e.getField());
+            assertEquals(7,e.getOffset());
+            assertTrue(e.getMessage().contains("\"x4\""));
+        }
+    }
+
+    @Test
+    public void badWholeNumberAndBooleanReportWhereTheyAre() {
+        SosResultValues values = new SosResultValues("  12.5 , maybe");
+        try {
+            values.getLong(0,0);
+            fail("12.5 is not a whole number");
+        } catch (SosResultFormatException e) {
+            assertEquals(0,e.getBlock());
+            assertEquals(0,e.getField());
+            assertEquals(2,e.getOffset());
+        }
+        try {
+            values.getBoolean(0,1);
+            fail("\"maybe\" is not a boolean");
+        } catch (SosResultFormatException e) {
+            assertEquals(1,e.getField());
+            assertEquals(9,e.getOffset());
+        }
+    }
+
+    @Test
+    public void fieldOutOfRangeIsAnIndexError() {
+        SosResultValues values = new SosResultValues("1,2@@3");
+        String[] requests = {"0,2","1,1","2,0","-1,0","0,-1"};
+        for (String request:requests) {
+            String[] indexes = request.split(",");
+            try {
+                values.getString(Integer.parseInt(indexes[0]),Integer.parseInt(indexes[1]));
+                fail("block "+indexes[0]+", field "+indexes[1]+" does not exist");
+            } catch (IndexOutOfBoundsException ignore) {
+            }
+        }
+    }
+
+    @Test
+    public void decodedValuesAreCached() {
+        SosResultValues values = new SosResultValues("7,abc");
+        assertEquals(7d,values.getDouble(0,0),0d);
+        assertEquals(7d,values.getDouble(0,0),0d);
+        assertTrue(values.getString(0,1) == values.getString(0,1));
+        assertEquals("7,abc",values.getText());
+    }
+}
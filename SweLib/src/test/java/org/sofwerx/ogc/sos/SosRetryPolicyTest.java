@@ -0,0 +1,62 @@
+package org.sofwerx.ogc.sos;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SosRetryPolicyTest {
+    @Test
+    public void retriesUntilMaxAttempts() {
+        SosRetryPolicy policy = new SosRetryPolicy(3,100l,1000l);
+        assertTrue(policy.shouldRetry(1));
+        assertTrue(policy.shouldRetry(2));
+        assertFalse(policy.shouldRetry(3));
+    }
+
+    @Test
+    public void noRetryNeverRetries() {
+        assertFalse(SosRetryPolicy.newNoRetry().shouldRetry(1));
+    }
+
+    @Test
+    public void argumentsAreClamped() {
+        SosRetryPolicy policy = new SosRetryPolicy(0,0l,-1l);
+        assertEquals(1,policy.getMaxAttempts());
+        assertEquals(1l,policy.getBaseDelay());
+        assertEquals(1l,policy.getMaxDelay());
+    }
+
+    @Test
+    public void delayStaysWithinTheGrowingCeiling() {
+        SosRetryPolicy policy = new SosRetryPolicy(10,100l,1000l);
+        long[] ceilings = {100l,200l,400l,800l,1000l,1000l};
+        for (int attempt=1;attempt<=ceilings.length;attempt++) {
+            for (int i=0;i<1000;i++) {
+                long delay = policy.getDelay(attempt);
+                assertTrue("attempt "+attempt+" waited "+delay,(delay >= 1l) && (delay <= ceilings[attempt-1]));
+            }
+        }
+    }
+
+    @Test
+    public void delayIsJittered() {
+        SosRetryPolicy policy = new SosRetryPolicy(3,1000l,1000l);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i=0;i<1000;i++) {
+            long delay = policy.getDelay(1);
+            min = Math.min(min,delay);
+            max = Math.max(max,delay);
+        }
+        assertTrue("waits should spread over the whole range ("+min+" to "+max+")",(min < 250l) && (max > 750l));
+    }
+
+    @Test
+    public void largeAttemptsDoNotOverflow() {
+        SosRetryPolicy policy = new SosRetryPolicy(100,Long.MAX_VALUE/2l,Long.MAX_VALUE);
+        for (int attempt=1;attempt<100;attempt++)
+            assertTrue(policy.getDelay(attempt) >= 1l);
+    }
+}
@@ -0,0 +1,91 @@
+package org.sofwerx.ogc.sos;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SosTemplateRegistryTest {
+    private static SosSensor newSensor(String uniqueId, String offering, String... fields) {
+        SosSensor sensor = new SosSensor(uniqueId,uniqueId,"Test","Test sensor");
+        for (String field:fields)
+            sensor.addMeasurement(new SensorMeasurement(new SensorResultTemplateField(field,"http://sensorml.com/ont/swe/property/"+field,null)));
+        sensor.setAssignedOffering(offering);
+        return sensor;
+    }
+
+    private static SosSensor register(SosTemplateRegistry registry, SosSensor sensor) {
+        registry.register(new OperationInsertResultTemplate(sensor));
+        return sensor;
+    }
+
+    @Test
+    public void longestMatchingOfferingWins() {
+        SosTemplateRegistry registry = new SosTemplateRegistry();
+        SosSensor shorter = register(registry,newSensor("http://x/sensor","http://x/sensor","agc"));
+        SosSensor longer = register(registry,newSensor("http://x/sensor-2","http://x/sensor-2","agc"));
+        assertSame(longer,registry.getSensor("http://x/sensor-2/template/1"));
+        assertSame(shorter,registry.getSensor("http://x/sensor/template/1"));
+        assertEquals("http://x/sensor-2/template/1",longer.getAssignedTemplate());
+    }
+
+    @Test
+    public void registrationOrderDoesNotMatter() {
+        SosTemplateRegistry registry = new SosTemplateRegistry();
+        SosSensor longer = register(registry,newSensor("http://x/a/b","http://x/a/b","agc"));
+        register(registry,newSensor("http://x/a","http://x/a","agc"));
+        register(registry,newSensor("http://x","http://x","agc"));
+        assertSame(longer,registry.getSensor("http://x/a/b#template"));
+    }
+
+    @Test
+    public void assignedProcedureCanBeTheLongerPrefix() {
+        SosTemplateRegistry registry = new SosTemplateRegistry();
+        SosSensor byOffering = register(registry,newSensor("http://x/s","http://x/s","agc"));
+        SosSensor byProcedure = newSensor("urn:gateway:7","offering-7","agc");
+        byProcedure.setAssignedProcedure("http://x/s/gateway/7");
+        register(registry,byProcedure);
+        assertSame(byProcedure,registry.getSensor("http://x/s/gateway/7/template/1"));
+        assertSame(byOffering,registry.getSensor("http://x/s/template/1"));
+    }
+
+    @Test
+    public void firstMatchIsKeptForThatTemplate() {
+        SosTemplateRegistry registry = new SosTemplateRegistry();
+        SosSensor first = register(registry,newSensor("http://x/s","http://x/s","agc"));
+        SosTemplateRegistry.Entry entry = registry.getEntry("http://x/s-b/template/1");
+        assertSame(first,entry.getSensor());
+        register(registry,newSensor("http://x/s-b","http://x/s-b","agc"));
+        assertSame(entry,registry.getEntry("http://x/s-b/template/1"));
+    }
+
+    @Test
+    public void unknownTemplatesAndSensorsWithoutALayoutAreNotMatched() {
+        SosTemplateRegistry registry = new SosTemplateRegistry();
+        register(registry,newSensor("http://x/s","http://x/s","agc"));
+        assertNull(registry.getEntry("http://y/s/template/1"));
+        assertNull(registry.getEntry(null));
+        register(registry,newSensor("http://x/empty","http://x/empty"));
+        assertNull(registry.getSensor("http://x/empty/template/1"));
+    }
+
+    @Test
+    public void boundTemplatesAreFoundDirectly() {
+        SosTemplateRegistry registry = new SosTemplateRegistry();
+        SosSensor sensor = newSensor("http://x/s","http://x/s","agc");
+        registry.register("urn:other:template",sensor);
+        assertSame(sensor,registry.getSensor("urn:other:template"));
+        assertEquals("urn:other:template",sensor.getAssignedTemplate());
+    }
+
+    @Test
+    public void findTemplateNeedsTheSameLayout() {
+        SosTemplateRegistry registry = new SosTemplateRegistry();
+        register(registry,newSensor("http://x/s","http://x/s","agc","snr"));
+        registry.getEntry("http://x/s/template/1");
+        assertEquals("http://x/s/template/1",registry.findTemplate("http://x/s",newSensor("http://x/s","http://x/s","agc","snr")));
+        assertNull(registry.findTemplate("http://x/s",newSensor("http://x/s","http://x/s","agc")));
+        assertNull(registry.findTemplate("http://x/other",newSensor("http://x/s","http://x/s","agc","snr")));
+    }
+}